@@ -0,0 +1,208 @@
+package icecube.daq.hkn1;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unbounded single-producer/single-consumer queue which feeds a leaf
+ * {@link Node}.
+ * <p>
+ * The producer (the thread pushing into a strand) and the consumer (the
+ * splicer thread) never take a lock.  Elements are stored in linked
+ * fixed-size chunks, and the producer publishes new elements with a single
+ * volatile write of its element count.  That write is a full fence, so a
+ * producer which checks whether the consumer is asleep after publishing
+ * cannot miss a consumer which checks the queue after falling asleep.
+ */
+public class LeafQueue<T>
+{
+    /** Number of elements stored in each chunk */
+    private static final int CHUNK_SIZE = 1024;
+
+    /** Number of elements published by the producer */
+    private AtomicLong written = new AtomicLong();
+    /** Number of elements removed by the consumer */
+    private AtomicLong read = new AtomicLong();
+
+    // producer-only fields
+    private Chunk tailChunk;
+    private int tailIndex;
+
+    // consumer-only fields
+    private Chunk headChunk;
+    private int headIndex;
+    private T lastDrained;
+
+    /**
+     * Create an empty queue
+     */
+    public LeafQueue()
+    {
+        tailChunk = new Chunk();
+        headChunk = tailChunk;
+    }
+
+    /**
+     * Throw away all queued elements.  Must only be called by the consumer.
+     */
+    public void clear()
+    {
+        while (poll() != null) {
+            // keep going
+        }
+    }
+
+    /**
+     * Move all published elements into the node, then cascade them through
+     * the tree once.  Must only be called by the consumer.
+     *
+     * @param node leaf node
+     *
+     * @return number of elements moved
+     */
+    public int drainTo(Node<T> node)
+    {
+        final long avail = written.get() - read.get();
+
+        int num = 0;
+        while (num < avail) {
+            lastDrained = take();
+            node.add(lastDrained);
+            num++;
+        }
+
+        if (num > 0) {
+            read.lazySet(read.get() + num);
+            node.checkList();
+        }
+
+        return num;
+    }
+
+    /**
+     * Get the most recent element moved into the node by
+     * {@link #drainTo(Node)}.  Must only be called by the consumer.
+     *
+     * @return last drained element (<tt>null</tt> if nothing was drained)
+     */
+    public T getLastDrained()
+    {
+        return lastDrained;
+    }
+
+    /**
+     * Is the queue empty?
+     *
+     * @return <tt>true</tt> if there are no published elements
+     */
+    public boolean isEmpty()
+    {
+        return written.get() == read.get();
+    }
+
+    /**
+     * Add an element to the queue.  Must only be called by the producer.
+     *
+     * @param elem element to add
+     */
+    public void offer(T elem)
+    {
+        store(elem);
+        written.set(written.get() + 1);
+    }
+
+    /**
+     * Add a list of elements to the queue, publishing them all at once.
+     * Must only be called by the producer.
+     *
+     * @param elems elements to add
+     */
+    public void offer(List<T> elems)
+    {
+        for (T elem : elems) {
+            store(elem);
+        }
+        written.set(written.get() + elems.size());
+    }
+
+    /**
+     * Remove the next element.  Must only be called by the consumer.
+     *
+     * @return next element (<tt>null</tt> if the queue is empty)
+     */
+    public T poll()
+    {
+        if (written.get() == read.get()) {
+            return null;
+        }
+
+        T elem = take();
+        read.lazySet(read.get() + 1);
+        return elem;
+    }
+
+    /**
+     * Get the number of queued elements
+     *
+     * @return number of elements
+     */
+    public int size()
+    {
+        return (int) (written.get() - read.get());
+    }
+
+    /**
+     * Store an element without publishing it.
+     *
+     * @param elem element
+     */
+    private void store(T elem)
+    {
+        if (tailIndex == CHUNK_SIZE) {
+            Chunk chunk = new Chunk();
+            tailChunk.next = chunk;
+            tailChunk = chunk;
+            tailIndex = 0;
+        }
+
+        tailChunk.slots[tailIndex++] = elem;
+    }
+
+    /**
+     * Remove the next published element without updating the read count.
+     *
+     * @return next element
+     */
+    @SuppressWarnings("unchecked")
+    private T take()
+    {
+        if (headIndex == CHUNK_SIZE) {
+            headChunk = headChunk.next;
+            headIndex = 0;
+        }
+
+        T elem = (T) headChunk.slots[headIndex];
+        headChunk.slots[headIndex++] = null;
+        return elem;
+    }
+
+    /**
+     * Debugging string
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "LeafQueue*" + size();
+    }
+
+    /**
+     * Fixed-size block of queued elements
+     */
+    private static class Chunk
+    {
+        private Object[] slots = new Object[CHUNK_SIZE];
+        private volatile Chunk next;
+    }
+}
@@ -4,17 +4,39 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
+
+import icecube.daq.merge.LongKeyComparator;
 
 public class Node<T>
 {
+    /** Initial number of slots in the element buffer (must be a power of 2) */
+    private static final int INITIAL_CAPACITY = 16;
+
     private Comparator<T>    cmp;
+    /** Comparator used to read keys (<tt>null</tt> if elements aren't keyed) */
+    private LongKeyComparator<T> keyCmp;
 
     private Node<T>          sink;
     private Node<T>          peer;
-    private LinkedList<T>    list;
     private String           myName;
-    private T                val;
+
+    /**
+     * Circular element buffer.  Slots are reused as elements are pushed
+     * and popped, and the buffer doubles in size when it fills up.
+     */
+    private Object[]         ring;
+    /**
+     * Sort key for each slot in the element buffer (<tt>null</tt> if
+     * elements aren't keyed).  Keys are read once when an element enters
+     * the tree and travel with it from node to node.
+     */
+    private long[]           keys;
+    /** Index of the head element */
+    private int              first;
+    /** Number of buffered elements */
+    private int              count;
+    /** Lower bound on all elements which will be added in the future */
+    private T                mark;
 
     /**
      * Two argument constructor for node specifying comparison class and
@@ -25,8 +47,13 @@ public class Node<T>
     {
         this.cmp    = cmp;
 
-        list        = new LinkedList<T>();
+        ring        = new Object[INITIAL_CAPACITY];
         myName      = "";
+
+        if (cmp instanceof LongKeyComparator) {
+            keyCmp  = (LongKeyComparator<T>) cmp;
+            keys    = new long[INITIAL_CAPACITY];
+        }
     }
 
     public Node<T> peer()
@@ -51,12 +78,12 @@ public class Node<T>
 
     public boolean isEmpty()
     {
-        return val == null;
+        return count == 0;
     }
 
     public int depth()
     {
-        return (val == null ? 0 : list.size() + 1);
+        return count;
     }
 
     public void setName(String name)
@@ -69,13 +96,22 @@ public class Node<T>
          return myName;
     }
 
+    @SuppressWarnings("unchecked")
     public T head()
     {
-         return val;
+         return (T) ring[first];
     }
 
     public int compare()
     {
+        if (keys != null && peer.keys != null) {
+            final long mine = keys[first];
+            final long theirs = peer.keys[peer.first];
+            if (mine != theirs) {
+                return mine < theirs ? -1 : 1;
+            }
+        }
+
         return cmp.compare(head(), peer.head());
     }
 
@@ -84,22 +120,127 @@ public class Node<T>
         return cmp;
     }
 
+    /**
+     * Get the watermark for this node.
+     *
+     * @return lower bound on future elements (<tt>null</tt> if unknown)
+     */
+    public T getMark()
+    {
+        return mark;
+    }
+
+    /**
+     * Get the smallest element this node could still hand to its sink.
+     *
+     * @return head element if there is one, otherwise the watermark
+     *         (<tt>null</tt> if nothing is known)
+     */
+    private T lowerBound()
+    {
+        if (count > 0) {
+            return head();
+        }
+
+        return mark;
+    }
+
+    /**
+     * Promise that no element smaller than <tt>value</tt> will be pushed
+     * into this node, then move any data which was only waiting on this
+     * node.  Watermarks never move backward, so an older mark is ignored.
+     *
+     * @param value lower bound on all future elements
+     */
+    public void pushMark(T value)
+    {
+        raiseMark(value);
+        checkList();
+    }
+
+    /**
+     * Raise the watermark.
+     *
+     * @param value new lower bound on all future elements
+     *
+     * @return <tt>true</tt> if the watermark was raised
+     */
+    private boolean raiseMark(T value)
+    {
+        if (value == null) {
+            throw new Error("Cannot push null watermark");
+        }
+
+        if (mark != null && cmp.compare(value, mark) <= 0) {
+            return false;
+        }
+
+        mark = value;
+        return true;
+    }
+
+    /**
+     * Can <tt>value</tt> be handed to the sink without waiting for this
+     * (empty) node to get more data?  Data wins ties with the watermark.
+     *
+     * @param value head of the peer node
+     *
+     * @return <tt>true</tt> if no future element can sort before
+     *         <tt>value</tt>
+     */
+    private boolean isReleasedBy(T value)
+    {
+        return mark != null && cmp.compare(value, mark) <= 0;
+    }
+
     /**
      * Push data into this node.
      *
      * @param element data to be pushed
      */
     public void push(T element)
+    {
+        add(element);
+        checkList();
+    }
+
+    /**
+     * Add data to this node without moving anything into the sink.  Callers
+     * adding a batch of data should call {@link #checkList()} once after
+     * the last element has been added.
+     *
+     * @param element data to be added
+     */
+    void add(T element)
     {
         if (element == null) {
             throw new Error("Cannot push null value");
         }
-        if (val == null) {
-            val = element;
+
+        if (keyCmp == null) {
+            add(element, 0L);
         } else {
-            list.add(element);
+            add(element, keyCmp.key(element));
         }
-        checkList();
+    }
+
+    /**
+     * Add data and its previously computed sort key to this node.
+     *
+     * @param element data to be added
+     * @param key sort key (ignored if elements aren't keyed)
+     */
+    private void add(T element, long key)
+    {
+        if (count == ring.length) {
+            grow();
+        }
+        final int idx = (first + count) & (ring.length - 1);
+        ring[idx] = element;
+        if (keys != null) {
+            keys[idx] = key;
+        }
+        count++;
     }
 
     /**
@@ -112,36 +253,112 @@ public class Node<T>
         return !isEmpty() && !peer.isEmpty();
     }
 
+    /**
+     * Move as much data as possible into the sink, then let the sink do
+     * the same.  Everything which can move is moved one level at a time,
+     * so a batch only cascades through the tree once.
+     * <p>
+     * An empty node whose watermark is at or above the head of its peer
+     * does not hold the peer back, and the lower of the two nodes' bounds
+     * is passed on to the sink as its watermark.
+     */
     public void checkList()
     {
         if (sink == null) {
             return;
         }
-        while (isDataAvailable()) {
+
+        boolean moved = false;
+        while (true) {
             final Node<T> src;
-            if (compare() > 0) {
+            if (isDataAvailable()) {
+                if (compare() > 0) {
+                    src = peer;
+                } else {
+                    src = this;
+                }
+            } else if (!isEmpty() && peer.isReleasedBy(head())) {
+                src = this;
+            } else if (!peer.isEmpty() && isReleasedBy(peer.head())) {
                 src = peer;
             } else {
-                src = this;
+                break;
+            }
+
+            final long key;
+            if (src.keys == null) {
+                key = 0L;
+            } else {
+                key = src.keys[src.first];
             }
 
-            sink.push(src.pop());
+            sink.add(src.pop(), key);
+            moved = true;
         }
+
+        final boolean marked = updateSinkMark();
+        if (moved || marked) {
+            sink.checkList();
+        }
+    }
+
+    /**
+     * Double the size of the element buffer.
+     */
+    private void grow()
+    {
+        Object[] bigger = new Object[ring.length * 2];
+        final int tail = ring.length - first;
+        System.arraycopy(ring, first, bigger, 0, tail);
+        System.arraycopy(ring, 0, bigger, tail, first);
+        ring = bigger;
+
+        if (keys != null) {
+            long[] biggerKeys = new long[bigger.length];
+            System.arraycopy(keys, first, biggerKeys, 0, tail);
+            System.arraycopy(keys, 0, biggerKeys, tail, first);
+            keys = biggerKeys;
+        }
+
+        first = 0;
+    }
+
+    /**
+     * Raise the sink's watermark to the lower of this node's and its
+     * peer's bounds.
+     *
+     * @return <tt>true</tt> if the sink's watermark was raised
+     */
+    private boolean updateSinkMark()
+    {
+        final T mine = lowerBound();
+        if (mine == null) {
+            return false;
+        }
+
+        final T theirs = peer.lowerBound();
+        if (theirs == null) {
+            return false;
+        }
+
+        if (cmp.compare(mine, theirs) <= 0) {
+            return sink.raiseMark(mine);
+        }
+
+        return sink.raiseMark(theirs);
     }
 
+    @SuppressWarnings("unchecked")
     public T pop()
     {
-        T rval;
-        if (isEmpty()) {
-            rval = null;
-        } else {
-            rval = val;
-            if (list.size() > 0) {
-                val = list.removeFirst();
-            } else {
-                val = null;
-            }
+        if (count == 0) {
+            return null;
         }
+
+        T rval = (T) ring[first];
+        ring[first] = null;
+        first = (first + 1) & (ring.length - 1);
+        count--;
         return rval;
     }
 
@@ -150,8 +367,11 @@ public class Node<T>
      */
     public void clear()
     {
-        list.clear();
-        val = null;
+        while (count > 0) {
+            pop();
+        }
+        first = 0;
+        mark = null;
     }
 
     @Override
@@ -0,0 +1,18 @@
+package icecube.daq.merge;
+
+/**
+ * What to do about an input which has been holding back data from all the
+ * other inputs for too long.
+ */
+public enum LagPolicy
+{
+    /** Log a warning and keep waiting */
+    ALERT,
+    /**
+     * Stop waiting until the input supplies more data.  Data which arrives
+     * after the merge has moved past it is late and is dropped.
+     */
+    SKIP,
+    /** Close the input and throw away anything it still has queued */
+    CLOSE
+}
@@ -0,0 +1,25 @@
+package icecube.daq.merge;
+
+import java.util.Comparator;
+
+/**
+ * Comparator for objects which are ordered by a single <tt>long</tt> key,
+ * such as a UTC time.
+ * <p>
+ * Merge structures which are given one of these read each object's key
+ * once, when the object is added, and compare the raw keys.
+ * <tt>compare()</tt> is only called to break ties between equal keys.
+ */
+public interface LongKeyComparator<T>
+    extends Comparator<T>
+{
+    /**
+     * Get the sort key for an object.  If <tt>key(a) &lt; key(b)</tt> then
+     * <tt>compare(a, b)</tt> must be negative.
+     *
+     * @param obj object
+     *
+     * @return sort key
+     */
+    long key(T obj);
+}
@@ -0,0 +1,390 @@
+package icecube.daq.merge;
+
+import java.util.Comparator;
+
+/**
+ * Tournament ("loser") tree used to merge a fixed number of ordered sources.
+ * <p>
+ * The tree only holds the current head of each source.  Internal nodes
+ * remember the loser of the match played at that node and the overall
+ * winner is kept at the top, so replacing the winner's value only needs
+ * to replay the matches on the path from its leaf to the root
+ * (about log2(N) comparisons) and no data is copied between levels.
+ * <p>
+ * Each source is in one of four states:
+ * <ul>
+ * <li><b>empty</b> - the source has no data yet.  Empty sources sort
+ *     before everything else so the tree stalls on them until they are
+ *     refilled.</li>
+ * <li><b>data</b> - the source's head is ordered using the comparator.</li>
+ * <li><b>marked</b> - the source has no data but has promised that nothing
+ *     lower than its watermark will follow.  The watermark is ordered like
+ *     data, losing ties against real data, and a marked winner must not be
+ *     emitted.</li>
+ * <li><b>done</b> - the source is finished.  Done sources sort after
+ *     everything else.</li>
+ * </ul>
+ * After {@link #build()} has been called, only the winning source may be
+ * changed.
+ * <p>
+ * If the comparator is a {@link LongKeyComparator}, each value's key is
+ * read once when it is set and matches compare the raw keys, only calling
+ * the comparator when the keys are equal.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class LoserTree<T>
+{
+    /** Source has no data and will stall the merge */
+    private static final byte EMPTY = 0;
+    /** Source has a value */
+    private static final byte DATA = 1;
+    /** Source has a watermark but no value */
+    private static final byte MARK = 2;
+    /** Source has finished */
+    private static final byte DONE = 3;
+
+    private Comparator<T> cmp;
+    /** Comparator used to read keys (<tt>null</tt> if values aren't keyed) */
+    private LongKeyComparator<T> keyCmp;
+
+    private int size;
+    private int[] tree;
+    private Object[] values;
+    private byte[] states;
+    /** Key of each source's value (<tt>null</tt> if values aren't keyed) */
+    private long[] keys;
+
+    /**
+     * Create a loser tree
+     *
+     * @param size number of sources
+     * @param cmp comparator used to order source values
+     */
+    public LoserTree(int size, Comparator<T> cmp)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("Tree must have at least" +
+                                               " one source");
+        }
+
+        this.size = size;
+        this.cmp = cmp;
+
+        tree = new int[size];
+        values = new Object[size];
+        states = new byte[size];
+
+        if (cmp instanceof LongKeyComparator) {
+            keyCmp = (LongKeyComparator<T>) cmp;
+            keys = new long[size];
+        }
+    }
+
+    /**
+     * Does source <tt>a</tt> win its match against source <tt>b</tt>?
+     *
+     * @param a first source
+     * @param b second source
+     *
+     * @return <tt>true</tt> if <tt>a</tt> sorts before <tt>b</tt>
+     */
+    @SuppressWarnings("unchecked")
+    private boolean beats(int a, int b)
+    {
+        final byte sa = states[a];
+        final byte sb = states[b];
+
+        if (sa == EMPTY || sa == DONE || sb == EMPTY || sb == DONE) {
+            if (sa != sb) {
+                // empty beats everything, done loses to everything
+                return sa == EMPTY || sb == DONE;
+            }
+        } else {
+            if (keys != null) {
+                final long ka = keys[a];
+                final long kb = keys[b];
+                if (ka != kb) {
+                    return ka < kb;
+                }
+            }
+
+            final int val = cmp.compare((T) values[a], (T) values[b]);
+            if (val != 0) {
+                return val < 0;
+            }
+
+            if (sa != sb) {
+                // data can be emitted before an equal watermark
+                return sa == DATA;
+            }
+        }
+
+        // break ties using the source index so the merge is stable
+        return a < b;
+    }
+
+    /**
+     * Compute the winners of all matches.  This must be called after all
+     * initial source values have been set.
+     */
+    public void build()
+    {
+        if (size == 1) {
+            tree[0] = 0;
+            return;
+        }
+
+        int[] winners = new int[size];
+        for (int node = size - 1; node > 0; node--) {
+            final int left = childWinner(winners, node * 2);
+            final int right = childWinner(winners, node * 2 + 1);
+
+            if (beats(right, left)) {
+                winners[node] = right;
+                tree[node] = left;
+            } else {
+                winners[node] = left;
+                tree[node] = right;
+            }
+        }
+
+        tree[0] = winners[1];
+    }
+
+    /**
+     * Return the winner of the subtree rooted at <tt>node</tt>.
+     *
+     * @param winners winners computed so far
+     * @param node tree node (nodes <tt>size</tt> and above are leaves)
+     *
+     * @return source index
+     */
+    private int childWinner(int[] winners, int node)
+    {
+        if (node >= size) {
+            return node - size;
+        }
+
+        return winners[node];
+    }
+
+    /**
+     * Mark the winning source as finished and pick a new winner.
+     */
+    public void finish()
+    {
+        final int src = tree[0];
+        values[src] = null;
+        states[src] = DONE;
+        replay(src);
+    }
+
+    /**
+     * Is the winning source finished?  If so, all sources are finished.
+     *
+     * @return <tt>true</tt> if the winner is finished
+     */
+    public boolean isWinnerDone()
+    {
+        return states[tree[0]] == DONE;
+    }
+
+    /**
+     * Is the winning source empty?
+     *
+     * @return <tt>true</tt> if the merge is stalled on the winning source
+     */
+    public boolean isWinnerEmpty()
+    {
+        return states[tree[0]] == EMPTY;
+    }
+
+    /**
+     * Is the winning source marked?  If so, nothing can be emitted until it
+     * supplies data or a higher watermark.
+     *
+     * @return <tt>true</tt> if the winner only has a watermark
+     */
+    public boolean isWinnerMarked()
+    {
+        return states[tree[0]] == MARK;
+    }
+
+    /**
+     * Replace the winning source's value with a watermark and pick a new
+     * winner.
+     *
+     * @param mark watermark
+     */
+    public void mark(T mark)
+    {
+        final int src = tree[0];
+        setValue(src, mark);
+        states[src] = MARK;
+        replay(src);
+    }
+
+    /**
+     * Replace the winning source's value and pick a new winner.
+     *
+     * @param val new value
+     */
+    public void replace(T val)
+    {
+        final int src = tree[0];
+        setValue(src, val);
+        states[src] = DATA;
+        replay(src);
+    }
+
+    /**
+     * Replay all matches on the path from a source's leaf to the root.
+     *
+     * @param src source whose value changed
+     */
+    private void replay(int src)
+    {
+        int winner = src;
+        for (int node = (src + size) / 2; node > 0; node /= 2) {
+            if (beats(tree[node], winner)) {
+                final int tmp = tree[node];
+                tree[node] = winner;
+                winner = tmp;
+            }
+        }
+
+        tree[0] = winner;
+    }
+
+    /**
+     * Set the initial value for a source.
+     *
+     * @param src source index
+     * @param val initial value
+     */
+    public void setData(int src, T val)
+    {
+        setValue(src, val);
+        states[src] = DATA;
+    }
+
+    /**
+     * Mark a source as initially done.
+     *
+     * @param src source index
+     */
+    public void setDone(int src)
+    {
+        values[src] = null;
+        states[src] = DONE;
+    }
+
+    /**
+     * Set the initial watermark for a source.
+     *
+     * @param src source index
+     * @param mark initial watermark
+     */
+    public void setMark(int src, T mark)
+    {
+        setValue(src, mark);
+        states[src] = MARK;
+    }
+
+    /**
+     * Mark a source as initially empty.
+     *
+     * @param src source index
+     */
+    public void setEmpty(int src)
+    {
+        values[src] = null;
+        states[src] = EMPTY;
+    }
+
+    /**
+     * Store a source's value and its key
+     *
+     * @param src source index
+     * @param val data value or watermark
+     */
+    private void setValue(int src, T val)
+    {
+        values[src] = val;
+        if (keys != null) {
+            keys[src] = keyCmp.key(val);
+        }
+    }
+
+    /**
+     * Get the number of sources
+     *
+     * @return number of sources
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Mark the winning source as empty.  Since empty sources sort before
+     * everything else, it will remain the winner until it is refilled.
+     */
+    public void stall()
+    {
+        final int src = tree[0];
+        values[src] = null;
+        states[src] = EMPTY;
+        replay(src);
+    }
+
+    /**
+     * Get the index of the winning source
+     *
+     * @return source index
+     */
+    public int winner()
+    {
+        return tree[0];
+    }
+
+    /**
+     * Get the key of the winning source's value.  This is only meaningful
+     * if the comparator is a {@link LongKeyComparator} and the winner has
+     * data or a watermark.
+     *
+     * @return sort key
+     */
+    public long winnerKey()
+    {
+        if (keys == null) {
+            throw new IllegalStateException("Values are not keyed");
+        }
+
+        return keys[tree[0]];
+    }
+
+    /**
+     * Get the winning source's value
+     *
+     * @return current lowest value (<tt>null</tt> if the winner has no data,
+     *         or the watermark if the winner is marked)
+     */
+    @SuppressWarnings("unchecked")
+    public T winnerValue()
+    {
+        return (T) values[tree[0]];
+    }
+
+    /**
+     * Debugging string
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "LoserTree[" + size + " sources, winner " + tree[0] + "]";
+    }
+}
@@ -17,6 +17,11 @@ class SorterMonitor
     // if we're running more than 20 times per interval
     private static final int MAX_CHECK_FREQUENCY = 20;
 
+    // bounds used when chunk size is chosen to meet a latency target
+    private static final int MIN_LATENCY_CHUNK = 16;
+    private static final int MAX_LATENCY_CHUNK = 1 << 20;
+    private static final long MIN_HOLD_NANOS = 100000L;
+
     private Sorter sorter;
 
     private int maxChunkSize = Integer.MIN_VALUE;
@@ -53,6 +58,11 @@ class SorterMonitor
      */
     void monitor()
     {
+        if (sorter.getLatencyTarget() > 0) {
+            monitorLatency();
+            return;
+        }
+
         // chunk size cannot exceed 30 times original size
         if (maxChunkSize == Integer.MIN_VALUE) {
             maxChunkSize = sorter.getChunkSize() * 30;
@@ -90,6 +100,61 @@ class SorterMonitor
         }
     }
 
+    /**
+     * Pick a chunk size which keeps the 99th percentile latency under the
+     * sorter's target.  If the target is missed, the chunk size is halved
+     * so data reaches the consumer sooner.  If latency is well under the
+     * target, the chunk size grows by 10% so each check sorts more data.
+     * If the sorter has a maximum hold time, it is adjusted the same way
+     * but never exceeds the target.
+     */
+    void monitorLatency()
+    {
+        final LatencyTracker tracker = sorter.getLatencyTracker();
+        if (tracker == null) {
+            return;
+        }
+
+        final long p99 = tracker.measureP99();
+        if (p99 < 0) {
+            // not enough samples, make sure queued data isn't stuck
+            if (sorter.getNumQueued() > 0) {
+                sorter.check(false);
+            }
+            return;
+        }
+
+        final long target = sorter.getLatencyTarget();
+        final int chunkSize = sorter.getChunkSize();
+
+        int newChunk = chunkSize;
+        if (p99 > target) {
+            newChunk = Math.max(chunkSize / 2, MIN_LATENCY_CHUNK);
+        } else if (p99 < target / 2) {
+            newChunk = Math.min(chunkSize + Math.max(chunkSize / 10, 1),
+                                MAX_LATENCY_CHUNK);
+        }
+
+        if (newChunk != chunkSize) {
+            sorter.setChunkSize(newChunk);
+            tracker.recordChange(newChunk > chunkSize);
+        }
+
+        final long hold = sorter.getMaxHoldTime();
+        if (hold > 0) {
+            long newHold = hold;
+            if (p99 > target) {
+                newHold = Math.max(hold / 2, Math.min(hold, MIN_HOLD_NANOS));
+            } else if (p99 < target / 2) {
+                newHold = Math.min(hold + Math.max(hold / 10, 1L), target);
+            }
+
+            if (newHold != hold) {
+                sorter.setMaxHoldTime(newHold);
+            }
+        }
+    }
+
     /**
      * Return the difference between the previous number of checks and
      * the current number
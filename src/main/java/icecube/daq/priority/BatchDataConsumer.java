@@ -0,0 +1,26 @@
+package icecube.daq.priority;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Consume data in batches.
+ * <p>
+ * A Sorter whose consumer implements this interface collects merged data
+ * (up to the Sorter's chunk size) and hands it over in a single call
+ * instead of calling {@link #consume(Object)} once per object.
+ */
+public interface BatchDataConsumer<T>
+    extends DataConsumer<T>
+{
+    /**
+     * Consume a batch of ordered data.  The list is reused by the Sorter,
+     * so it must not be modified or kept after this method returns.
+     *
+     * @param data list of data
+     *
+     * @throws IOException if the data could not be consumed
+     */
+    void consumeBatch(List<T> data)
+        throws IOException;
+}
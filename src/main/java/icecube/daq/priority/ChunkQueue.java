@@ -0,0 +1,160 @@
+package icecube.daq.priority;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded single-producer/single-consumer queue used to hand sorted data
+ * from a SubSorter to the main Sorter.
+ * <p>
+ * Objects are stored in linked fixed-size arrays.  The producer adds any
+ * number of objects and then makes all of them visible with a single
+ * volatile write in {@link #publish()}.  The consumer reads published objects
+ * without any further synchronization and hands each empty array back to
+ * the producer, so a queue in steady state allocates nothing.
+ * <p>
+ * The consumer may be several threads as long as they take turns under a
+ * common lock, which is how the Sorter uses it.
+ */
+public class ChunkQueue<T>
+{
+    /** Number of objects stored in each array */
+    private static final int CHUNK_SIZE = 1024;
+
+    /** Number of objects made visible to the consumer */
+    private AtomicLong published = new AtomicLong();
+    /** Number of objects removed by the consumer */
+    private AtomicLong consumed = new AtomicLong();
+
+    /** Empty array handed back by the consumer */
+    private AtomicReference<Chunk> spare = new AtomicReference<Chunk>();
+
+    // producer-only fields
+    private Chunk tailChunk;
+    private int tailIndex;
+    private long written;
+
+    // consumer-only fields
+    private Chunk headChunk;
+    private int headIndex;
+    private long readLimit;
+
+    /**
+     * Create an empty queue
+     */
+    public ChunkQueue()
+    {
+        tailChunk = new Chunk();
+        headChunk = tailChunk;
+    }
+
+    /**
+     * Add an object to the queue without making it visible to the consumer.
+     * Must only be called by the producer.
+     *
+     * @param elem object to add
+     */
+    public void add(T elem)
+    {
+        if (tailIndex == CHUNK_SIZE) {
+            Chunk chunk = spare.getAndSet(null);
+            if (chunk == null) {
+                chunk = new Chunk();
+            }
+
+            tailChunk.next = chunk;
+            tailChunk = chunk;
+            tailIndex = 0;
+        }
+
+        tailChunk.slots[tailIndex++] = elem;
+        written++;
+    }
+
+    /**
+     * Are there any published objects?  Must only be called by the consumer.
+     *
+     * @return <tt>true</tt> if there is nothing to consume
+     */
+    public boolean isEmpty()
+    {
+        final long read = consumed.get();
+        if (read < readLimit) {
+            return false;
+        }
+
+        readLimit = published.get();
+        return read == readLimit;
+    }
+
+    /**
+     * Remove the next published object.  Must only be called by the consumer.
+     *
+     * @return next object (<tt>null</tt> if nothing has been published)
+     */
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        if (isEmpty()) {
+            return null;
+        }
+
+        if (headIndex == CHUNK_SIZE) {
+            Chunk empty = headChunk;
+            headChunk = empty.next;
+            headIndex = 0;
+
+            // hand the empty array back to the producer
+            empty.next = null;
+            spare.compareAndSet(null, empty);
+        }
+
+        T elem = (T) headChunk.slots[headIndex];
+        headChunk.slots[headIndex++] = null;
+        consumed.lazySet(consumed.get() + 1);
+        return elem;
+    }
+
+    /**
+     * Make all added objects visible to the consumer.  Must only be called
+     * by the producer.
+     */
+    public void publish()
+    {
+        if (written != published.get()) {
+            published.set(written);
+        }
+    }
+
+    /**
+     * Get the number of published objects which have not been consumed
+     *
+     * @return number of objects
+     */
+    public int size()
+    {
+        // read the consumer count first so the result is never negative
+        final long read = consumed.get();
+        return (int) (published.get() - read);
+    }
+
+    /**
+     * Debugging string
+     *
+     * @return debugging string
+     */
+    @Override
+    public String toString()
+    {
+        return "ChunkQueue*" + size();
+    }
+
+    /**
+     * Fixed-size block of queued objects
+     */
+    private static class Chunk
+    {
+        private Object[] slots = new Object[CHUNK_SIZE];
+        private Chunk next;
+    }
+}
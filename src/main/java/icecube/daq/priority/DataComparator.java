@@ -2,6 +2,8 @@ package icecube.daq.priority;
 
 import java.util.Comparator;
 
+import icecube.daq.merge.LongKeyComparator;
+
 /**
  * Compare wrapped data objects
  */
@@ -9,6 +11,8 @@ class DataComparator<T>
     implements Comparator<DataWrapper<T>>
 {
     private Comparator<T> comp;
+    /** <tt>true</tt> if the comparator orders data by a <tt>long</tt> key */
+    private boolean keyed;
 
     /**
      * Create a wrapper data comparator
@@ -25,6 +29,7 @@ class DataComparator<T>
         }
 
         this.comp = comp;
+        this.keyed = comp instanceof LongKeyComparator;
     }
 
     /**
@@ -38,6 +43,25 @@ class DataComparator<T>
         return comp.compare(a, b);
     }
 
+    /**
+     * Compare raw data using previously computed sort keys.  The keys are
+     * ignored unless the comparator is a {@link LongKeyComparator}, and the
+     * comparator is only called if the keys are equal.
+     *
+     * @param a first object
+     * @param aKey first object's sort key
+     * @param b second object
+     * @param bKey second object's sort key
+     */
+    public int compareData(T a, long aKey, T b, long bKey)
+    {
+        if (keyed && aKey != bKey) {
+            return aKey < bKey ? -1 : 1;
+        }
+
+        return comp.compare(a, b);
+    }
+
     /**
      * Compare wrapped data
      *
@@ -49,4 +73,14 @@ class DataComparator<T>
     {
         return comp.compare(a.data(), b.data());
     }
+
+    /**
+     * Does the comparator order data by a <tt>long</tt> key?
+     *
+     * @return <tt>true</tt> if data has sort keys
+     */
+    public boolean isKeyed()
+    {
+        return keyed;
+    }
 }
@@ -0,0 +1,169 @@
+package icecube.daq.priority;
+
+import java.util.Arrays;
+
+/**
+ * Measure how long sampled objects take to get from a SortInput to the
+ * consumer, and remember what the chunk size controller did about it.
+ * <p>
+ * Only one object is tracked at a time.  Inputs offer an object every
+ * <tt>sampleInterval</tt> puts and the Sorter compares each object it
+ * hands to the consumer against the tracked object, which costs a single
+ * volatile read per object.
+ */
+class LatencyTracker
+{
+    /** Default number of objects put into each input between samples */
+    static final int DEFAULT_SAMPLE_INTERVAL = 1024;
+
+    /** Give up on a sample which hasn't been seen after this long */
+    private static final long MAX_SAMPLE_AGE_NANOS = 10000000000L;
+    /** Maximum number of samples kept between measurements */
+    private static final int MAX_SAMPLES = 1024;
+    /** Minimum number of samples needed to compute a percentile */
+    static final int MIN_SAMPLES = 10;
+
+    private volatile int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+    /** Object currently being timed */
+    private volatile Object pending;
+    /** Time at which the pending object was put into its input */
+    private long pendingNanos;
+
+    private long[] samples = new long[MAX_SAMPLES];
+    private int numSamples;
+
+    /** Most recent 99th percentile latency */
+    private volatile long lastP99 = -1L;
+    private volatile long numIncreases;
+    private volatile long numDecreases;
+
+    /**
+     * An object is being handed to the consumer
+     *
+     * @param data object
+     */
+    void consumed(Object data)
+    {
+        if (data == pending) {
+            final long now = System.nanoTime();
+            synchronized (this) {
+                if (data == pending) {
+                    if (numSamples < MAX_SAMPLES) {
+                        samples[numSamples++] = now - pendingNanos;
+                    }
+                    pending = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of chunk size decreases
+     *
+     * @return number of decreases
+     */
+    long getNumDecreases()
+    {
+        return numDecreases;
+    }
+
+    /**
+     * Get the number of chunk size increases
+     *
+     * @return number of increases
+     */
+    long getNumIncreases()
+    {
+        return numIncreases;
+    }
+
+    /**
+     * Get the most recently measured 99th percentile latency
+     *
+     * @return number of nanoseconds (<tt>-1</tt> if nothing was measured)
+     */
+    long getP99()
+    {
+        return lastP99;
+    }
+
+    /**
+     * Get the number of objects put into each input between samples
+     *
+     * @return sample interval
+     */
+    int getSampleInterval()
+    {
+        return sampleInterval;
+    }
+
+    /**
+     * Compute the 99th percentile of the samples taken since the previous
+     * call and discard them.
+     *
+     * @return number of nanoseconds (<tt>-1</tt> if there were not enough
+     *         samples)
+     */
+    long measureP99()
+    {
+        long[] copy;
+        synchronized (this) {
+            if (numSamples < MIN_SAMPLES) {
+                return -1L;
+            }
+
+            copy = Arrays.copyOf(samples, numSamples);
+            numSamples = 0;
+        }
+
+        Arrays.sort(copy);
+
+        final int idx = (int) Math.ceil(copy.length * 0.99) - 1;
+        lastP99 = copy[Math.max(idx, 0)];
+        return lastP99;
+    }
+
+    /**
+     * Start timing an object unless another object is still being timed.
+     * Must be called before the object is queued.
+     *
+     * @param data object
+     */
+    void offer(Object data)
+    {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            if (pending != null && now - pendingNanos < MAX_SAMPLE_AGE_NANOS) {
+                return;
+            }
+
+            pendingNanos = now;
+            pending = data;
+        }
+    }
+
+    /**
+     * Remember that the controller changed the chunk size
+     *
+     * @param increased <tt>true</tt> if the chunk size was increased
+     */
+    void recordChange(boolean increased)
+    {
+        if (increased) {
+            numIncreases++;
+        } else {
+            numDecreases++;
+        }
+    }
+
+    /**
+     * Set the number of objects put into each input between samples
+     *
+     * @param val sample interval
+     */
+    void setSampleInterval(int val)
+    {
+        sampleInterval = val;
+    }
+}
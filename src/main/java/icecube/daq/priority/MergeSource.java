@@ -0,0 +1,55 @@
+package icecube.daq.priority;
+
+/**
+ * Sorted data which is merged by the next level of a Sorter
+ */
+interface MergeSource<T>
+{
+    /**
+     * Get a value which nothing this source sends from now on can be lower
+     * than.  This lets the next level move past a source which has no data
+     * queued.  The next level must read this <em>before</em> checking the
+     * queue, since data published before the bound was set may be lower.
+     *
+     * @return lower bound (<tt>null</tt> if nothing is known yet)
+     */
+    T getLowerBound();
+
+    /**
+     * Get number of objects ready to be merged
+     *
+     * @return number of queued objects
+     */
+    int getQueueSize();
+
+    /**
+     * Is this source still producing data?
+     *
+     * @return <tt>false</tt> if this source has sent its end-of-stream marker
+     */
+    boolean isActiveQueue();
+
+    /**
+     * Is there data waiting to be merged?  Must only be called by the next
+     * level.
+     *
+     * @return <tt>true</tt> if there is nothing to merge
+     */
+    boolean isEmptyQueue();
+
+    /**
+     * Get the next available data object.  Must only be called by the next
+     * level.
+     *
+     * @return data (<tt>null</tt> if there is nothing to merge)
+     */
+    T pollQueue();
+
+    /**
+     * Set the next level, which is told whenever new data is available.
+     * This must be set before the source is started.
+     *
+     * @param target next level
+     */
+    void setTarget(MergeTarget target);
+}
@@ -0,0 +1,306 @@
+package icecube.daq.priority;
+
+import icecube.daq.merge.LoserTree;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Intermediate level of a Sorter which merges several sources on its own
+ * thread and hands the result to the next level.
+ */
+class MergeStage<T>
+    implements MergeSource<T>, MergeTarget, Runnable
+{
+    /** Log message handler */
+    private static final Logger LOG = Logger.getLogger(MergeStage.class);
+
+    /** Longest time to sleep before checking sources on our own */
+    private static final long WAIT_NANOS = 100000000L;
+
+    private String name;
+    private Comparator<T> comp;
+    private T eos;
+
+    private List<MergeSource<T>> sources;
+    private MergeTarget target;
+
+    private ChunkQueue<T> outputQueue = new ChunkQueue<T>();
+    private volatile boolean active = true;
+
+    /** Nothing sent from now on can be lower than this */
+    private volatile T lowerBound;
+
+    /** Set when a source has published new data */
+    private volatile boolean requested;
+    /** Number of objects currently held by the tree */
+    private volatile int numHeld;
+    private long outputCount;
+
+    private Thread thread;
+
+    /**
+     * Create a merge stage
+     *
+     * @param name name (used in error messages)
+     * @param comp comparison function used to sort data
+     * @param eos end-of-stream marker
+     */
+    MergeStage(String name, Comparator<T> comp, T eos)
+    {
+        this.name = name;
+        this.comp = comp;
+        this.eos = eos;
+
+        sources = new ArrayList<MergeSource<T>>();
+    }
+
+    /**
+     * Add a source.  This must be called before the stage is started.
+     *
+     * @param src new source
+     */
+    void add(MergeSource<T> src)
+    {
+        src.setTarget(this);
+        sources.add(src);
+    }
+
+    /**
+     * Wake the merge thread
+     *
+     * @param finalCheck ignored
+     */
+    @Override
+    public void check(boolean finalCheck)
+    {
+        requested = true;
+
+        final Thread thrd = thread;
+        if (thrd != null) {
+            LockSupport.unpark(thrd);
+        }
+    }
+
+    @Override
+    public T getLowerBound()
+    {
+        return lowerBound;
+    }
+
+    /**
+     * Get number of objects merged by this stage
+     *
+     * @return number of outputs
+     */
+    long getOutputCount()
+    {
+        return outputCount;
+    }
+
+    @Override
+    public int getQueueSize()
+    {
+        return outputQueue.size() + numHeld;
+    }
+
+    @Override
+    public boolean isActiveQueue()
+    {
+        return active;
+    }
+
+    /**
+     * Is the merge thread active?
+     *
+     * @return <tt>true</tt> if the thread is alive
+     */
+    boolean isAlive()
+    {
+        return thread != null && thread.isAlive();
+    }
+
+    @Override
+    public boolean isEmptyQueue()
+    {
+        return outputQueue.isEmpty();
+    }
+
+    /**
+     * Wait for the merge thread to finish
+     *
+     * @param millis milliseconds to wait
+     *
+     * @throws InterruptedException if we were awoken before the thread ended
+     */
+    void join(long millis)
+        throws InterruptedException
+    {
+        if (thread != null) {
+            thread.join(millis);
+        }
+    }
+
+    /**
+     * Merge as much data as possible
+     *
+     * @param tree tree holding the current head of each source
+     *
+     * @return <tt>true</tt> if all sources have finished
+     */
+    private boolean merge(LoserTree<T> tree)
+    {
+        while (true) {
+            if (tree.isWinnerDone()) {
+                return true;
+            }
+
+            final MergeSource<T> src = sources.get(tree.winner());
+
+            if (tree.isWinnerEmpty() || tree.isWinnerMarked()) {
+                // read the bound first so it can't be newer than the queue
+                final T bound = src.getLowerBound();
+
+                T newPt = src.pollQueue();
+                if (newPt == null) {
+                    if (raiseMark(tree, bound)) {
+                        continue;
+                    }
+
+                    // wait for this source to supply more data
+                    return false;
+                }
+
+                numHeld++;
+                refill(tree, newPt);
+                continue;
+            }
+
+            outputQueue.add(tree.winnerValue());
+            outputCount++;
+
+            T newPt = src.pollQueue();
+            if (newPt != null) {
+                refill(tree, newPt);
+            } else {
+                tree.stall();
+                numHeld--;
+            }
+        }
+    }
+
+    @Override
+    public T pollQueue()
+    {
+        return outputQueue.poll();
+    }
+
+    /**
+     * If the winning source has no data, let the others continue up to its
+     * lower bound.
+     *
+     * @param tree merge tree
+     * @param bound winning source's lower bound (may be <tt>null</tt>)
+     *
+     * @return <tt>false</tt> if the bound doesn't let the merge move on
+     */
+    private boolean raiseMark(LoserTree<T> tree, T bound)
+    {
+        if (bound == null || (tree.isWinnerMarked() &&
+                              comp.compare(bound, tree.winnerValue()) <= 0))
+        {
+            return false;
+        }
+
+        tree.mark(bound);
+        return true;
+    }
+
+    /**
+     * Put the next object from a source into the winning slot
+     *
+     * @param tree merge tree
+     * @param data next object
+     */
+    private void refill(LoserTree<T> tree, T data)
+    {
+        if (data == eos) {
+            tree.finish();
+            numHeld--;
+        } else {
+            tree.replace(data);
+        }
+    }
+
+    /**
+     * Merge data until all sources have finished
+     */
+    @Override
+    public void run()
+    {
+        LoserTree<T> tree = new LoserTree<T>(sources.size(), comp);
+        for (int i = 0; i < sources.size(); i++) {
+            tree.setEmpty(i);
+        }
+        tree.build();
+
+        while (true) {
+            if (!requested) {
+                LockSupport.parkNanos(this, WAIT_NANOS);
+            }
+            requested = false;
+
+            if (merge(tree)) {
+                break;
+            }
+
+            outputQueue.publish();
+            if (tree.isWinnerMarked()) {
+                // every source is at or above the lowest watermark
+                lowerBound = tree.winnerValue();
+            }
+            target.check(false);
+        }
+
+        LOG.info(String.format("%s finished sending %d", name, outputCount));
+
+        // mark this stage inactive before the end-of-stream marker is visible
+        active = false;
+        outputQueue.add(eos);
+        outputQueue.publish();
+
+        target.check(true);
+    }
+
+    @Override
+    public void setTarget(MergeTarget target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * Start the merge thread
+     */
+    void start()
+    {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Debugging string
+     *
+     * @return string
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d sources, %d queued, %d sent", name,
+                             sources.size(), outputQueue.size(), outputCount) +
+            (active ? " ACTIVE" : " STOPPED");
+    }
+}
@@ -0,0 +1,14 @@
+package icecube.daq.priority;
+
+/**
+ * Next level of a Sorter, which merges data from one or more sources
+ */
+interface MergeTarget
+{
+    /**
+     * Tell the target that a source has new data
+     *
+     * @param finalCheck <tt>true</tt> if the source has sent all its data
+     */
+    void check(boolean finalCheck);
+}
@@ -0,0 +1,322 @@
+package icecube.daq.priority;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded array-based single-producer/single-consumer queue.
+ * <p>
+ * Exactly one thread may add elements and exactly one (other) thread may
+ * remove them.  Neither side takes a lock and no objects are allocated
+ * once the queue has been created.  A thread which has to wait first
+ * spins, then yields, then parks until the other side wakes it up.
+ */
+public class RingBuffer<T>
+    extends AbstractQueue<T>
+    implements BlockingQueue<T>
+{
+    /** Number of times to busy-wait before yielding */
+    private static final int SPIN_TRIES = 100;
+    /** Number of times to yield before parking */
+    private static final int YIELD_TRIES = 100;
+    /** Longest single park before the waiting thread checks again */
+    private static final long MAX_PARK_NANOS = 10000000L;
+
+    private Object[] buffer;
+    private int mask;
+
+    /** Index of the next element to remove */
+    private AtomicLong head = new AtomicLong();
+    /** Index of the next slot to fill */
+    private AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    /**
+     * Create a ring buffer
+     *
+     * @param capacity maximum number of elements (rounded up to a
+     *                 power of 2)
+     */
+    public RingBuffer(int capacity)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        } else if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity " + capacity +
+                                               " is too large");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Get the number of slots in the buffer
+     *
+     * @return capacity
+     */
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> coll)
+    {
+        return drainTo(coll, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> coll, int maxElements)
+    {
+        int num = 0;
+        while (num < maxElements) {
+            T elem = poll();
+            if (elem == null) {
+                break;
+            }
+
+            coll.add(elem);
+            num++;
+        }
+
+        return num;
+    }
+
+    /**
+     * Return a snapshot of the queued elements.  This is only intended for
+     * debugging and may miss elements which are removed concurrently.
+     *
+     * @return iterator
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        List<T> list = new ArrayList<T>(size());
+        for (long i = head.get(); i < tail.get(); i++) {
+            @SuppressWarnings("unchecked")
+            T elem = (T) buffer[(int) i & mask];
+            if (elem != null) {
+                list.add(elem);
+            }
+        }
+        return list.iterator();
+    }
+
+    /**
+     * Add an element if there is room.  Must only be called by the
+     * producer.
+     *
+     * @param elem element
+     *
+     * @return <tt>false</tt> if the buffer is full
+     */
+    @Override
+    public boolean offer(T elem)
+    {
+        if (elem == null) {
+            throw new NullPointerException("Cannot add null element");
+        }
+
+        final long t = tail.get();
+        if (t - head.get() >= buffer.length) {
+            return false;
+        }
+
+        buffer[(int) t & mask] = elem;
+        tail.set(t + 1);
+
+        final Thread waiter = waitingConsumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean offer(T elem, long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int tries = 0; !offer(elem); tries++) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+
+            if (tries >= SPIN_TRIES + YIELD_TRIES) {
+                waitingProducer = Thread.currentThread();
+                if (tail.get() - head.get() >= buffer.length) {
+                    LockSupport.parkNanos(this, Math.min(left,
+                                                         MAX_PARK_NANOS));
+                }
+                waitingProducer = null;
+            }
+
+            pause(tries);
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait a bit longer before trying again.
+     *
+     * @param tries number of times the caller has tried so far
+     *
+     * @throws InterruptedException if the thread was interrupted
+     */
+    private static void pause(int tries)
+        throws InterruptedException
+    {
+        if (tries >= SPIN_TRIES && tries < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        }
+
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Return the next element without removing it.  Must only be called by
+     * the consumer.
+     *
+     * @return next element (<tt>null</tt> if the buffer is empty)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T peek()
+    {
+        final long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+
+        return (T) buffer[(int) h & mask];
+    }
+
+    /**
+     * Remove the next element.  Must only be called by the consumer.
+     *
+     * @return next element (<tt>null</tt> if the buffer is empty)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        final long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+
+        final int idx = (int) h & mask;
+        T elem = (T) buffer[idx];
+        buffer[idx] = null;
+        head.set(h + 1);
+
+        final Thread waiter = waitingProducer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+
+        return elem;
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int tries = 0; true; tries++) {
+            T elem = poll();
+            if (elem != null) {
+                return elem;
+            }
+
+            final long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return null;
+            }
+
+            if (tries >= SPIN_TRIES + YIELD_TRIES) {
+                waitingConsumer = Thread.currentThread();
+                if (head.get() == tail.get()) {
+                    LockSupport.parkNanos(this, Math.min(left,
+                                                         MAX_PARK_NANOS));
+                }
+                waitingConsumer = null;
+            }
+
+            pause(tries);
+        }
+    }
+
+    @Override
+    public void put(T elem)
+        throws InterruptedException
+    {
+        for (int tries = 0; !offer(elem); tries++) {
+            if (tries >= SPIN_TRIES + YIELD_TRIES) {
+                waitingProducer = Thread.currentThread();
+                if (tail.get() - head.get() >= buffer.length) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                waitingProducer = null;
+            }
+
+            pause(tries);
+        }
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        return buffer.length - size();
+    }
+
+    @Override
+    public int size()
+    {
+        // read the head first so the result is never negative
+        final long h = head.get();
+        return (int) Math.min(tail.get() - h, buffer.length);
+    }
+
+    @Override
+    public T take()
+        throws InterruptedException
+    {
+        for (int tries = 0; true; tries++) {
+            T elem = poll();
+            if (elem != null) {
+                return elem;
+            }
+
+            if (tries >= SPIN_TRIES + YIELD_TRIES) {
+                waitingConsumer = Thread.currentThread();
+                if (head.get() == tail.get()) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                waitingConsumer = null;
+            }
+
+            pause(tries);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package icecube.daq.priority;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
@@ -9,14 +13,20 @@ import org.apache.log4j.Logger;
 /**
  * Input source for Sorter.
  *
- * Input data should be "sorted" already
+ * Input data should be "sorted" already.
+ * <p>
+ * If a spill queue has been set, objects which arrive while the in-memory
+ * queue is at its spill threshold (or while older objects are still on
+ * disk) are written to the spill queue instead, and are read back in order
+ * once the in-memory queue drains.
  */
 public class SortInput<T>
 {
     /** Log message handler */
     private static final Logger LOG = Logger.getLogger(Sorter.class);
 
-    private static final int CAPACITY = 500000;
+    /** Default maximum number of queued objects */
+    public static final int DEFAULT_CAPACITY = 500000;
 
     private String name;
     private T eos;
@@ -24,10 +34,32 @@ public class SortInput<T>
     // keep track of the number of points coming into this sorter input object
     private long inputCount;
 
-    private BlockingQueue<T> inputQueue;
+    /** Queue of data objects and watermarks */
+    private BlockingQueue<Object> inputQueue;
+    /** Most recent watermark removed from the queue */
+    private T watermark;
 
     private AtomicBoolean addedLast = new AtomicBoolean(false);
     private AtomicBoolean stopped = new AtomicBoolean(false);
+    /** Set if the sorter closed this input because it lagged too far */
+    private volatile boolean evicted;
+
+    /** Time the sorter has been waiting on this input while holding data */
+    private volatile long lagNanos;
+    /** Number of data objects dropped because they arrived too late */
+    private volatile long numLate;
+
+    /** Disk overflow queue (<tt>null</tt> if this input never spills) */
+    private SpillQueue<T> spill;
+    /** Number of queued objects which causes new objects to be spilled */
+    private int spillThreshold;
+    /** Number of objects written to the spill queue */
+    private volatile long numSpilled;
+
+    /** Latency tracker (<tt>null</tt> if latency is not measured) */
+    private LatencyTracker tracker;
+    /** Number of puts until the next latency sample */
+    private int sampleCountdown;
 
     /**
      * Create an input source
@@ -36,6 +68,23 @@ public class SortInput<T>
      * @param marker end-of-stream marker
      */
     public SortInput(String name, T marker)
+    {
+        this(name, marker, DEFAULT_CAPACITY, false);
+    }
+
+    /**
+     * Create an input source
+     *
+     * @param name source name (used in error messages)
+     * @param marker end-of-stream marker
+     * @param capacity maximum number of queued objects
+     * @param singleProducer if <tt>true</tt>, use a lock-free array queue
+     *                       which requires that only one thread ever calls
+     *                       <tt>put()</tt>, <tt>putLast()</tt> or
+     *                       <tt>stop()</tt>
+     */
+    public SortInput(String name, T marker, int capacity,
+                     boolean singleProducer)
     {
         this.name = name;
         this.eos = marker;
@@ -44,28 +93,133 @@ public class SortInput<T>
             throw new Error("End-of-stream marker cannot be null");
         }
 
-        inputQueue = new LinkedBlockingQueue<T>(CAPACITY);
+        if (singleProducer) {
+            inputQueue = new RingBuffer<Object>(capacity);
+        } else {
+            inputQueue = new LinkedBlockingQueue<Object>(capacity);
+        }
     }
 
     /**
-     * Get the next data object
+     * Note that a data object arrived after the sorter had moved past this
+     * input.  Must only be called by the consumer.
+     */
+    void addLate()
+    {
+        numLate++;
+    }
+
+    /**
+     * Remove the next object, reading from the spill queue once the
+     * in-memory queue is empty.
      *
-     * @return next data object
+     * @return data object or watermark (<tt>null</tt> if nothing is queued)
      */
-    public T get()
+    private Object dequeue()
     {
-        T data = null;
-        try {
-            data = inputQueue.take();
-        } catch (InterruptedException ex) {
-            LOG.error(name + " could not get next value", ex);
+        Object obj = inputQueue.poll();
+        if (obj == null && spill != null) {
+            synchronized (spill) {
+                // the producer may have refilled the in-memory queue and
+                // started spilling since it was checked, so look again
+                // while it is locked out
+                obj = inputQueue.poll();
+                if (obj == null) {
+                    obj = spill.poll();
+                }
+            }
         }
+        return obj;
+    }
 
-        if (!stopped.get() && data == eos) {
-            stopped.set(true);
+    /**
+     * Add an object to the in-memory queue, or to the spill queue if the
+     * in-memory queue is too deep or older objects have been spilled.
+     *
+     * @param obj data object or watermark
+     *
+     * @throws InterruptedException if the put was interrupted
+     * @throws IOException if the object could not be spilled
+     */
+    private void enqueue(Object obj)
+        throws InterruptedException, IOException
+    {
+        if (spill == null) {
+            inputQueue.put(obj);
+            return;
         }
 
-        return data;
+        synchronized (spill) {
+            if (spill.isEmpty() && inputQueue.size() < spillThreshold) {
+                inputQueue.put(obj);
+            } else {
+                spill.add(obj);
+                numSpilled++;
+            }
+        }
+    }
+
+    /**
+     * Close this input from the consumer side and throw away all queued
+     * objects.  Any further puts will fail.
+     *
+     * @return discarded data objects (without watermarks or the
+     *         end-of-stream marker)
+     */
+    @SuppressWarnings("unchecked")
+    List<T> evict()
+    {
+        evicted = true;
+        stopped.set(true);
+
+        List<T> discarded = new ArrayList<T>();
+        Object obj;
+        while ((obj = dequeue()) != null) {
+            if (!(obj instanceof Watermark) && obj != eos) {
+                discarded.add((T) obj);
+            }
+        }
+        if (spill != null) {
+            synchronized (spill) {
+                spill.clear();
+            }
+        }
+
+        return discarded;
+    }
+
+    /**
+     * Get the next data object.  Watermarks are remembered but do not
+     * interrupt the wait.
+     *
+     * @return next data object
+     */
+    public T get()
+    {
+        return next(-1L, false);
+    }
+
+    /**
+     * Get the next data object, waiting no longer than the specified time
+     *
+     * @param timeoutNanos maximum number of nanoseconds to wait
+     *
+     * @return next data object (<tt>null</tt> if nothing arrived in time or
+     *         if a watermark arrived first)
+     */
+    public T get(long timeoutNanos)
+    {
+        return next(timeoutNanos, true);
+    }
+
+    /**
+     * Get the next data object
+     *
+     * @return next data object (<tt>null</tt> if a watermark arrived first)
+     */
+    public T getOrWatermark()
+    {
+        return next(-1L, true);
     }
 
     /**
@@ -79,13 +233,83 @@ public class SortInput<T>
     }
 
     /**
-     * Get the internal queue size
+     * Get the time the sorter has been waiting on this input while other
+     * inputs had data
+     *
+     * @return number of nanoseconds (0 if the sorter is not waiting)
+     */
+    public long getLagNanos()
+    {
+        return lagNanos;
+    }
+
+    /**
+     * Get the input name
+     *
+     * @return name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Get the number of objects written to disk because the queue was too
+     * deep
+     *
+     * @return number of spilled objects
+     */
+    public long getNumSpilled()
+    {
+        return numSpilled;
+    }
+
+    /**
+     * Get the internal queue size, including any objects spilled to disk
      *
      * @return queue size
      */
     public int getQueueSize()
     {
-        return inputQueue.size();
+        if (spill == null) {
+            return inputQueue.size();
+        }
+
+        synchronized (spill) {
+            return inputQueue.size() + spill.size();
+        }
+    }
+
+    /**
+     * Get the number of data objects dropped because they arrived after
+     * the sorter had moved past them
+     *
+     * @return number of late objects
+     */
+    public long getNumLate()
+    {
+        return numLate;
+    }
+
+    /**
+     * Get the most recent watermark seen by the consumer.  No data object
+     * lower than this will follow it.
+     *
+     * @return watermark (<tt>null</tt> if none has been seen)
+     */
+    public T getWatermark()
+    {
+        return watermark;
+    }
+
+    /**
+     * Did the sorter close this input because it lagged too far behind?
+     *
+     * @return <tt>true</tt> if this input was evicted
+     */
+    public boolean isEvicted()
+    {
+        return evicted;
     }
 
     /**
@@ -98,6 +322,70 @@ public class SortInput<T>
         return stopped.get();
     }
 
+    /**
+     * Wait for the next data object
+     *
+     * @param timeoutNanos maximum number of nanoseconds to wait (negative to
+     *                     wait forever)
+     * @param stopAtMark if <tt>true</tt>, return <tt>null</tt> if a watermark
+     *                   arrives before the next data object
+     *
+     * @return next data object (<tt>null</tt> if none is available)
+     */
+    @SuppressWarnings("unchecked")
+    private T next(long timeoutNanos, boolean stopAtMark)
+    {
+        while (true) {
+            Object obj = null;
+            if (spill != null) {
+                obj = dequeue();
+            }
+
+            if (obj == null) {
+                try {
+                    if (timeoutNanos < 0L) {
+                        obj = inputQueue.take();
+                    } else {
+                        obj = inputQueue.poll(timeoutNanos,
+                                              TimeUnit.NANOSECONDS);
+                    }
+                } catch (InterruptedException ex) {
+                    LOG.error(name + " could not get next value", ex);
+                    return null;
+                }
+            }
+
+            if (obj instanceof Watermark) {
+                watermark = ((Watermark<T>) obj).value;
+                if (stopAtMark) {
+                    return null;
+                }
+                continue;
+            }
+
+            return received((T) obj);
+        }
+    }
+
+    /**
+     * Get the next data object if one is available, without waiting.
+     * Watermarks ahead of it are remembered.
+     *
+     * @return next data object (<tt>null</tt> if none is queued)
+     */
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        while (true) {
+            final Object obj = dequeue();
+            if (!(obj instanceof Watermark)) {
+                return received((T) obj);
+            }
+
+            watermark = ((Watermark<T>) obj).value;
+        }
+    }
+
     /**
      * Push the next object onto the input queue
      *
@@ -119,11 +407,18 @@ public class SortInput<T>
             throw new SorterException(errMsg);
         }
 
+        if (tracker != null && data != eos && --sampleCountdown <= 0) {
+            sampleCountdown = tracker.getSampleInterval();
+            tracker.offer(data);
+        }
+
         try {
-            inputQueue.put(data);
+            enqueue(data);
             inputCount++;
         } catch (InterruptedException ex) {
             throw new SorterException("Could not put next value", ex);
+        } catch (IOException ex) {
+            throw new SorterException("Could not spill next value", ex);
         }
     }
 
@@ -146,6 +441,94 @@ public class SortInput<T>
         }
     }
 
+    /**
+     * Promise that no data object lower than <tt>mark</tt> will be pushed
+     * after this.  This lets the sorter move past this input while it has
+     * no data.
+     *
+     * @param mark watermark
+     *
+     * @throws SorterException if stopped or if the watermark cannot be
+     *                         enqueued
+     */
+    public void putWatermark(T mark)
+        throws SorterException
+    {
+        if (mark == null) {
+            return;
+        }
+
+        if (stopped.get() || addedLast.get()) {
+            final String errMsg =
+                String.format("Input source %s is stopped", name);
+            throw new SorterException(errMsg);
+        }
+
+        try {
+            enqueue(new Watermark<T>(mark));
+        } catch (InterruptedException ex) {
+            throw new SorterException("Could not put watermark", ex);
+        } catch (IOException ex) {
+            throw new SorterException("Could not spill watermark", ex);
+        }
+    }
+
+    /**
+     * Note that a data object has been removed from the queue
+     *
+     * @param data data object (may be <tt>null</tt>)
+     *
+     * @return data object
+     */
+    private T received(T data)
+    {
+        if (!stopped.get() && data == eos) {
+            stopped.set(true);
+
+            if (spill != null) {
+                // nothing else can arrive, so delete the segment files
+                synchronized (spill) {
+                    spill.clear();
+                }
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Set the time the sorter has been waiting on this input
+     *
+     * @param nanos number of nanoseconds
+     */
+    void setLagNanos(long nanos)
+    {
+        lagNanos = nanos;
+    }
+
+    /**
+     * Sample the latency of objects put into this input
+     *
+     * @param tracker latency tracker
+     */
+    void setLatencyTracker(LatencyTracker tracker)
+    {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Spill objects to disk once more than <tt>threshold</tt> objects are
+     * queued in memory.
+     *
+     * @param spill disk overflow queue
+     * @param threshold maximum number of objects queued in memory
+     */
+    void setSpill(SpillQueue<T> spill, int threshold)
+    {
+        this.spill = spill;
+        this.spillThreshold = threshold;
+    }
+
     /**
      * Stop the input source
      *
@@ -172,4 +555,17 @@ public class SortInput<T>
         return String.format("%s[%d->%d]", name, inputQueue.size(),
                              inputCount);
     }
+
+    /**
+     * Queued watermark
+     */
+    static class Watermark<T>
+    {
+        T value;
+
+        Watermark(T value)
+        {
+            this.value = value;
+        }
+    }
 }
@@ -1,13 +1,23 @@
 package icecube.daq.priority;
 
+import java.io.File;
 import java.io.IOException;
+import icecube.daq.merge.LagPolicy;
+import icecube.daq.merge.LoserTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
 public class Sorter<T>
+    implements MergeTarget
 {
     /** Log message handler */
     private static final Logger LOG = Logger.getLogger(Sorter.class);
@@ -15,6 +25,9 @@ public class Sorter<T>
     public static final int DEFAULT_CHUNK_SIZE = 1500;
     public static final int DEFAULT_NUM_THREADS = 3;
 
+    /** Longest time the merge thread sleeps before checking on its own */
+    private static final long MERGE_WAIT_NANOS = 100000000L;
+
     /** Sorter name to use in error messages */
     private String name;
 
@@ -22,23 +35,95 @@ public class Sorter<T>
     private T eos;
 
     private ReentrantLock lock = new ReentrantLock();
-    private PriorityQueue<SourceDataPair<T>> prioQueue;
-    private boolean initialized;
+
+    /** Merges the output of all subsorters (built on the first sort) */
+    private LoserTree<T> tree;
+    /** Subsorter or merge stage feeding each source in the tree */
+    private ArrayList<MergeSource<T>> sources;
+    /** Intermediate merge stages (empty unless a fan-out is set) */
+    private ArrayList<MergeStage<T>> stages = new ArrayList<MergeStage<T>>();
+    /** Maximum number of sources merged by one thread (0 means no limit) */
+    private int mergeFanOut;
+    /** Number of objects currently held by the tree */
+    private int numHeld;
 
     private int expectedInputs;
     private int chunkSize;
-    private DataComparator comp;
+    private Comparator<T> tcomp;
+    private DataComparator<T> comp;
     private SubSorter<T>[] subsorters;
     private DataConsumer<T> consumer;
     private T previousData;
+    /** Sort key of <tt>previousData</tt> (only used if data is keyed) */
+    private long previousKey;
+
+    /** Batch consumer (<tt>null</tt> if data is consumed one at a time) */
+    private BatchDataConsumer<T> batchConsumer;
+    /** Merged data waiting to be handed to the batch consumer */
+    private ArrayList<T> batch;
 
     private boolean running;
     private Object runLock = new Object();
 
     private int totalRegistered;
+    /** All registered inputs */
+    private ArrayList<SortInput<T>> inputs = new ArrayList<SortInput<T>>();
+
+    /** If <tt>true</tt>, inputs are assigned to subsorters by weight */
+    private boolean balanced;
+    /** Inputs waiting to be assigned to a subsorter */
+    private ArrayList<WeightedInput<T>> unassigned =
+        new ArrayList<WeightedInput<T>>();
+    /** Per-input counts from a previous run, used to weight inputs */
+    private Map<String, Long> previousCounts;
+
+    /** Maximum number of objects queued by each input */
+    private int inputCapacity = SortInput.DEFAULT_CAPACITY;
+    /** If <tt>true</tt>, each input is fed by a single thread */
+    private boolean singleProducer;
+
+    /** Directory for spilled data (<tt>null</tt> if inputs never spill) */
+    private File spillDir;
+    /** Converts spilled data to and from bytes */
+    private SpillCodec<T> spillCodec;
+    /** Number of objects an input queues in memory before spilling */
+    private int spillThreshold;
+    /** Size of each spill segment file */
+    private int spillSegmentBytes;
+
+    /** If <tt>true</tt>, subsorters are merged by a dedicated thread */
+    private boolean dedicatedMerger;
+    /** Dedicated merge thread (<tt>null</tt> if subsorters merge data) */
+    private volatile Thread mergeThread;
+    /** Set when a subsorter has published data for the merge thread */
+    private volatile boolean mergeRequested;
+    /** Set once end-of-stream has been sent to the consumer */
+    private volatile boolean finished;
 
     private long checked;
     private long processCalls;
+    /** Total time spent merging subsorter output */
+    private volatile long mergeNanos;
+
+    /** Longest time a subsorter holds sorted data (0 if there is no limit) */
+    private volatile long maxHoldNanos;
+
+    /** Receives data which arrived too late to be sorted (may be null) */
+    private volatile DataConsumer<T> lateConsumer;
+    /** Receives data thrown away when an input is closed (may be null) */
+    private volatile DataConsumer<T> evictedConsumer;
+    /** Number of objects which came out of the final merge out of order */
+    private volatile long numOutOfOrder;
+
+    /** What to do about lagging inputs (<tt>null</tt> to always wait) */
+    private LagPolicy lagPolicy;
+    private long maxLagNanos;
+    private int maxLagDepth;
+
+    /** Target 99th percentile latency (0 if chunk size is not controlled) */
+    private volatile long latencyTarget;
+    /** Latency tracker (<tt>null</tt> if latency is not measured) */
+    private volatile LatencyTracker latency;
 
     /**
      * Create a sorter
@@ -90,17 +175,143 @@ public class Sorter<T>
 
         this.name = name;
         this.comp = new DataComparator<T>(tcomp);
+        this.tcomp = tcomp;
         this.consumer = consumer;
         this.eos = eos;
         this.chunkSize = chunkSize;
 
+        if (consumer instanceof BatchDataConsumer) {
+            batchConsumer = (BatchDataConsumer<T>) consumer;
+            batch = new ArrayList<T>(chunkSize);
+        }
+
         expectedInputs = maxInputs;
 
         subsorters = new SubSorter[Math.min(maxInputs, numThreads)];
+    }
+
+    /**
+     * Assign all balanced inputs to subsorters, heaviest first, always
+     * picking the subsorter with the least total weight.
+     */
+    private void assignInputs()
+    {
+        for (WeightedInput<T> wi : unassigned) {
+            if (previousCounts != null &&
+                previousCounts.containsKey(wi.input.getName()))
+            {
+                wi.weight = previousCounts.get(wi.input.getName());
+            }
+
+            // every input costs something, even if it has no hint
+            wi.weight = Math.max(wi.weight, 1L);
+        }
+
+        Collections.sort(unassigned, new Comparator<WeightedInput<T>>() {
+                @Override
+                public int compare(WeightedInput<T> a, WeightedInput<T> b)
+                {
+                    if (a.weight == b.weight) {
+                        return 0;
+                    }
+                    return a.weight > b.weight ? -1 : 1;
+                }
+            });
+
+        long[] load = new long[subsorters.length];
+        for (WeightedInput<T> wi : unassigned) {
+            int num = 0;
+            for (int i = 1; i < load.length; i++) {
+                if (load[i] < load[num]) {
+                    num = i;
+                }
+            }
+
+            if (subsorters[num] == null) {
+                subsorters[num] = createSubSorter(num);
+            }
+
+            try {
+                subsorters[num].register(wi.input);
+            } catch (SorterException se) {
+                throw new Error("Cannot assign " + wi.input.getName() +
+                                " to " + subsorters[num], se);
+            }
+
+            load[num] += wi.weight;
+        }
+
+        unassigned.clear();
+    }
+
+    /**
+     * Put the next object from a subsorter into the winning source's slot
+     *
+     * @param ss subsorter which owns the winning source
+     * @param data next object from that subsorter
+     */
+    private void advance(MergeSource<T> ss, T data)
+    {
+        if (data != eos) {
+            tree.replace(data);
+            return;
+        }
+
+        // complain if the queue is still active
+        if (ss.isActiveQueue()) {
+            LOG.error(name + " got EOS from active SS " + ss);
+        }
+
+        // this subsorter will be ignored from now on
+        // (EOS will not be sent to consumer)
+        tree.finish();
+        numHeld--;
+    }
+
+    /**
+     * Build the levels which merge subsorter output.  If a fan-out has been
+     * set, subsorters are grouped under intermediate merge stages (and
+     * those stages under further stages) until the final merge has no more
+     * than <tt>mergeFanOut</tt> sources.
+     */
+    private void buildMergeLevels()
+    {
+        ArrayList<MergeSource<T>> level =
+            new ArrayList<MergeSource<T>>(subsorters.length);
+        for (SubSorter<T> ss : subsorters) {
+            if (ss != null) {
+                level.add(ss);
+            }
+        }
 
-        prioQueue =
-            new PriorityQueue<SourceDataPair<T>>(maxInputs / subsorters.length,
-                                                 comp);
+        int depth = 0;
+        while (mergeFanOut > 1 && level.size() > mergeFanOut) {
+            depth++;
+
+            ArrayList<MergeSource<T>> next = new ArrayList<MergeSource<T>>();
+            for (int i = 0; i < level.size(); i += mergeFanOut) {
+                final String stageName =
+                    String.format("%s-Merge%d-%d", name, depth, next.size());
+                MergeStage<T> stage =
+                    new MergeStage<T>(stageName, tcomp, eos);
+
+                final int end = Math.min(i + mergeFanOut, level.size());
+                for (int j = i; j < end; j++) {
+                    stage.add(level.get(j));
+                }
+
+                stages.add(stage);
+                next.add(stage);
+            }
+
+            level = next;
+        }
+
+        for (MergeSource<T> src : level) {
+            src.setTarget(this);
+        }
+
+        sources = level;
     }
 
     /**
@@ -108,8 +319,17 @@ public class Sorter<T>
      *
      * @param finalCheck <tt>true</tt> if all data should be flushed
      */
+    @Override
     public void check(boolean finalCheck)
     {
+        final Thread merger = mergeThread;
+        if (merger != null) {
+            // let the merge thread do the work
+            mergeRequested = true;
+            LockSupport.unpark(merger);
+            return;
+        }
+
         if (finalCheck) {
             lock.lock();
         } else if (!lock.tryLock()) {
@@ -131,16 +351,18 @@ public class Sorter<T>
      */
     private void checkInternal()
     {
-        // check to see if all subsorters have input.
-        for (SubSorter<T> ss : subsorters) {
-            if (ss == null) {
-                // initial subsorters array was not fully populated
-                continue;
-            }
+        if (sources == null) {
+            // sorter has not been started
+            return;
+        }
 
-            // All ACTIVE data queues must have some data
-            // to continue
-            if (ss.isEmptyQueue() && ss.isActiveQueue()) {
+        // check to see if all subsorters have input.
+        for (MergeSource<T> ss : sources) {
+            // All ACTIVE data queues must have some data (or a lower
+            // bound) to continue
+            if (ss.isEmptyQueue() && ss.isActiveQueue() &&
+                ss.getLowerBound() == null)
+            {
                 // no data for some subsorter, no work to do
                 return;
             }
@@ -148,7 +370,92 @@ public class Sorter<T>
 
         // if we get here then there is data from every subsorter
         processCalls++;
+
+        final long startNanos = System.nanoTime();
         process();
+        mergeNanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Create a subsorter.  The caller must hold <tt>runLock</tt>.
+     *
+     * @param num subsorter number
+     *
+     * @return new subsorter
+     */
+    private SubSorter<T> createSubSorter(int num)
+    {
+        SubSorter<T> ss =
+            new SubSorter<T>(this, num, expectedInputs, tcomp, eos);
+        ss.setMaxHoldTime(maxHoldNanos);
+        ss.setLagPolicy(lagPolicy, maxLagNanos, maxLagDepth);
+        return ss;
+    }
+
+    /**
+     * Hand all batched data to the batch consumer
+     */
+    private void flushBatch()
+    {
+        if (batch == null || batch.size() == 0) {
+            return;
+        }
+
+        try {
+            batchConsumer.consumeBatch(batch);
+        } catch (IOException ex) {
+            LOG.error(name + " could not send " + batch.size() + " objects",
+                      ex);
+        } catch (Throwable thr) {
+            LOG.error(name + " caught unexpected exception from batch of " +
+                      batch.size() + " objects", thr);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Hand data thrown away when a lagging input was closed to the
+     * evicted-data consumer.  This may be called by any sorting thread.
+     *
+     * @param list discarded data
+     */
+    void evictedData(List<T> list)
+    {
+        final DataConsumer<T> evicted = evictedConsumer;
+        if (evicted == null || list.size() == 0) {
+            return;
+        }
+
+        synchronized (evicted) {
+            for (T data : list) {
+                try {
+                    evicted.consume(data);
+                } catch (Throwable thr) {
+                    LOG.error(name + " could not send evicted data", thr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the subsorter which reads each input
+     *
+     * @return map of input names to subsorter numbers
+     */
+    Map<String, Integer> getAssignments()
+    {
+        Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+        synchronized (runLock) {
+            for (int i = 0; i < subsorters.length; i++) {
+                if (subsorters[i] != null) {
+                    for (String name : subsorters[i].getInputNames()) {
+                        map.put(name, i);
+                    }
+                }
+            }
+        }
+        return map;
     }
 
     /**
@@ -161,6 +468,115 @@ public class Sorter<T>
         return chunkSize;
     }
 
+    /**
+     * Get the total time subsorter threads have spent in
+     * <tt>check()</tt>.  Unless a dedicated merge thread is used, this
+     * includes the merges run on those threads.
+     *
+     * @return number of nanoseconds
+     */
+    public long getCheckNanos()
+    {
+        long total = 0;
+        for (SubSorter<T> ss : subsorters) {
+            if (ss != null) {
+                total += ss.getCheckNanos();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of objects received by each input
+     *
+     * @return map of input names to counts
+     */
+    public Map<String, Long> getInputCounts()
+    {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        synchronized (runLock) {
+            for (SortInput<T> sin : inputs) {
+                counts.put(sin.getName(), sin.getInputCount());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Get the time each subsorter has been waiting on each input while
+     * other inputs had data
+     *
+     * @return map of input names to nanoseconds
+     */
+    public Map<String, Long> getInputLags()
+    {
+        Map<String, Long> lags = new LinkedHashMap<String, Long>();
+        synchronized (runLock) {
+            for (SortInput<T> sin : inputs) {
+                lags.put(sin.getName(), sin.getLagNanos());
+            }
+        }
+        return lags;
+    }
+
+    /**
+     * Get the target 99th percentile latency
+     *
+     * @return number of nanoseconds (0 if there is no target)
+     */
+    public long getLatencyTarget()
+    {
+        return latencyTarget;
+    }
+
+    /**
+     * Get the 99th percentile of the delay between objects being put into
+     * an input and being handed to the consumer, as of the last adjustment
+     *
+     * @return number of nanoseconds (<tt>-1</tt> if nothing was measured)
+     */
+    public long getLatencyP99()
+    {
+        final LatencyTracker tracker = latency;
+        if (tracker == null) {
+            return -1L;
+        }
+
+        return tracker.getP99();
+    }
+
+    /**
+     * Get the latency tracker
+     *
+     * @return latency tracker (<tt>null</tt> if latency is not measured)
+     */
+    LatencyTracker getLatencyTracker()
+    {
+        return latency;
+    }
+
+    /**
+     * Get the longest time a subsorter holds sorted data before handing it
+     * on
+     *
+     * @return number of nanoseconds (0 if there is no limit)
+     */
+    public long getMaxHoldTime()
+    {
+        return maxHoldNanos;
+    }
+
+    /**
+     * Get the total time spent merging subsorter output and handing it to
+     * the consumer
+     *
+     * @return number of nanoseconds
+     */
+    public long getMergeNanos()
+    {
+        return mergeNanos;
+    }
+
     /**
      * Get sorter name
      *
@@ -181,6 +597,39 @@ public class Sorter<T>
         return checked;
     }
 
+    /**
+     * Get the number of objects dropped because they arrived too late to
+     * be sorted
+     *
+     * @return number of late objects
+     */
+    public long getNumLate()
+    {
+        long total = numOutOfOrder;
+        synchronized (runLock) {
+            for (SortInput<T> sin : inputs) {
+                total += sin.getNumLate();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of objects spilled to disk by all inputs
+     *
+     * @return number of spilled objects
+     */
+    public long getNumSpilled()
+    {
+        long total = 0;
+        synchronized (runLock) {
+            for (SortInput<T> sin : inputs) {
+                total += sin.getNumSpilled();
+            }
+        }
+        return total;
+    }
+
     /**
      * Get number of objects sorted by the sorter
      *
@@ -197,6 +646,36 @@ public class Sorter<T>
         return total;
     }
 
+    /**
+     * Get the number of times the latency controller shrank the chunk size
+     *
+     * @return number of decreases
+     */
+    public long getNumChunkDecreases()
+    {
+        final LatencyTracker tracker = latency;
+        if (tracker == null) {
+            return 0L;
+        }
+
+        return tracker.getNumDecreases();
+    }
+
+    /**
+     * Get the number of times the latency controller grew the chunk size
+     *
+     * @return number of increases
+     */
+    public long getNumChunkIncreases()
+    {
+        final LatencyTracker tracker = latency;
+        if (tracker == null) {
+            return 0L;
+        }
+
+        return tracker.getNumIncreases();
+    }
+
     /**
      * Get number of calls to sorter.process()
      *
@@ -220,7 +699,27 @@ public class Sorter<T>
                 total += ss.getQueueSize();
             }
         }
-        return total + prioQueue.size();
+        for (MergeStage<T> stage : stages) {
+            total += stage.getQueueSize();
+        }
+        return total + numHeld;
+    }
+
+    /**
+     * Get the total time subsorter threads have spent sorting their inputs
+     * (including time spent waiting for input data)
+     *
+     * @return number of nanoseconds
+     */
+    public long getSortNanos()
+    {
+        long total = 0;
+        for (SubSorter<T> ss : subsorters) {
+            if (ss != null) {
+                total += ss.getSortNanos();
+            }
+        }
+        return total;
     }
 
     /**
@@ -243,25 +742,42 @@ public class Sorter<T>
         return running;
     }
 
+    /**
+     * Hand data which arrived too late to be sorted to the late-data
+     * consumer.  This may be called by any sorting thread.
+     *
+     * @param data late data
+     */
+    void lateData(T data)
+    {
+        final DataConsumer<T> late = lateConsumer;
+        if (late == null) {
+            return;
+        }
+
+        synchronized (late) {
+            try {
+                late.consume(data);
+            } catch (Throwable thr) {
+                LOG.error(name + " could not send late data", thr);
+            }
+        }
+    }
+
     /**
      * Sort data from all subsorters
      */
     private void process()
     {
-        if (!initialized) {
-            // put a point from each input on the priority queue
-            for (SubSorter<T> ss : subsorters) {
-                if (ss == null) {
-                    // ignore missing subsorters
-                    continue;
-                }
+        final LatencyTracker tracker = latency;
 
-                // we are guaranteed that every subsorter has supplied
-                // at least one point before we get here
-                T buf = ss.pollQueue();
-                prioQueue.add(new SourceDataPair<T>(ss, buf));
+        if (tree == null) {
+            // the set of sources is fixed once the sorter is running
+            tree = new LoserTree<T>(sources.size(), tcomp);
+            for (int i = 0; i < sources.size(); i++) {
+                tree.setEmpty(i);
             }
-            initialized = true;
+            tree.build();
         }
 
         // continue pulling points out of the the various queues until one is
@@ -269,10 +785,10 @@ public class Sorter<T>
         // we are guaranteed that one will be empty as the thread running this
         // method IS the thread of a subsorter
         while (true) {
-            SourceDataPair<T> data = prioQueue.poll();
-
-            if (data == null) {
-                // the priority queue is empty and we are done
+            if (tree.isWinnerDone()) {
+                // every subsorter has finished and we are done
+                finished = true;
+                flushBatch();
                 try {
                     consumer.endOfStream(0L);
                 } catch (IOException ex) {
@@ -281,61 +797,121 @@ public class Sorter<T>
                 break;
             }
 
-            if (!data.subsorter().isEmptyQueue()) {
-                if (previousData != null &&
-                    comp.compareData(previousData, data.data()) > 0)
-                {
-                    // this should never happen
-                    LOG.error("Out-of-order data!  (prev=" + previousData +
-                              ", this=" + data);
-                } else {
-                    // hand data to consumer
-                    try {
-                        consumer.consume(data.data());
-                    } catch (IOException ex) {
-                        LOG.error(name + " could not send " +
-                                  data.subsorter() + " data", ex);
-                    } catch (Throwable thr) {
-                        LOG.error(name + " caught unexpected exception from " +
-                                  data.subsorter(), thr);
-                    }
+            final MergeSource<T> ss = sources.get(tree.winner());
 
-                    previousData = data.data();
-                }
+            if (tree.isWinnerEmpty() || tree.isWinnerMarked()) {
+                // read the bound first so it can't be newer than the queue
+                final T bound = ss.getLowerBound();
 
-                // get next element
-                T newPt = data.subsorter().pollQueue();
+                // fill the lowest empty slot or wait for more data
+                T newPt = ss.pollQueue();
                 if (newPt == null) {
-                    // this should never happen
-                    LOG.error(name + " newPt is null,  " + data.subsorter() +
-                              " isEmpty: " + data.subsorter().isEmptyQueue() +
-                              " size: " + data.subsorter().getQueueSize());
+                    if (raiseMark(bound)) {
+                        continue;
+                    }
+                    break;
                 }
 
-                // stuff the new data into the wrapper and requeue it
-                data.setData(newPt);
-                prioQueue.add(data);
+                numHeld++;
+                advance(ss, newPt);
+                continue;
+            }
+
+            final T data = tree.winnerValue();
+            if (tracker != null) {
+                tracker.consumed(data);
+            }
+
+            final long key;
+            if (comp.isKeyed()) {
+                key = tree.winnerKey();
             } else {
-                // found an empty queue
+                key = 0L;
+            }
 
-                // if element is not an end-of-stream...
-                if (data.data() != eos) {
-                    // ...put it's min element back on the queue
-                    // and exit the loop
-                    prioQueue.add(data);
-                    break;
+            if (previousData != null &&
+                comp.compareData(previousData, previousKey, data, key) > 0)
+            {
+                // this should never happen
+                if (numOutOfOrder++ == 0L) {
+                    LOG.error("Out-of-order data!  (prev=" + previousData +
+                              ", this=" + data);
+                }
+                lateData(data);
+            } else if (batchConsumer != null) {
+                // hand data to consumer once a full chunk is ready
+                batch.add(data);
+                if (batch.size() >= chunkSize) {
+                    flushBatch();
                 }
 
-                // complain if the queue is still active
-                if (data.subsorter().isActiveQueue()) {
-                    LOG.error(name + " got EOS from active SS " +
-                              data.subsorter());
+                previousData = data;
+                previousKey = key;
+            } else {
+                // hand data to consumer
+                try {
+                    consumer.consume(data);
+                } catch (IOException ex) {
+                    LOG.error(name + " could not send " + ss + " data", ex);
+                } catch (Throwable thr) {
+                    LOG.error(name + " caught unexpected exception from " +
+                              ss, thr);
                 }
 
-                // this subsorter will be ignored from now on
-                // (EOS will not be sent to consumer)
+                previousData = data;
+                previousKey = key;
+            }
+
+            // get next element
+            T newPt = ss.pollQueue();
+            if (newPt != null) {
+                advance(ss, newPt);
+            } else {
+                // nothing can be sorted until this subsorter has more data
+                tree.stall();
+                numHeld--;
             }
         }
+
+        // don't hold on to a partial batch
+        flushBatch();
+    }
+
+    /**
+     * If the winning subsorter has no data, let the others continue up to
+     * its lower bound.
+     *
+     * @param bound winning subsorter's lower bound (may be <tt>null</tt>)
+     *
+     * @return <tt>false</tt> if the bound doesn't let the merge move on
+     */
+    private boolean raiseMark(T bound)
+    {
+        if (bound == null || (tree.isWinnerMarked() &&
+                              tcomp.compare(bound, tree.winnerValue()) <= 0))
+        {
+            return false;
+        }
+
+        tree.mark(bound);
+        return true;
+    }
+
+    /**
+     * Use the per-input counts from a previous run (see
+     * {@link #getInputCounts()}) to balance inputs with the same names.
+     * Measured counts replace any expected rate given at registration.
+     * This turns on balanced input assignment and must be called before
+     * any inputs are registered.
+     *
+     * @param counts map of input names to counts
+     */
+    public void rebalance(Map<String, Long> counts)
+    {
+        synchronized (runLock) {
+            previousCounts = new LinkedHashMap<String, Long>(counts);
+        }
+        setBalancedInputs(true);
     }
 
     /**
@@ -350,6 +926,27 @@ public class Sorter<T>
     public SortInput<T> register(String name)
         throws SorterException
     {
+        return register(name, 0L);
+    }
+
+    /**
+     * Register an input source
+     *
+     * @param name source name
+     * @param expectedRate expected data rate (only used to balance inputs,
+     *                     so the units don't matter as long as they are
+     *                     the same for all inputs)
+     *
+     * @return new input queue
+     *
+     * @throws SorterException if the sorter has been started
+     */
+    public SortInput<T> register(String name, long expectedRate)
+        throws SorterException
+    {
+        SortInput<T> sin =
+            new SortInput<T>(name, eos, inputCapacity, singleProducer);
+
         SubSorter<T> subsort;
         synchronized (runLock) {
             if (running) {
@@ -360,21 +957,33 @@ public class Sorter<T>
                 throw new SorterException(errMsg);
             }
 
+            inputs.add(sin);
+            sin.setLatencyTracker(latency);
+            if (spillCodec != null) {
+                sin.setSpill(new SpillQueue<T>(spillDir, spillCodec, eos,
+                                               spillSegmentBytes),
+                             spillThreshold);
+            }
+
+            if (balanced) {
+                // inputs are assigned to subsorters when the sorter starts
+                unassigned.add(new WeightedInput<T>(sin, expectedRate));
+                totalRegistered++;
+                return sin;
+            }
+
             int num = totalRegistered++ % subsorters.length;
 
             // need to map this mbid to a subsorter
             // if there is no num entry in this map
             // then create a new subsorter
             if (subsorters[num] == null) {
-                subsort = new SubSorter<T>(this, num, expectedInputs, comp,
-                                           eos);
-                subsorters[num] = subsort;
+                subsorters[num] = createSubSorter(num);
             }
 
             subsort = subsorters[num];
         }
 
-        SortInput<T> sin = new SortInput<T>(name, eos);
         subsort.register(sin);
 
         return sin;
@@ -390,6 +999,249 @@ public class Sorter<T>
         chunkSize = val;
     }
 
+    /**
+     * If <tt>true</tt>, inputs are assigned to subsorters when the sorter
+     * is started, balancing the expected rates given at registration so
+     * that all subsorters get a similar amount of work.  Otherwise inputs
+     * are assigned round-robin as they are registered.  This must be set
+     * before any inputs are registered.
+     *
+     * @param val <tt>true</tt> to balance inputs
+     */
+    public void setBalancedInputs(boolean val)
+    {
+        synchronized (runLock) {
+            if (val != balanced && totalRegistered > 0) {
+                throw new IllegalStateException("Cannot change input" +
+                                                " assignment after inputs" +
+                                                " have been registered");
+            }
+
+            balanced = val;
+        }
+    }
+
+    /**
+     * If <tt>true</tt>, subsorter output is merged by a dedicated thread
+     * which the subsorters wake after each chunk, rather than by whichever
+     * subsorter thread wins the lock.  This must be set before the sorter
+     * is started.
+     *
+     * @param val <tt>true</tt> to use a dedicated merge thread
+     */
+    public void setDedicatedMerger(boolean val)
+    {
+        dedicatedMerger = val;
+    }
+
+    /**
+     * Set the policy for an input which holds back data from the other
+     * inputs for too long.  This must be set before the sorter is started.
+     *
+     * @param policy what to do about a lagging input (<tt>null</tt> to
+     *               always wait)
+     * @param maxLagNanos an input lags after holding up the others for
+     *                    this long (0 to ignore)
+     * @param maxLagDepth ...or while this many objects are queued in the
+     *                    other inputs handled by the same subsorter (0 to
+     *                    ignore)
+     */
+    public void setLagPolicy(LagPolicy policy, long maxLagNanos,
+                             int maxLagDepth)
+    {
+        if (maxLagNanos < 0 || maxLagDepth < 0) {
+            throw new IllegalArgumentException("Lag thresholds cannot be" +
+                                               " negative");
+        } else if (policy != null && maxLagNanos == 0 && maxLagDepth == 0) {
+            throw new IllegalArgumentException("Lag policy " + policy +
+                                               " needs a time or depth" +
+                                               " threshold");
+        }
+
+        synchronized (runLock) {
+            this.lagPolicy = policy;
+            this.maxLagNanos = maxLagNanos;
+            this.maxLagDepth = maxLagDepth;
+            for (SubSorter<T> ss : subsorters) {
+                if (ss != null) {
+                    ss.setLagPolicy(policy, maxLagNanos, maxLagDepth);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand data which is thrown away when a lagging input is closed (see
+     * {@link #setLagPolicy}) to a separate consumer.  The consumer may be
+     * called by any sorting thread, but never by two at once.
+     *
+     * @param consumer evicted-data consumer (<tt>null</tt> to drop the data)
+     */
+    public void setEvictedDataConsumer(DataConsumer<T> consumer)
+    {
+        evictedConsumer = consumer;
+    }
+
+    /**
+     * Hand data which arrives too late to be sorted to a separate
+     * consumer instead of dropping it.  The consumer may be called by any
+     * sorting thread, but never by two at once.
+     *
+     * @param consumer late-data consumer (<tt>null</tt> to drop late data)
+     */
+    public void setLateDataConsumer(DataConsumer<T> consumer)
+    {
+        lateConsumer = consumer;
+    }
+
+    /**
+     * Sample the delay between objects being put into an input and being
+     * handed to the consumer, and let the AdjustmentTask pick the chunk
+     * size which keeps the 99th percentile of that delay under the target
+     * while sorting as much as possible in each chunk.
+     *
+     * @param nanos target latency in nanoseconds (0 to turn this off)
+     */
+    public void setLatencyTarget(long nanos)
+    {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Latency target cannot be" +
+                                               " negative");
+        }
+
+        synchronized (runLock) {
+            if (nanos > 0) {
+                trackLatency();
+            }
+
+            latencyTarget = nanos;
+        }
+    }
+
+    /**
+     * Set the number of objects put into each input between latency
+     * samples.
+     *
+     * @param val sample interval
+     */
+    public void setLatencySampleInterval(int val)
+    {
+        if (val < 1) {
+            throw new IllegalArgumentException("Sample interval must be" +
+                                               " positive");
+        }
+
+        synchronized (runLock) {
+            trackLatency().setSampleInterval(val);
+        }
+    }
+
+    /**
+     * Set the longest time a subsorter can hold sorted data before handing
+     * it on, even if it has not filled a chunk.  This keeps latency bounded
+     * when data arrives slowly.  If a latency target is also set, the
+     * AdjustmentTask tunes this value along with the chunk size.
+     *
+     * @param nanos number of nanoseconds (0 for no limit)
+     */
+    public void setMaxHoldTime(long nanos)
+    {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Maximum hold time cannot be" +
+                                               " negative");
+        }
+
+        synchronized (runLock) {
+            maxHoldNanos = nanos;
+            for (SubSorter<T> ss : subsorters) {
+                if (ss != null) {
+                    ss.setMaxHoldTime(nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of sources merged by a single thread.  If
+     * there are more subsorters than this, they are merged by intermediate
+     * merge stages, each with its own thread, before the final merge.
+     * This must be set before the sorter is started.
+     *
+     * @param val maximum number of sources per merge (0 for no limit)
+     */
+    public void setMergeFanOut(int val)
+    {
+        if (val < 0 || val == 1) {
+            throw new IllegalArgumentException("Merge fan-out must be 0 or" +
+                                               " at least 2, not " + val);
+        }
+
+        mergeFanOut = val;
+    }
+
+    /**
+     * Set the maximum number of objects queued by each input registered
+     * after this call.
+     *
+     * @param val maximum number of queued objects
+     */
+    public void setInputCapacity(int val)
+    {
+        if (val < 1) {
+            throw new IllegalArgumentException("Input capacity must be" +
+                                               " positive");
+        }
+
+        inputCapacity = val;
+    }
+
+    /**
+     * If <tt>true</tt>, inputs registered after this call will use a
+     * lock-free ring buffer which requires that each input is only ever
+     * fed by a single thread.
+     *
+     * @param val <tt>true</tt> if each input has a single producer
+     */
+    public void setSingleProducerInputs(boolean val)
+    {
+        singleProducer = val;
+    }
+
+    /**
+     * Let inputs registered after this call spill data to memory-mapped
+     * segment files once more than <tt>threshold</tt> objects are queued in
+     * memory, so a stalled input doesn't exhaust the heap while the other
+     * inputs keep filling.  Spilled data is read back in order.
+     *
+     * @param dir directory which holds segment files
+     * @param codec converts data objects to and from bytes
+     * @param threshold maximum number of objects each input queues in
+     *                  memory (must be less than the input capacity)
+     * @param segmentBytes size of each segment file
+     */
+    public void setSpill(File dir, SpillCodec<T> codec, int threshold,
+                         int segmentBytes)
+    {
+        if (dir == null || codec == null) {
+            throw new IllegalArgumentException("Spill directory and codec" +
+                                               " cannot be null");
+        }
+        if (threshold < 1 || threshold >= inputCapacity) {
+            throw new IllegalArgumentException("Spill threshold must be" +
+                                               " between 1 and the input" +
+                                               " capacity");
+        }
+        if (segmentBytes < 1) {
+            throw new IllegalArgumentException("Segment size must be" +
+                                               " positive");
+        }
+
+        spillDir = dir;
+        spillCodec = codec;
+        spillThreshold = threshold;
+        spillSegmentBytes = segmentBytes;
+    }
+
     /**
      * Start sorting
      */
@@ -397,6 +1249,22 @@ public class Sorter<T>
     {
         synchronized (runLock) {
             running = true;
+
+            if (balanced) {
+                assignInputs();
+            }
+
+            buildMergeLevels();
+        }
+
+        for (MergeStage<T> stage : stages) {
+            stage.start();
+        }
+
+        if (dedicatedMerger && totalRegistered > 0) {
+            Thread thread = new Thread(new Merger(), "Merger-" + name);
+            mergeThread = thread;
+            thread.start();
         }
 
         for (SubSorter<T> ss : subsorters) {
@@ -406,6 +1274,24 @@ public class Sorter<T>
         }
     }
 
+    /**
+     * Get the latency tracker, creating it if necessary.  The caller must
+     * hold <tt>runLock</tt>.
+     *
+     * @return latency tracker
+     */
+    private LatencyTracker trackLatency()
+    {
+        if (latency == null) {
+            latency = new LatencyTracker();
+            for (SortInput<T> sin : inputs) {
+                sin.setLatencyTracker(latency);
+            }
+        }
+
+        return latency;
+    }
+
     /**
      * Debugging string
      *
@@ -438,37 +1324,72 @@ public class Sorter<T>
                 throw new SorterException(ss.toString() + " did not stop");
             }
         }
+
+        for (MergeStage<T> stage : stages) {
+            try {
+                stage.join(millis);
+            } catch (InterruptedException ex) {
+                LOG.error("Interrupted join for " + stage, ex);
+            }
+
+            if (stage.isAlive()) {
+                throw new SorterException(stage.toString() +
+                                          " did not stop");
+            }
+        }
+
+        final Thread merger = mergeThread;
+        if (merger != null) {
+            try {
+                merger.join(millis);
+            } catch (InterruptedException ex) {
+                LOG.error("Interrupted join for " + name + " merger", ex);
+            }
+
+            if (merger.isAlive()) {
+                throw new SorterException(name + " merger did not stop");
+            }
+        }
     }
 
     /**
-     * Wrapper which connects a data object with the subsorter it came from
+     * Input which has not been assigned to a subsorter
      */
-    class SourceDataPair<T>
-        implements DataWrapper<T>
+    static class WeightedInput<T>
     {
-        private SubSorter<T> ss;
-        private T data;
+        private SortInput<T> input;
+        private long weight;
 
-        SourceDataPair(SubSorter<T> ss, T data)
+        WeightedInput(SortInput<T> input, long weight)
         {
-            this.ss = ss;
-            this.data = data;
+            this.input = input;
+            this.weight = weight;
         }
+    }
 
+    /**
+     * Thread which merges subsorter output when they ask for it
+     */
+    class Merger
+        implements Runnable
+    {
         @Override
-        public T data()
-        {
-            return data;
-        }
-
-        void setData(T newData)
+        public void run()
         {
-            this.data = newData;
-        }
+            while (!finished) {
+                if (!mergeRequested) {
+                    LockSupport.parkNanos(this, MERGE_WAIT_NANOS);
+                }
+                mergeRequested = false;
 
-        SubSorter<T> subsorter()
-        {
-            return ss;
+                lock.lock();
+                try {
+                    checked++;
+                    checkInternal();
+                } finally {
+                    lock.unlock();
+                }
+            }
         }
     }
 }
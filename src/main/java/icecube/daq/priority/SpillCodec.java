@@ -0,0 +1,39 @@
+package icecube.daq.priority;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Convert data objects to and from bytes so they can be spilled to disk
+ * when an input's queue grows too deep.
+ */
+public interface SpillCodec<T>
+{
+    /**
+     * Rebuild a data object.
+     *
+     * @param buf buffer containing exactly the bytes written by
+     *            {@link #encode(Object, ByteBuffer)}, which is only valid
+     *            until this method returns
+     *
+     * @return data object
+     */
+    T decode(ByteBuffer buf);
+
+    /**
+     * Write a data object at the buffer's current position.
+     *
+     * @param obj data object
+     * @param buf buffer with at least <tt>getEncodedLength(obj)</tt> bytes
+     *            remaining
+     */
+    void encode(T obj, ByteBuffer buf);
+
+    /**
+     * Get the number of bytes needed to encode a data object.
+     *
+     * @param obj data object
+     *
+     * @return number of bytes
+     */
+    int getEncodedLength(T obj);
+}
@@ -0,0 +1,264 @@
+package icecube.daq.priority;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+import org.apache.log4j.Logger;
+
+/**
+ * First-in, first-out overflow queue which stores objects in memory-mapped
+ * segment files.
+ * <p>
+ * Each record is a type byte, a length and the bytes written by the
+ * {@link SpillCodec}.  A new segment file is added whenever the newest one
+ * fills up, and segments are deleted once they have been read, except for
+ * the last one which is rewound and reused when the queue drains.
+ * <p>
+ * This class is not thread-safe; callers must synchronize on it.
+ */
+class SpillQueue<T>
+{
+    /** Log message handler */
+    private static final Logger LOG = Logger.getLogger(SpillQueue.class);
+
+    /** Number of bytes used by a record's type and length */
+    private static final int HEADER_BYTES = 5;
+
+    private static final byte DATA = 0;
+    private static final byte MARK = 1;
+    private static final byte EOS = 2;
+
+    private File dir;
+    private SpillCodec<T> codec;
+    private T eos;
+    private int segmentBytes;
+
+    /** Segments in the order they were written */
+    private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    /** Number of queued records */
+    private int count;
+
+    /**
+     * Create a spill queue
+     *
+     * @param dir directory which holds segment files
+     * @param codec converts data objects to and from bytes
+     * @param eos end-of-stream marker
+     * @param segmentBytes size of each segment file
+     */
+    SpillQueue(File dir, SpillCodec<T> codec, T eos, int segmentBytes)
+    {
+        this.dir = dir;
+        this.codec = codec;
+        this.eos = eos;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Add a data object or watermark
+     *
+     * @param obj data object or watermark
+     *
+     * @throws IOException if a new segment file could not be created
+     */
+    @SuppressWarnings("unchecked")
+    void add(Object obj)
+        throws IOException
+    {
+        final byte type;
+        final T data;
+        if (obj == eos) {
+            type = EOS;
+            data = null;
+        } else if (obj instanceof SortInput.Watermark) {
+            type = MARK;
+            data = ((SortInput.Watermark<T>) obj).value;
+        } else {
+            type = DATA;
+            data = (T) obj;
+        }
+
+        int len = 0;
+        if (data != null) {
+            len = codec.getEncodedLength(data);
+        }
+
+        Segment seg = segments.peekLast();
+        if (seg == null || seg.buf.remaining() < HEADER_BYTES + len) {
+            seg = new Segment(Math.max(segmentBytes, HEADER_BYTES + len));
+            segments.addLast(seg);
+        }
+
+        seg.buf.put(type);
+        seg.buf.putInt(len);
+        if (data != null) {
+            final int start = seg.buf.position();
+            codec.encode(data, seg.buf);
+            if (seg.buf.position() != start + len) {
+                throw new Error("Codec wrote " +
+                                (seg.buf.position() - start) +
+                                " bytes, expected " + len);
+            }
+        }
+
+        count++;
+    }
+
+    /**
+     * Throw away all records and delete all segment files.
+     */
+    void clear()
+    {
+        while (!segments.isEmpty()) {
+            segments.removeFirst().delete();
+        }
+        count = 0;
+    }
+
+    /**
+     * Are there any queued records?
+     *
+     * @return <tt>true</tt> if the queue is empty
+     */
+    boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Remove the oldest data object or watermark
+     *
+     * @return data object or watermark (<tt>null</tt> if the queue is empty)
+     */
+    Object poll()
+    {
+        if (count == 0) {
+            return null;
+        }
+
+        Segment seg = segments.peekFirst();
+        if (seg.readPos == seg.buf.position()) {
+            // everything in this segment has been read
+            segments.removeFirst().delete();
+            seg = segments.peekFirst();
+        }
+
+        final byte type = seg.buf.get(seg.readPos);
+        final int len = seg.buf.getInt(seg.readPos + 1);
+        final int start = seg.readPos + HEADER_BYTES;
+        seg.readPos = start + len;
+        count--;
+
+        Object obj;
+        if (type == EOS) {
+            obj = eos;
+        } else {
+            ByteBuffer view = seg.buf.duplicate();
+            view.position(start);
+            view.limit(start + len);
+
+            final T data = codec.decode(view.slice());
+            if (type == MARK) {
+                obj = new SortInput.Watermark<T>(data);
+            } else {
+                obj = data;
+            }
+        }
+
+        if (count == 0) {
+            // reuse the last segment from the beginning
+            while (segments.size() > 1) {
+                segments.removeFirst().delete();
+            }
+            segments.peekFirst().rewind();
+        }
+
+        return obj;
+    }
+
+    /**
+     * Get the number of queued records
+     *
+     * @return number of records
+     */
+    int size()
+    {
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SpillQueue[" + count + " in " + segments.size() +
+            " segments]";
+    }
+
+    /**
+     * Memory-mapped segment file
+     */
+    private class Segment
+    {
+        private File file;
+        private RandomAccessFile raf;
+        /** Mapped file; its position is the end of the written data */
+        private MappedByteBuffer buf;
+        /** Position of the next unread record */
+        private int readPos;
+
+        /**
+         * Create and map a new segment file
+         *
+         * @param size number of bytes
+         *
+         * @throws IOException if the file could not be created or mapped
+         */
+        Segment(int size)
+            throws IOException
+        {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create spill directory " + dir);
+            }
+
+            file = File.createTempFile("spill", ".seg", dir);
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                           size);
+            } catch (IOException ioe) {
+                delete();
+                throw ioe;
+            }
+        }
+
+        /**
+         * Close and delete the file.  The mapping itself is released when
+         * the buffer is garbage-collected.
+         */
+        void delete()
+        {
+            try {
+                raf.close();
+            } catch (IOException ioe) {
+                LOG.warn("Cannot close spill file " + file, ioe);
+            }
+
+            if (!file.delete()) {
+                LOG.warn("Cannot delete spill file " + file);
+            }
+        }
+
+        /**
+         * Start writing from the beginning of the file again
+         */
+        void rewind()
+        {
+            buf.clear();
+            readPos = 0;
+        }
+    }
+}
@@ -1,27 +1,36 @@
 package icecube.daq.priority;
 
+import icecube.daq.merge.LagPolicy;
+import icecube.daq.merge.LoserTree;
+
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
 public class SubSorter<T>
-    implements Runnable
+    implements MergeSource<T>, Runnable
 {
     /** Log message handler */
     private static final Logger LOG = Logger.getLogger(SubSorter.class);
 
-    private Sorter parent;
+    /** Longest wait between checks for a lagging input */
+    private static final long LAG_CHECK_NANOS = 10000000L;
+
+    private Sorter<T> parent;
+    /** Level which merges this subsorter's output */
+    private MergeTarget target;
     private int id;
     private T eos;
 
-    private ConcurrentLinkedQueue<T> outputQueue;
+    private ChunkQueue<T> outputQueue;
     private volatile boolean active;
 
-    private PriorityQueue<InputDataPair<T>> prioQueue;
+    private Comparator<T> comp;
+    /** Holds the current head of every input */
+    private LoserTree<T> tree;
     private AtomicBoolean running = new AtomicBoolean(false);
 
     private ArrayList<SortInput<T>> inputList;
@@ -29,6 +38,30 @@ public class SubSorter<T>
 
     private long outputCount;
 
+    /** Longest time to hold sorted data before handing it on (0 if none) */
+    private volatile long maxHoldNanos;
+    /** Time the oldest object not yet handed on was sorted (0 if none) */
+    private long heldSinceNanos;
+
+    /** What to do about lagging inputs (<tt>null</tt> to always wait) */
+    private LagPolicy lagPolicy;
+    /** An input lags if it holds up the others this long (0 to ignore) */
+    private long maxLagNanos;
+    /** ...or while this many objects queue up behind it (0 to ignore) */
+    private int maxLagDepth;
+    /** Highest value handed to the tree (only tracked for a lag policy) */
+    private T maxSeen;
+    /** Watermark used for each skipped input (<tt>null</tt> if waiting) */
+    private ArrayList<T> skipMarks;
+
+    /** Nothing handed to the next level from now on can be lower than this */
+    private volatile T lowerBound;
+
+    /** Time spent filling output chunks */
+    private volatile long sortNanos;
+    /** Time spent handing output chunks to the Sorter */
+    private volatile long checkNanos;
+
     private Thread thread;
 
     /**
@@ -40,22 +73,111 @@ public class SubSorter<T>
      * @param comp comparison function used to sort data
      * @param marker end-of-stream marker
      */
-    public SubSorter(Sorter parent, int id, int expectedInputs,
-                     Comparator<DataWrapper<T>> comp, T marker)
+    public SubSorter(Sorter<T> parent, int id, int expectedInputs,
+                     Comparator<T> comp, T marker)
     {
         this.parent = parent;
+        this.target = parent;
         this.id = id;
         this.eos = marker;
 
-        outputQueue = new ConcurrentLinkedQueue<T>();
+        outputQueue = new ChunkQueue<T>();
         active = true;
 
-        prioQueue =
-            new PriorityQueue<InputDataPair<T>>(expectedInputs, comp);
+        this.comp = comp;
 
         inputList = new ArrayList<SortInput<T>>(expectedInputs);
     }
 
+    /**
+     * Replace the lowest object with the next object from the same input.
+     * If that input is empty but has sent a watermark above the lowest
+     * object, the watermark is used instead.  Otherwise this blocks until
+     * the input has more data.
+     *
+     * @return <tt>false</tt> if the input has reached the end of its stream
+     */
+    boolean advance()
+    {
+        return refill(tree.winnerValue());
+    }
+
+    /**
+     * Read the first object from every input.  This blocks until all inputs
+     * have supplied some data.
+     */
+    void fillTree()
+    {
+        tree = new LoserTree<T>(inputList.size(), comp);
+        skipMarks = new ArrayList<T>(inputList.size());
+        for (int i = 0; i < inputList.size(); i++) {
+            skipMarks.add(null);
+
+            SortInput<T> sin = inputList.get(i);
+
+            // every input will get AT LEAST an eos marker or a watermark
+            T e = sin.getOrWatermark();
+            while (e == null && sin.getWatermark() == null) {
+                e = sin.getOrWatermark();
+            }
+
+            if (e == null) {
+                tree.setMark(i, sin.getWatermark());
+            } else if (sin.isStopped()) {
+                numStoppedInputs++;
+                tree.setDone(i);
+            } else {
+                seen(e);
+                tree.setData(i, e);
+            }
+        }
+        tree.build();
+    }
+
+    /**
+     * Hand all sorted data to the next level
+     */
+    private void flush()
+    {
+        final long startNanos = System.nanoTime();
+
+        heldSinceNanos = 0L;
+        outputQueue.publish();
+        target.check(false);
+
+        checkNanos += System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Get the total time spent in <tt>Sorter.check()</tt>
+     *
+     * @return number of nanoseconds
+     */
+    public long getCheckNanos()
+    {
+        return checkNanos;
+    }
+
+    @Override
+    public T getLowerBound()
+    {
+        return lowerBound;
+    }
+
+    /**
+     * Get the names of the inputs read by this subsorter
+     *
+     * @return list of input names
+     */
+    List<String> getInputNames()
+    {
+        ArrayList<String> names = new ArrayList<String>(inputList.size());
+        for (SortInput<T> sin : inputList) {
+            names.add(sin.getName());
+        }
+        return names;
+    }
+
     /**
      * Get number of objects sorted by the subsorter
      *
@@ -71,16 +193,29 @@ public class SubSorter<T>
      *
      * @return number of queued objects
      */
+    @Override
     public int getQueueSize()
     {
         return outputQueue.size();
     }
 
+    /**
+     * Get the total time spent sorting input data (including time spent
+     * waiting for inputs to supply more data)
+     *
+     * @return number of nanoseconds
+     */
+    public long getSortNanos()
+    {
+        return sortNanos;
+    }
+
     /**
      * Is this subsorter still reading data?
      *
      * @return <tt>false</tt> if this subsorter has consumed all input data
      */
+    @Override
     public boolean isActiveQueue()
     {
         return active;
@@ -91,11 +226,27 @@ public class SubSorter<T>
      *
      * @return <tt>true</tt> if this subsorter has produced some data
      */
+    @Override
     public boolean isEmptyQueue()
     {
         return outputQueue.isEmpty();
     }
 
+    /**
+     * Has an input been holding back data from the other inputs for too
+     * long?
+     *
+     * @param waitNanos time spent waiting so far
+     * @param depth number of objects queued in the other inputs
+     *
+     * @return <tt>true</tt> if the input is lagging
+     */
+    private boolean isLagging(long waitNanos, int depth)
+    {
+        return (maxLagNanos > 0L && waitNanos >= maxLagNanos) ||
+            (maxLagDepth > 0 && depth >= maxLagDepth);
+    }
+
     /**
      * Is the sorter thread active?
      * @return <tt>true</tt> if the thread is alive
@@ -122,11 +273,33 @@ public class SubSorter<T>
         thread.join(millis);
     }
 
+    /**
+     * Get the lowest object from all inputs.  If an input which has only
+     * sent a watermark could still supply a lower object, this waits for
+     * that input.
+     *
+     * @return lowest object (<tt>null</tt> if all inputs have stopped)
+     */
+    T lowest()
+    {
+        // wait for inputs which are holding everything else back
+        while (tree.isWinnerMarked()) {
+            refill(tree.winnerValue());
+        }
+
+        if (tree.isWinnerDone()) {
+            return null;
+        }
+
+        return tree.winnerValue();
+    }
+
     /**
      * Get the next available data object
      *
      * @return data
      */
+    @Override
     public T pollQueue()
     {
         return outputQueue.poll();
@@ -152,6 +325,165 @@ public class SubSorter<T>
         inputList.add(input);
     }
 
+    /**
+     * Set the policy for inputs which hold back data from the other inputs
+     * for too long.  This must be called before the subsorter is started.
+     *
+     * @param policy what to do about a lagging input (<tt>null</tt> to
+     *               always wait)
+     * @param maxLagNanos an input lags after holding up the others for
+     *                    this long (0 to ignore)
+     * @param maxLagDepth ...or while this many objects are queued in the
+     *                    other inputs (0 to ignore)
+     */
+    void setLagPolicy(LagPolicy policy, long maxLagNanos, int maxLagDepth)
+    {
+        this.lagPolicy = policy;
+        this.maxLagNanos = maxLagNanos;
+        this.maxLagDepth = maxLagDepth;
+    }
+
+    /**
+     * Set the longest time sorted data can be held before it is handed to
+     * the next level, even if the chunk is not full
+     *
+     * @param nanos number of nanoseconds (0 for no limit)
+     */
+    void setMaxHoldTime(long nanos)
+    {
+        maxHoldNanos = nanos;
+    }
+
+    /**
+     * Set the level which merges this subsorter's output
+     *
+     * @param target next level
+     */
+    @Override
+    public void setTarget(MergeTarget target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * Get the number of objects queued in all inputs but one
+     *
+     * @param srcInput input to leave out
+     *
+     * @return number of objects
+     */
+    private int queuedElsewhere(SortInput<T> srcInput)
+    {
+        int depth = 0;
+        for (SortInput<T> sin : inputList) {
+            if (sin != srcInput) {
+                depth += sin.getQueueSize();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Refill the winning slot from its input, using the input's watermark
+     * if it has no data.
+     *
+     * @param bound lowest value the input can still supply
+     *
+     * @return <tt>false</tt> if the input has reached the end of its stream
+     */
+    private boolean refill(T bound)
+    {
+        final int idx = tree.winner();
+        SortInput<T> srcInput = inputList.get(idx);
+
+        T newPt = srcInput.poll();
+        while (true) {
+            if (newPt == null) {
+                final T mark = srcInput.getWatermark();
+                if (mark != null && comp.compare(mark, bound) > 0) {
+                    // let other inputs continue up to the watermark
+                    tree.mark(mark);
+                    return true;
+                }
+
+                if (skipMarks.get(idx) != null && isHeld(bound)) {
+                    // keep moving past a skipped input
+                    skipMarks.set(idx, maxSeen);
+                    tree.mark(maxSeen);
+                    return true;
+                }
+
+                final boolean wasSkipped = skipMarks.get(idx) != null;
+
+                newPt = waitFor(srcInput, idx, bound);
+                if (newPt == null && !wasSkipped &&
+                    skipMarks.get(idx) != null)
+                {
+                    // stop waiting for this input
+                    tree.mark(skipMarks.get(idx));
+                    return true;
+                }
+                continue;
+            }
+
+            final T skipMark = skipMarks.get(idx);
+            if (skipMark != null && newPt != eos) {
+                if (comp.compare(newPt, skipMark) < 0) {
+                    // the merge has already moved past this object
+                    srcInput.addLate();
+                    parent.lateData(newPt);
+                    newPt = srcInput.poll();
+                    continue;
+                }
+
+                skipMarks.set(idx, null);
+            }
+
+            break;
+        }
+
+        // if input source saw end of stream
+        if (srcInput.isStopped()) {
+            // remember that another source has stopped
+            numStoppedInputs++;
+            tree.finish();
+            return false;
+        }
+
+        seen(newPt);
+        tree.replace(newPt);
+        return true;
+    }
+
+    /**
+     * Is some other input's data being held back while waiting for an
+     * input?
+     *
+     * @param bound last value merged from the input
+     *
+     * @return <tt>true</tt> if the tree holds a value above <tt>bound</tt>
+     */
+    private boolean isHeld(T bound)
+    {
+        // everything up to 'bound' has been merged, so anything higher
+        // which was handed to the tree is still waiting
+        return maxSeen != null && comp.compare(maxSeen, bound) > 0;
+    }
+
+    /**
+     * Remember the highest value handed to the tree
+     *
+     * @param data data object
+     */
+    private void seen(T data)
+    {
+        if (lagPolicy != null &&
+            (maxSeen == null || comp.compare(data, maxSeen) > 0))
+        {
+            maxSeen = data;
+        }
+    }
+
     /**
      * Start the subsorter thread
      */
@@ -189,21 +521,18 @@ public class SubSorter<T>
         // the data out of the sorter, but we don't want
         // all subsorters to try to push data out at the same time
 
-        for (SortInput<T> sin : inputList) {
-            T e = sin.get();
-
-            // every input will get AT LEAST an eos marker
-            prioQueue.add(new InputDataPair<T>(sin, e));
-        }
+        fillTree();
 
         running.set(true);
 
         while (running.get()) {
+            final long startNanos = System.nanoTime();
+            final long prevCheckNanos = checkNanos;
+
             int chunkCount = 0;
             while (running.get()) {
-                InputDataPair<T> minElement = prioQueue.poll();
+                final T minElement = lowest();
                 if (minElement == null) {
-                    // the priority queue is empty
                     // we've completed this queue, all inputs should
                     // be stopped at this point
                     running.set(false);
@@ -214,7 +543,7 @@ public class SubSorter<T>
                 }
 
                 try {
-                    outputQueue.add(minElement.data());
+                    outputQueue.add(minElement);
                 } catch (OutOfMemoryError oom) {
                     // out of memory, give up
                     running.set(false);
@@ -231,31 +560,39 @@ public class SubSorter<T>
                 outputCount++;
                 chunkCount++;
 
-                // get next piece of data
-                SortInput<T> srcInput = minElement.input();
-                T newPt = srcInput.get();
+                if (heldSinceNanos == 0L) {
+                    heldSinceNanos = System.nanoTime();
+                }
 
-                // if input source saw end of stream
-                if (srcInput.isStopped()) {
-                    // remember that another source has stopped
-                    numStoppedInputs++;
+                // get next piece of data
+                if (!advance()) {
                     if (numStoppedInputs == inputList.size()) {
                         running.set(false);
                     }
                     break;
                 }
 
-                prioQueue.add(new InputDataPair<T>(srcInput, newPt));
-
                 // if we've got enough data queued up,
                 // break so the main sorter does its thing
                 if (chunkCount >= parent.getChunkSize()) {
                     break;
                 }
+
+                // don't hold on to data for too long
+                final long maxHold = maxHoldNanos;
+                if (maxHold > 0L && heldSinceNanos != 0L &&
+                    System.nanoTime() - heldSinceNanos >= maxHold)
+                {
+                    break;
+                }
             }
 
+            // don't count early flushes as sorting time
+            sortNanos += System.nanoTime() - startNanos -
+                (checkNanos - prevCheckNanos);
+
             // push the temp output buffer onwards
-            parent.check(false);
+            flush();
         }
 
         // push an end-of-subsorter marker up to the sorter
@@ -263,12 +600,147 @@ public class SubSorter<T>
         //  so just use the first one
         outputCount++;
         outputQueue.add(eos);
+        outputQueue.publish();
 
         // this sorter is no longer active
         active = false;
 
         // one last check
-        parent.check(true);
+        target.check(true);
+    }
+
+    /**
+     * Wait for an input to supply more data or a new watermark, handing
+     * held data to the next level if it gets too old.
+     *
+     * @param srcInput input
+     * @param idx index of the input's slot in the tree
+     * @param bound last value merged from the input
+     *
+     * @return next data object (<tt>null</tt> if a watermark arrived first
+     *         or the input is being skipped)
+     */
+    private T waitFor(SortInput<T> srcInput, int idx, T bound)
+    {
+        // don't hide sorted data from the Sorter while we wait
+        outputQueue.publish();
+
+        // everything still to come is at least 'bound', so let the next
+        // level merge other sources' data up to it
+        if (lowerBound == null || comp.compare(bound, lowerBound) > 0) {
+            lowerBound = bound;
+            target.check(false);
+        }
+
+        if (lagPolicy != null) {
+            return waitForLagging(srcInput, idx, bound);
+        }
+
+        final long maxHold = maxHoldNanos;
+        if (maxHold > 0L && heldSinceNanos != 0L) {
+            // only wait until the held data gets too old
+            final long waitNanos =
+                heldSinceNanos + maxHold - System.nanoTime();
+            if (waitNanos > 0L) {
+                final T mark = srcInput.getWatermark();
+
+                T newPt = srcInput.get(waitNanos);
+                if (newPt != null || srcInput.getWatermark() != mark) {
+                    return newPt;
+                }
+            }
+
+            flush();
+        }
+
+        return srcInput.getOrWatermark();
+    }
+
+    /**
+     * Wait for an input in short steps, applying the lag policy if it
+     * holds up the other inputs for too long.
+     *
+     * @param srcInput input
+     * @param idx index of the input's slot in the tree
+     * @param bound last value merged from the input
+     *
+     * @return next data object (<tt>null</tt> if a watermark arrived first
+     *         or the input is being skipped)
+     */
+    private T waitForLagging(SortInput<T> srcInput, int idx, T bound)
+    {
+        final T mark = srcInput.getWatermark();
+        long startNanos = System.nanoTime();
+
+        boolean alerted = false;
+        try {
+            while (true) {
+                final long now = System.nanoTime();
+
+                long waitNanos = LAG_CHECK_NANOS;
+                final long maxHold = maxHoldNanos;
+                if (maxHold > 0L && heldSinceNanos != 0L) {
+                    final long holdNanos = heldSinceNanos + maxHold - now;
+                    if (holdNanos <= 0L) {
+                        flush();
+                    } else if (holdNanos < waitNanos) {
+                        waitNanos = holdNanos;
+                    }
+                }
+
+                T newPt = srcInput.get(waitNanos);
+                if (newPt != null || srcInput.getWatermark() != mark) {
+                    return newPt;
+                }
+
+                final int depth = queuedElsewhere(srcInput);
+                if (depth == 0 && !isHeld(bound)) {
+                    // nothing else is waiting, so this input isn't lagging
+                    startNanos = System.nanoTime();
+                    srcInput.setLagNanos(0L);
+                    continue;
+                }
+
+                final long lag = System.nanoTime() - startNanos;
+                srcInput.setLagNanos(lag);
+                if (alerted || !isLagging(lag, depth)) {
+                    continue;
+                }
+
+                switch (lagPolicy) {
+                case ALERT:
+                    LOG.warn(String.format("Sub sorter #%d has waited %d ms" +
+                                           " for %s", id, lag / 1000000L,
+                                           srcInput.getName()));
+                    alerted = true;
+                    break;
+                case SKIP:
+                    if (maxSeen == null) {
+                        // nothing has been merged yet, so keep waiting
+                        alerted = true;
+                        break;
+                    }
+
+                    LOG.warn(String.format("Sub sorter #%d is skipping %s" +
+                                           " after %d ms", id,
+                                           srcInput.getName(),
+                                           lag / 1000000L));
+                    skipMarks.set(idx, maxSeen);
+                    return null;
+                case CLOSE:
+                    LOG.error(String.format("Sub sorter #%d is closing %s" +
+                                            " after %d ms", id,
+                                            srcInput.getName(),
+                                            lag / 1000000L));
+                    parent.evictedData(srcInput.evict());
+                    return eos;
+                default:
+                    throw new Error("Unknown lag policy " + lagPolicy);
+                }
+            }
+        } finally {
+            srcInput.setLagNanos(0L);
+        }
     }
 
     /**
@@ -298,28 +770,4 @@ public class SubSorter<T>
                              outputQueue.size(), outputCount) +
             activeStr + stopStr;
     }
-
-    class InputDataPair<T>
-        implements DataWrapper<T>
-    {
-        private SortInput<T> sortInput;
-        private T data;
-
-        InputDataPair(SortInput<T> sortInput, T data)
-        {
-            this.sortInput = sortInput;
-            this.data = data;
-        }
-
-        @Override
-        public T data()
-        {
-            return data;
-        }
-
-        SortInput<T> input()
-        {
-            return sortInput;
-        }
-    }
 }
@@ -0,0 +1,397 @@
+package icecube.daq.splicer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Analysis stage which runs another {@link SplicedAnalysis} on its own
+ * thread, so a slow analysis doesn't stall the splicer's merge.
+ * <p>
+ * Each delivered list is copied into the next slot of a fixed ring of
+ * reusable lists and the splicer carries on merging; the analysis thread
+ * empties the slots in order.  The splicer only waits when every slot is
+ * full.  The analysis sees a list which is reused once
+ * <tt>analyze()</tt> returns, so it must not keep a reference to it.
+ * <p>
+ * The pipeline should be added as a listener of its splicer so that it
+ * hands over everything still in the ring when the splicer stops.
+ * The wait metrics show which side is the bottleneck: time the splicer
+ * spends waiting for a free slot means the analysis is too slow, and time
+ * the analysis thread spends waiting for a full slot means the merge is.
+ */
+public class AnalysisPipeline<T>
+    implements SplicedAnalysis<T>, SplicerListener<T>, Runnable
+{
+    private static final Logger logger =
+        Logger.getLogger(AnalysisPipeline.class);
+
+    /** Number of times to busy-wait before yielding */
+    private static final int SPIN_TRIES = 100;
+    /** Number of times to yield before parking */
+    private static final int YIELD_TRIES = 100;
+    /** Longest single park before the waiting thread checks again */
+    private static final long MAX_PARK_NANOS = 1000000L;
+
+    private SplicedAnalysis<T> analysis;
+    private WaitStrategy strategy;
+
+    /** Reusable lists, one per slot */
+    private List<ArrayList<T>> slots;
+
+    /** Number of lists handed to the ring */
+    private AtomicLong published = new AtomicLong();
+    /** Number of lists handed to the analysis */
+    private AtomicLong consumed = new AtomicLong();
+
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+
+    /** Only changed while holding the lock, but read without it */
+    private volatile Thread thread;
+    private volatile boolean stopping;
+
+    /** Time the splicer spent waiting for a free slot */
+    private volatile long mergeWaitNanos;
+    /** Time the analysis thread spent waiting for a full slot */
+    private volatile long analysisWaitNanos;
+    /** Sum of the number of full slots seen by each delivery */
+    private volatile long occupancySum;
+    private volatile long numObjects;
+    private volatile long numFailures;
+
+    /**
+     * Create an analysis pipeline
+     *
+     * @param analysis analysis run on the pipeline thread
+     * @param depth number of lists which can be waiting for the analysis
+     * @param strategy how each side waits for the other
+     */
+    public AnalysisPipeline(SplicedAnalysis<T> analysis, int depth,
+                            WaitStrategy strategy)
+    {
+        if (analysis == null) {
+            throw new IllegalArgumentException("Analysis cannot be null");
+        }
+        if (depth < 1) {
+            throw new IllegalArgumentException("Depth must be positive");
+        }
+        if (strategy == null) {
+            throw new IllegalArgumentException("Wait strategy cannot be" +
+                                               " null");
+        }
+
+        this.analysis = analysis;
+        this.strategy = strategy;
+
+        slots = new ArrayList<ArrayList<T>>(depth);
+        for (int i = 0; i < depth; i++) {
+            slots.add(new ArrayList<T>());
+        }
+    }
+
+    /**
+     * Copy the objects into the next free slot, waiting if every slot is
+     * full.  Only the splicer's merge thread may call this.
+     *
+     * @param splicedObjects merged objects
+     */
+    @Override
+    public void analyze(List<T> splicedObjects)
+    {
+        if (splicedObjects.size() == 0) {
+            return;
+        }
+
+        if (thread == null) {
+            start();
+        }
+
+        final long seq = published.get();
+        if (seq - consumed.get() >= slots.size()) {
+            final long start = System.nanoTime();
+            for (int tries = 0; seq - consumed.get() >= slots.size();
+                 tries++)
+            {
+                if (strategy == WaitStrategy.PARK &&
+                    tries >= SPIN_TRIES + YIELD_TRIES)
+                {
+                    waitingProducer = Thread.currentThread();
+                    if (seq - consumed.get() >= slots.size()) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    }
+                    waitingProducer = null;
+                }
+
+                pause(tries);
+            }
+            mergeWaitNanos += System.nanoTime() - start;
+        }
+
+        ArrayList<T> slot = slots.get((int) (seq % slots.size()));
+        slot.addAll(splicedObjects);
+
+        occupancySum += seq - consumed.get();
+        numObjects += splicedObjects.size();
+
+        published.set(seq + 1);
+
+        final Thread waiter = waitingConsumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    public void disposed(SplicerChangedEvent<T> event)
+    {
+        // do nothing
+    }
+
+    @Override
+    public void failed(SplicerChangedEvent<T> event)
+    {
+        stop();
+    }
+
+    /**
+     * Get the wrapped analysis
+     *
+     * @return analysis run on the pipeline thread
+     */
+    public SplicedAnalysis<T> getAnalysis()
+    {
+        return analysis;
+    }
+
+    /**
+     * Get the time the analysis thread has spent waiting for the splicer
+     *
+     * @return number of nanoseconds
+     */
+    public long getAnalysisWaitNanos()
+    {
+        return analysisWaitNanos;
+    }
+
+    /**
+     * Get the average number of slots which were already full when a
+     * list was delivered
+     *
+     * @return average occupancy (0 if nothing has been delivered)
+     */
+    public double getAverageOccupancy()
+    {
+        final long num = published.get();
+        if (num == 0L) {
+            return 0.0;
+        }
+
+        return (double) occupancySum / (double) num;
+    }
+
+    /**
+     * Get the number of slots
+     *
+     * @return ring depth
+     */
+    public int getDepth()
+    {
+        return slots.size();
+    }
+
+    /**
+     * Get the time the splicer has spent waiting for a free slot
+     *
+     * @return number of nanoseconds
+     */
+    public long getMergeWaitNanos()
+    {
+        return mergeWaitNanos;
+    }
+
+    /**
+     * Get the number of lists handed to the pipeline
+     *
+     * @return number of lists
+     */
+    public long getNumBatches()
+    {
+        return published.get();
+    }
+
+    /**
+     * Get the number of times the wrapped analysis threw an exception
+     *
+     * @return number of failures
+     */
+    public long getNumFailures()
+    {
+        return numFailures;
+    }
+
+    /**
+     * Get the number of objects handed to the pipeline
+     *
+     * @return number of objects
+     */
+    public long getNumObjects()
+    {
+        return numObjects;
+    }
+
+    /**
+     * Get the number of slots waiting for the analysis
+     *
+     * @return number of full slots
+     */
+    public int getOccupancy()
+    {
+        // read the consumed count first so the result is never negative
+        final long done = consumed.get();
+        return (int) (published.get() - done);
+    }
+
+    /**
+     * Wait between checks of the other side's progress
+     *
+     * @param tries number of times the caller has checked so far
+     */
+    private void pause(int tries)
+    {
+        if (strategy == WaitStrategy.YIELD ||
+            (strategy == WaitStrategy.PARK && tries >= SPIN_TRIES))
+        {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Hand each full slot to the analysis until the pipeline is stopped
+     * and the ring is empty.
+     */
+    @Override
+    public void run()
+    {
+        long seq = consumed.get();
+        while (true) {
+            if (seq == published.get()) {
+                if (stopping) {
+                    break;
+                }
+
+                final long start = System.nanoTime();
+                for (int tries = 0; seq == published.get() && !stopping;
+                     tries++)
+                {
+                    if (strategy == WaitStrategy.PARK &&
+                        tries >= SPIN_TRIES + YIELD_TRIES)
+                    {
+                        waitingConsumer = Thread.currentThread();
+                        if (seq == published.get() && !stopping) {
+                            LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                        }
+                        waitingConsumer = null;
+                    }
+
+                    pause(tries);
+                }
+                analysisWaitNanos += System.nanoTime() - start;
+                continue;
+            }
+
+            ArrayList<T> slot = slots.get((int) (seq % slots.size()));
+            try {
+                analysis.analyze(slot);
+            } catch (Throwable thr) {
+                numFailures++;
+                logger.error("Analysis failed for " + slot.size() +
+                             " objects", thr);
+            } finally {
+                slot.clear();
+            }
+
+            seq++;
+            consumed.set(seq);
+
+            final Thread waiter = waitingProducer;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Start the analysis thread.  This is done automatically by the first
+     * delivery or when the splicer starts.
+     */
+    public synchronized void start()
+    {
+        if (thread != null) {
+            return;
+        }
+
+        stopping = false;
+
+        thread = new Thread(this);
+        thread.setName("AnalysisPipeline+" + analysis);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void started(SplicerChangedEvent<T> event)
+    {
+        start();
+    }
+
+    @Override
+    public void starting(SplicerChangedEvent<T> event)
+    {
+        // do nothing
+    }
+
+    /**
+     * Hand everything left in the ring to the analysis, then stop the
+     * analysis thread.
+     */
+    public synchronized void stop()
+    {
+        if (thread == null) {
+            return;
+        }
+
+        stopping = true;
+        LockSupport.unpark(thread);
+
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            logger.error("Interrupted while waiting for analysis to finish");
+        }
+
+        thread = null;
+    }
+
+    @Override
+    public void stopped(SplicerChangedEvent<T> event)
+    {
+        stop();
+    }
+
+    @Override
+    public void stopping(SplicerChangedEvent<T> event)
+    {
+        // do nothing
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AnalysisPipeline[" + getOccupancy() + "/" + slots.size() +
+            "]" + analysis;
+    }
+}
@@ -0,0 +1,23 @@
+package icecube.daq.splicer;
+
+/**
+ * This class is thrown when an object cannot be pushed into a Strand
+ * because the splicer's buffer budget is used up.  The Strand is still open
+ * and the push may be retried, so this is deliberately not a
+ * {@link ClosedStrandException}.  It is unchecked so that only callers
+ * which chose the <tt>REJECT</tt> or <tt>TIMEOUT</tt> policy need to
+ * handle it.
+ */
+public class BudgetExceededException
+        extends RuntimeException
+{
+    /**
+     * Create an instance of this class.
+     *
+     * @param message the message string for this object.
+     */
+    public BudgetExceededException(String message)
+    {
+        super(message);
+    }
+}
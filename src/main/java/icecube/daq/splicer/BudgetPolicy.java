@@ -0,0 +1,14 @@
+package icecube.daq.splicer;
+
+/**
+ * What a strand push does when the splicer's buffer budget is used up.
+ */
+public enum BudgetPolicy
+{
+    /** Wait until the splicer frees enough space */
+    BLOCK,
+    /** Wait for a limited time, then throw BudgetExceededException */
+    TIMEOUT,
+    /** Throw BudgetExceededException immediately */
+    REJECT
+}
@@ -0,0 +1,132 @@
+package icecube.daq.splicer;
+
+import java.util.List;
+
+/**
+ * Strand tail which charges every pushed object to the splicer's
+ * {@link BufferBudget} before passing it on.  The splicer gives the space
+ * back when it hands the object to the analysis.
+ */
+class BudgetedStrandTail<T>
+    implements StrandTail<T>
+{
+    private StrandTail<T> tail;
+    private BufferBudget<T> budget;
+    private T lastObject;
+
+    private boolean closed;
+
+    /**
+     * Create a budgeted tail
+     *
+     * @param tail splicer's strand tail
+     * @param budget splicer-wide buffer budget
+     * @param lastObject end-of-stream object (never charged)
+     */
+    BudgetedStrandTail(StrandTail<T> tail, BufferBudget<T> budget,
+                       T lastObject)
+    {
+        this.tail = tail;
+        this.budget = budget;
+        this.lastObject = lastObject;
+
+        budget.addStrand();
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (!closed) {
+            closed = true;
+            budget.removeStrand();
+        }
+        tail.close();
+    }
+
+    @Override
+    public T head()
+    {
+        return tail.head();
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return tail.isClosed();
+    }
+
+    @Override
+    public StrandTail<T> push(List<T> spliceables)
+        throws OrderingException, ClosedStrandException
+    {
+        long amount = 0L;
+        int count = 0;
+        for (T spl : spliceables) {
+            if (spl != lastObject) {
+                amount += budget.sizeOf(spl);
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            budget.acquire(amount, count, tail);
+        }
+
+        boolean pushed = false;
+        try {
+            tail.push(spliceables);
+            pushed = true;
+        } finally {
+            if (!pushed && count > 0) {
+                budget.release(amount, count);
+            }
+        }
+
+        return this;
+    }
+
+    @Override
+    public StrandTail<T> push(T spliceable)
+        throws OrderingException, ClosedStrandException
+    {
+        if (spliceable == lastObject) {
+            tail.push(spliceable);
+            return this;
+        }
+
+        final long amount = budget.sizeOf(spliceable);
+        budget.acquire(amount, 1, tail);
+
+        boolean pushed = false;
+        try {
+            tail.push(spliceable);
+            pushed = true;
+        } finally {
+            if (!pushed) {
+                budget.release(amount, 1);
+            }
+        }
+
+        return this;
+    }
+
+    @Override
+    public StrandTail<T> pushWatermark(T mark)
+        throws ClosedStrandException
+    {
+        tail.pushWatermark(mark);
+        return this;
+    }
+
+    @Override
+    public int size()
+    {
+        return tail.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Budgeted" + tail;
+    }
+}
@@ -0,0 +1,323 @@
+package icecube.daq.splicer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limit on the total amount of data buffered by all of a splicer's strands.
+ * <p>
+ * Usage is counted in objects, or in the units returned by a
+ * {@link SizeEstimator}.  Each push is charged to the budget and each
+ * object is given back once the splicer has handed it to the analysis.
+ * When a push doesn't fit, the {@link BudgetPolicy} decides whether it
+ * waits, waits for a limited time, or is rejected.
+ * <p>
+ * Strands which are ahead of the others are slowed first: once a quarter
+ * of the budget is left, only strands holding no more than their share of
+ * the buffered objects may continue.  This leaves room for the strands
+ * holding back the merge to catch up.  A push into an empty strand is
+ * always let through, even if it goes over the limit, since the merge
+ * can't move (and so can't free any space) until every strand has data.
+ * <p>
+ * A budget must only be used by a single splicer, which resets it when it
+ * stops.
+ */
+public class BufferBudget<T>
+{
+    private static final Logger logger =
+        Logger.getLogger(BufferBudget.class);
+
+    /** Longest single wait before a blocked push checks its strand again */
+    private static final long WAIT_SLICE_MILLIS = 10L;
+
+    private long limit;
+    /** Usage above which strands which are ahead must wait */
+    private long softLimit;
+    private SizeEstimator<T> estimator;
+    private BudgetPolicy policy;
+    private long timeoutNanos;
+
+    /** Amount currently charged to the budget */
+    private long used;
+    /** Number of objects currently charged to the budget */
+    private long numQueued;
+    /** Number of open strands */
+    private int numStrands;
+    /** Number of pushes waiting for space */
+    private int numWaiting;
+
+    /** Number of pushes which had to wait for space */
+    private volatile long numBlocked;
+    /** Number of pushes which were rejected or timed out */
+    private volatile long numRejected;
+
+    /**
+     * Create a budget which counts objects
+     *
+     * @param limit maximum number of buffered objects
+     * @param policy what to do when the budget is used up
+     * @param timeoutMillis maximum wait for the <tt>TIMEOUT</tt> policy
+     */
+    public BufferBudget(long limit, BudgetPolicy policy, long timeoutMillis)
+    {
+        this(limit, null, policy, timeoutMillis);
+    }
+
+    /**
+     * Create a budget
+     *
+     * @param limit maximum amount of buffered data
+     * @param estimator object size estimator (<tt>null</tt> to count
+     *                  objects)
+     * @param policy what to do when the budget is used up
+     * @param timeoutMillis maximum wait for the <tt>TIMEOUT</tt> policy
+     */
+    public BufferBudget(long limit, SizeEstimator<T> estimator,
+                        BudgetPolicy policy, long timeoutMillis)
+    {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy cannot be null");
+        }
+        if (policy == BudgetPolicy.TIMEOUT && timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+
+        this.limit = limit;
+        this.estimator = estimator;
+        this.policy = policy;
+
+        softLimit = limit - limit / 4;
+        timeoutNanos = timeoutMillis * 1000000L;
+    }
+
+    /**
+     * Charge objects pushed into a strand to the budget, waiting or failing
+     * according to the policy if they don't fit.
+     *
+     * @param amount total size of the objects
+     * @param count number of objects
+     * @param tail strand receiving the objects
+     *
+     * @throws BudgetExceededException if the objects were rejected or the
+     *                                 wait timed out
+     */
+    void acquire(long amount, int count, StrandTail<?> tail)
+        throws BudgetExceededException
+    {
+        boolean waited = false;
+        long deadline = 0L;
+        while (true) {
+            // read the depth without holding the budget lock, since the
+            // strand may need its own lock
+            final long depth = tail.size();
+
+            synchronized (this) {
+                if (fits(amount, depth)) {
+                    used += amount;
+                    numQueued += count;
+                    return;
+                }
+
+                if (policy == BudgetPolicy.REJECT) {
+                    numRejected++;
+                    throw new BudgetExceededException("Buffer budget of " +
+                                                      limit +
+                                                      " is used up");
+                }
+
+                if (!waited) {
+                    waited = true;
+                    numBlocked++;
+                    deadline = System.nanoTime() + timeoutNanos;
+                }
+
+                long waitMillis = WAIT_SLICE_MILLIS;
+                if (policy == BudgetPolicy.TIMEOUT) {
+                    final long left = deadline - System.nanoTime();
+                    if (left <= 0L) {
+                        numRejected++;
+                        throw new BudgetExceededException("Timed out" +
+                                                          " waiting for" +
+                                                          " buffer budget");
+                    }
+                    waitMillis = Math.min(waitMillis, left / 1000000L + 1L);
+                }
+
+                numWaiting++;
+                try {
+                    wait(waitMillis);
+                } catch (InterruptedException ie) {
+                    throw new BudgetExceededException("Interrupted while" +
+                                                      " waiting for buffer" +
+                                                      " budget");
+                } finally {
+                    numWaiting--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Note that a strand has been created.
+     */
+    synchronized void addStrand()
+    {
+        numStrands++;
+    }
+
+    /**
+     * Can objects be added to a strand without going over the budget?
+     *
+     * @param amount total size of the objects
+     * @param depth number of objects already buffered by the strand
+     *
+     * @return <tt>true</tt> if the objects fit
+     */
+    private boolean fits(long amount, long depth)
+    {
+        if (used == 0L || depth == 0L) {
+            // always let something through, however large it is, and never
+            // stop a strand which the merge is waiting for
+            return true;
+        }
+
+        final long total = used + amount;
+        if (total > limit) {
+            return false;
+        }
+
+        if (total <= softLimit || numStrands <= 1) {
+            return true;
+        }
+
+        // only let strands which aren't ahead of the others continue
+        return depth * numStrands <= numQueued;
+    }
+
+    /**
+     * Get the maximum amount of buffered data
+     *
+     * @return budget limit
+     */
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Get the number of pushes which had to wait for space
+     *
+     * @return number of blocked pushes
+     */
+    public long getNumBlocked()
+    {
+        return numBlocked;
+    }
+
+    /**
+     * Get the number of pushes which were rejected or timed out
+     *
+     * @return number of rejected pushes
+     */
+    public long getNumRejected()
+    {
+        return numRejected;
+    }
+
+    /**
+     * Get the policy used when the budget is used up
+     *
+     * @return budget policy
+     */
+    public BudgetPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Get the amount of data currently buffered
+     *
+     * @return amount used
+     */
+    public synchronized long getUsed()
+    {
+        return used;
+    }
+
+    /**
+     * Give an object's space back to the budget.
+     *
+     * @param obj object which has left the splicer
+     */
+    void release(T obj)
+    {
+        release(sizeOf(obj), 1);
+    }
+
+    /**
+     * Give space back to the budget.
+     *
+     * @param amount total size of the objects
+     * @param count number of objects
+     */
+    synchronized void release(long amount, int count)
+    {
+        used -= amount;
+        numQueued -= count;
+        if (used < 0L || numQueued < 0L) {
+            // something was given back twice (or never charged)
+            logger.error("Released more than was charged to " + this +
+                         " (" + numQueued + " objects)");
+            used = 0L;
+            numQueued = 0L;
+        }
+
+        if (numWaiting > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Note that a strand has been closed.
+     */
+    synchronized void removeStrand()
+    {
+        numStrands--;
+    }
+
+    /**
+     * Forget about all buffered data when the splicer stops.
+     */
+    synchronized void reset()
+    {
+        used = 0L;
+        numQueued = 0L;
+        numStrands = 0;
+        notifyAll();
+    }
+
+    /**
+     * Get the size charged for an object
+     *
+     * @param obj object
+     *
+     * @return estimated size, or 1 if objects are being counted
+     */
+    long sizeOf(T obj)
+    {
+        if (estimator == null) {
+            return 1L;
+        }
+
+        return estimator.estimateSize(obj);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferBudget[" + getUsed() + "/" + limit + "," + policy +
+            "]";
+    }
+}
@@ -1,10 +1,17 @@
 package icecube.daq.splicer;
 
+import icecube.daq.hkn1.LeafQueue;
 import icecube.daq.hkn1.Node;
+import icecube.daq.merge.LagPolicy;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 
@@ -13,11 +20,18 @@ public class HKN1Splicer<T>
 {
     private static final Logger logger = Logger.getLogger(HKN1Splicer.class);
 
+    /** Initial capacity of the reusable delivery list */
+    private static final int DELIVERY_CAPACITY = 1024;
+    /** Longest park between checks for a lagging strand */
+    private static final long LAG_CHECK_NANOS = 10000000L;
+
     private SplicedAnalysis<T>        analysis;
     private Comparator<T>             cmp;
     private T                         lastObject;
 
     private List<Node<T>>             exposeList    = new ArrayList<Node<T>>();
+    private List<HKN1LeafNode>        leafList      =
+        new ArrayList<HKN1LeafNode>();
     private Node<T>                   terminalNode;
     private volatile State            state         = State.STOPPED;
     private volatile int              counter;
@@ -26,6 +40,43 @@ public class HKN1Splicer<T>
     private long                      waitMillis    = 1000L;
     private long                      totalSent;
 
+    /** Deliver as soon as this many objects are waiting... */
+    private int                       deliveryCount = 1;
+    /** ...or the oldest waiting object has waited this long */
+    private long                      deliveryDelay = 0L;
+    /** If non-null, this List is handed to the analysis on every delivery */
+    private ArrayList<T>              deliveryList;
+
+    /** Thread which merges the strands */
+    private volatile Thread           runThread;
+    /** Set while the merge thread is parked waiting for data */
+    private volatile boolean          sleeping;
+
+    /** What to do about lagging strands (<tt>null</tt> to always wait) */
+    private LagPolicy                 lagPolicy;
+    /** A strand lags if it holds up the others this long (0 to ignore) */
+    private long                      maxLagNanos;
+    /** ...or while this many objects are stuck in the tree (0 to ignore) */
+    private int                       maxLagDepth;
+    /** Number of objects in the tree (only used by the merge thread) */
+    private long                      held;
+    /** Highest object moved into the tree (only used by the merge thread) */
+    private T                         maxDrained;
+    /** Number of objects dropped because they arrived too late */
+    private AtomicLong                numLate       = new AtomicLong();
+    /** Receives objects which arrived too late (may be <tt>null</tt>) */
+    private SplicedAnalysis<T>        lateAnalysis;
+    /** Number of objects each strand holds to fix their order (0 if none) */
+    private int                       reorderWindow;
+    /** Longest time a strand holds objects to fix their order */
+    private long                      reorderHoldMillis;
+    /** Releases objects held too long (<tt>null</tt> if there is no limit) */
+    private ReorderFlusher            reorderFlusher;
+    /** Limit on buffered data (<tt>null</tt> if unlimited) */
+    private BufferBudget<T>           budget;
+    /** <tt>true</tt> if each new strand is only pushed by one thread */
+    private boolean                   singleProducer;
+
     public HKN1Splicer(SplicedAnalysis<T> analysis, Comparator<T> cmp,
                        T lastObject)
     {
@@ -46,15 +97,44 @@ public class HKN1Splicer<T>
         }
     }
 
+    /**
+     * Add a new strand.  Any thread may push into the strand unless
+     * {@link #setSingleProducerStrands} was turned on first, in which case
+     * only one thread may ever push into it.
+     *
+     * @return new strand
+     */
     @Override
     public StrandTail<T> beginStrand()
     {
         Node<T> node = new Node<T>(cmp);
+        HKN1LeafNode leaf = new HKN1LeafNode(node, singleProducer);
         synchronized (exposeList) {
             exposeList.add(node);
+            leafList.add(leaf);
         }
         counter++;
-        return new HKN1LeafNode(node);
+
+        StrandTail<T> tail = leaf;
+        if (reorderWindow > 0) {
+            ReorderingStrandTail<T> rtail =
+                new ReorderingStrandTail<T>(tail, cmp, lastObject,
+                                            reorderWindow,
+                                            reorderHoldMillis * 1000000L,
+                                            lateAnalysis, numLate, budget);
+            if (reorderFlusher != null) {
+                reorderFlusher.add(rtail);
+            }
+            tail = rtail;
+        }
+
+        if (budget != null) {
+            // charge objects before they're held for reordering, so a
+            // rejected push never leaves the reorder window half-done
+            tail = new BudgetedStrandTail<T>(tail, budget, lastObject);
+        }
+
+        return tail;
     }
 
     private void changeState(State newState)
@@ -92,8 +172,58 @@ public class HKN1Splicer<T>
             }
         }
 
-        synchronized (this) {
-            notify();
+        wakeup();
+    }
+
+    /**
+     * Apply the lag policy to any strand which has held up the objects
+     * waiting in the tree for too long.  Must only be called by the merge
+     * thread.
+     *
+     * @param leaves strand tails
+     */
+    private void checkLag(List<HKN1LeafNode> leaves)
+    {
+        final long now = System.nanoTime();
+        for (HKN1LeafNode leaf : leaves) {
+            if (held == 0 || !leaf.isBlocking(maxDrained)) {
+                leaf.clearLag();
+                continue;
+            }
+
+            if (leaf.isSkipped()) {
+                // don't wait again until the strand sends more data
+                leaf.skip(maxDrained);
+                continue;
+            }
+
+            final long lag = leaf.updateLag(now);
+            if (leaf.isAlerted() ||
+                ((maxLagNanos == 0L || lag < maxLagNanos) &&
+                 (maxLagDepth == 0 || held < maxLagDepth)))
+            {
+                continue;
+            }
+
+            switch (lagPolicy) {
+            case ALERT:
+                logger.warn("Strand " + leaf + " has held up " + held +
+                            " objects for " + lag / 1000000L + " ms");
+                leaf.setAlerted();
+                break;
+            case SKIP:
+                logger.warn("Skipping strand " + leaf + " after " +
+                            lag / 1000000L + " ms");
+                leaf.skip(maxDrained);
+                break;
+            case CLOSE:
+                logger.error("Closing strand " + leaf + " after " +
+                             lag / 1000000L + " ms");
+                leaf.evict();
+                break;
+            default:
+                throw new Error("Unknown lag policy " + lagPolicy);
+            }
         }
     }
 
@@ -236,18 +366,71 @@ public class HKN1Splicer<T>
         return state;
     }
 
+    /**
+     * Get the number of objects which arrived too late to be spliced in
+     * order
+     *
+     * @return number of late objects
+     */
+    @Override
+    public long getNumberOfLateObjects()
+    {
+        return numLate.get();
+    }
+
     @Override
     public int getStrandCount()
     {
         return exposeList.size();
     }
 
+    /**
+     * Get the time the splicer has been waiting on each strand while
+     * other strands' objects were stuck in the tree
+     *
+     * @return map of strand names to nanoseconds
+     */
+    @Override
+    public Map<String, Long> getStrandLagNanos()
+    {
+        Map<String, Long> lags = new LinkedHashMap<String, Long>();
+        synchronized (exposeList) {
+            for (HKN1LeafNode leaf : leafList) {
+                lags.put(leaf.getName(), leaf.getLagNanos());
+            }
+        }
+        return lags;
+    }
+
     @Override
     public long getTotalSent()
     {
         return totalSent;
     }
 
+    /**
+     * Count objects which came out of the tree out of order and hand them
+     * to the late-data analysis.
+     *
+     * @param late out-of-order objects
+     */
+    private void lateData(List<T> late)
+    {
+        if (numLate.getAndAdd(late.size()) == 0L) {
+            logger.warn("Ignoring out-of-order objects (see late-object" +
+                        " count for the total)");
+        }
+
+        if (lateAnalysis != null) {
+            try {
+                lateAnalysis.analyze(late);
+            } catch (Throwable thr) {
+                logger.error("Late-data analysis failed for " +
+                             late.size() + " objects", thr);
+            }
+        }
+    }
+
     /**
      * Perform any extra code during this pass in the loop.
      *
@@ -272,6 +455,169 @@ public class HKN1Splicer<T>
         }
     }
 
+    /**
+     * Limit the total amount of data buffered by all strands.  Pushes which
+     * would go over the budget wait or fail according to its policy.
+     * This must be set before any strands are created.
+     *
+     * @param budget buffer budget (<tt>null</tt> for no limit)
+     */
+    public void setBufferBudget(BufferBudget<T> budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Set the batching target for handing objects to the analysis.  Merged
+     * objects are delivered once at least <tt>minObjects</tt> are waiting or
+     * the oldest one has waited <tt>maxDelayMicros</tt> microseconds,
+     * whichever comes first.  A delay of 0 delivers every merged object as
+     * soon as possible, which is the default.
+     *
+     * @param minObjects minimum number of objects per delivery
+     * @param maxDelayMicros maximum time to hold back merged objects
+     */
+    public void setDeliveryTarget(int minObjects, long maxDelayMicros)
+    {
+        if (minObjects < 1) {
+            throw new IllegalArgumentException("Minimum number of objects" +
+                                               " must be positive");
+        } else if (maxDelayMicros < 0) {
+            throw new IllegalArgumentException("Maximum delay cannot be" +
+                                               " negative");
+        }
+
+        deliveryCount = minObjects;
+        deliveryDelay = maxDelayMicros * 1000L;
+    }
+
+    /**
+     * Hand objects which arrive too late to be spliced in order to a
+     * separate analysis instead of dropping them.  The analysis may be
+     * called from the splicer thread or from any thread pushing into a
+     * strand.  This must be set before any strands are created.
+     *
+     * @param lateAnalysis analysis for late objects (<tt>null</tt> to just
+     *                     count them)
+     */
+    public void setLateDataAnalysis(SplicedAnalysis<T> lateAnalysis)
+    {
+        this.lateAnalysis = lateAnalysis;
+    }
+
+    /**
+     * Set the policy for a strand which holds back all the others for too
+     * long.  A strand is lagging when it has no data and no watermark
+     * high enough to release the objects waiting in the tree.  This must
+     * be set before the splicer is started.
+     *
+     * @param policy what to do about a lagging strand (<tt>null</tt> to
+     *               always wait)
+     * @param maxLagNanos a strand lags after holding up the others for
+     *                    this long (0 to ignore)
+     * @param maxLagDepth ...or while this many objects are stuck in the
+     *                    tree (0 to ignore)
+     */
+    public void setLagPolicy(LagPolicy policy, long maxLagNanos,
+                             int maxLagDepth)
+    {
+        if (maxLagNanos < 0 || maxLagDepth < 0) {
+            throw new IllegalArgumentException("Lag thresholds cannot be" +
+                                               " negative");
+        } else if (policy != null && maxLagNanos == 0 && maxLagDepth == 0) {
+            throw new IllegalArgumentException("Lag policy " + policy +
+                                               " needs a time or depth" +
+                                               " threshold");
+        } else if (policy == LagPolicy.CLOSE && lastObject == null) {
+            throw new IllegalArgumentException("Cannot close strands" +
+                                               " without an end-of-stream" +
+                                               " object");
+        }
+
+        this.lagPolicy = policy;
+        this.maxLagNanos = maxLagNanos;
+        this.maxLagDepth = maxLagDepth;
+    }
+
+    /**
+     * Hold up to <tt>window</tt> objects in each strand so that objects
+     * which were pushed slightly out of order are put back in order before
+     * they are spliced.  Objects which arrive later than that are counted
+     * and handed to the late-data analysis.  Held objects are passed on if
+     * none has been passed on for a second.  This must be set before any
+     * strands are created.
+     *
+     * @param window number of objects held by each strand (0 to splice
+     *               objects in the order they are pushed)
+     */
+    public void setReorderWindow(int window)
+    {
+        setReorderWindow(window, ReorderingStrandTail.DEFAULT_MAX_HOLD_MILLIS);
+    }
+
+    /**
+     * Hold up to <tt>window</tt> objects in each strand so that objects
+     * which were pushed slightly out of order are put back in order before
+     * they are spliced, but pass them on if none has been passed on for
+     * <tt>maxHoldMillis</tt>, so a strand which goes quiet doesn't hold up
+     * the others.  This must be set before any strands are created.
+     *
+     * @param window number of objects held by each strand (0 to splice
+     *               objects in the order they are pushed)
+     * @param maxHoldMillis longest time objects are held (0 to hold them
+     *                      until the window overflows)
+     */
+    public void setReorderWindow(int window, long maxHoldMillis)
+    {
+        if (window < 0) {
+            throw new IllegalArgumentException("Reorder window cannot be" +
+                                               " negative");
+        }
+        if (maxHoldMillis < 0) {
+            throw new IllegalArgumentException("Maximum hold time cannot be" +
+                                               " negative");
+        }
+
+        reorderWindow = window;
+        reorderHoldMillis = maxHoldMillis;
+        if (window > 0 && maxHoldMillis > 0) {
+            reorderFlusher = new ReorderFlusher(maxHoldMillis);
+        } else {
+            reorderFlusher = null;
+        }
+    }
+
+    /**
+     * Reuse a single pre-sized List for every delivery to the analysis
+     * instead of allocating a new one each time.  When this is enabled the
+     * splicer owns the List: the analysis must not modify it or keep a
+     * reference to it after <tt>analyze()</tt> returns, and must copy any
+     * objects it wants to hold on to.  This must be set before the splicer
+     * is started.
+     *
+     * @param reuse <tt>true</tt> to reuse the delivery list
+     */
+    public void setReuseDeliveryList(boolean reuse)
+    {
+        if (!reuse) {
+            deliveryList = null;
+        } else if (deliveryList == null) {
+            deliveryList = new ArrayList<T>(DELIVERY_CAPACITY);
+        }
+    }
+
+    /**
+     * If <tt>true</tt>, strands created after this call skip the lock which
+     * lets several threads push into the same strand.  Each of those
+     * strands must only be pushed by a single thread.
+     *
+     * @param val <tt>true</tt> if each strand has a single producer
+     */
+    public void setSingleProducerStrands(boolean val)
+    {
+        singleProducer = val;
+    }
+
     void setWaitMillis(long val)
     {
         waitMillis = val;
@@ -292,8 +638,13 @@ public class HKN1Splicer<T>
             throw new Error("No strands have been added to splicer");
         }
 
+        if (reorderFlusher != null) {
+            reorderFlusher.start();
+        }
+
         Thread thread = new Thread(this);
         thread.setName("HKN1Splicer+" + analysis);
+        runThread = thread;
         thread.start();
 
         while (state != State.STARTED) {
@@ -324,39 +675,104 @@ public class HKN1Splicer<T>
     @Override
     public void run()
     {
-        terminalNode = Node.makeTree(exposeList);
+        List<HKN1LeafNode> leaves;
+        synchronized (exposeList) {
+            terminalNode = Node.makeTree(exposeList);
+            leaves = new ArrayList<HKN1LeafNode>(leafList);
+        }
         changeState(State.STARTED);
         T previousSpliceable = null;
 
         loopInit(exposeList);
 
+        boolean pending = false;
+        long pendingSince = 0L;
         while (state == State.STARTED) {
-            try {
-                synchronized (this) {
-                    this.wait(waitMillis);
-                }
-            } catch (InterruptedException e) {
-                logger.error("Splicer run thread was interrupted.");
+            long parkNanos = waitMillis * 1000000L;
+            if (pending) {
+                final long left =
+                    deliveryDelay - (System.nanoTime() - pendingSince);
+                parkNanos = Math.max(1L, Math.min(parkNanos, left));
+            }
+            if (lagPolicy != null) {
+                parkNanos = Math.min(parkNanos, LAG_CHECK_NANOS);
             }
+            waitForData(leaves, parkNanos);
 
             loopCheck(exposeList);
 
-            List<T> added = new ArrayList<T>();
-            synchronized (terminalNode) {
-                while (!terminalNode.isEmpty()) {
-                    T obj = terminalNode.pop();
-                    // Make sanity check on objects coming out of splicer
-                    if (previousSpliceable != null &&
-                        cmp.compare(previousSpliceable, obj) > 0)
+            // only this thread touches the tree, so no lock is needed
+            for (HKN1LeafNode leaf : leaves) {
+                final int num = leaf.drain();
+                if (num > 0 && lagPolicy != null) {
+                    held += num;
+
+                    final T last = leaf.getLastDrained();
+                    if (last != lastObject &&
+                        (maxDrained == null ||
+                         cmp.compare(last, maxDrained) > 0))
                     {
-                        logger.warn("Ignoring out-of-order object");
-                    } else if (obj != lastObject) {
-                        added.add(obj);
-                    } else  {
-                        dispose();
+                        maxDrained = last;
                     }
                 }
             }
+            for (HKN1LeafNode leaf : leaves) {
+                leaf.updateStarved();
+            }
+            if (lagPolicy != null) {
+                checkLag(leaves);
+            }
+
+            if (terminalNode.isEmpty()) {
+                continue;
+            }
+
+            // hold back small deliveries until the batching target is hit
+            if (terminalNode.depth() < deliveryCount) {
+                final long now = System.nanoTime();
+                if (!pending) {
+                    pending = true;
+                    pendingSince = now;
+                }
+                if (now - pendingSince < deliveryDelay) {
+                    continue;
+                }
+            }
+            pending = false;
+
+            List<T> added;
+            if (deliveryList != null) {
+                added = deliveryList;
+            } else {
+                added = new ArrayList<T>();
+            }
+            List<T> late = null;
+            while (!terminalNode.isEmpty()) {
+                T obj = terminalNode.pop();
+                if (held > 0) {
+                    held--;
+                }
+                if (budget != null && obj != lastObject) {
+                    budget.release(obj);
+                }
+                // Make sanity check on objects coming out of splicer
+                if (previousSpliceable != null &&
+                    cmp.compare(previousSpliceable, obj) > 0)
+                {
+                    if (late == null) {
+                        late = new ArrayList<T>();
+                    }
+                    late.add(obj);
+                } else if (obj != lastObject) {
+                    added.add(obj);
+                    previousSpliceable = obj;
+                } else  {
+                    dispose();
+                }
+            }
+            if (late != null) {
+                lateData(late);
+            }
             if (added.size() > 0) {
                 totalSent += added.size();
                 try {
@@ -365,10 +781,18 @@ public class HKN1Splicer<T>
                     logger.error("Analysis failed for " + added.size() +
                                  " objects", thr);
                     break;
+                } finally {
+                    if (added == deliveryList) {
+                        added.clear();
+                    }
                 }
             }
         }
 
+        if (reorderFlusher != null) {
+            reorderFlusher.stop();
+        }
+
         changeState(State.STOPPED);
         if (logger.isInfoEnabled()) {
             logger.info("HKN1Splicer was stopped.");
@@ -384,6 +808,13 @@ public class HKN1Splicer<T>
                 node.clear();
             }
         }
+        for (HKN1LeafNode leaf : leaves) {
+            leaf.clear();
+        }
+
+        if (budget != null) {
+            budget.reset();
+        }
     }
 
     @Override
@@ -393,6 +824,45 @@ public class HKN1Splicer<T>
             " strands" + "]";
     }
 
+    /**
+     * Park the merge thread until a strand which is holding up the tree has
+     * new data, the state changes or the timeout has elapsed.
+     *
+     * @param leaves strand tails
+     * @param parkNanos maximum number of nanoseconds to wait
+     */
+    private void waitForData(List<HKN1LeafNode> leaves, long parkNanos)
+    {
+        sleeping = true;
+        try {
+            for (HKN1LeafNode leaf : leaves) {
+                if (leaf.isStarved() && leaf.hasQueuedData()) {
+                    return;
+                }
+            }
+
+            if (state == State.STARTED) {
+                LockSupport.parkNanos(this, parkNanos);
+                if (Thread.interrupted()) {
+                    logger.error("Splicer run thread was interrupted.");
+                }
+            }
+        } finally {
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Wake the merge thread.
+     */
+    private void wakeup()
+    {
+        final Thread thread = runThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
     // inner class
     class HKN1LeafNode
         implements StrandTail<T>
@@ -401,10 +871,57 @@ public class HKN1Splicer<T>
         private Node<T> expose;
         private long nInput;
 
-        public HKN1LeafNode(Node<T> node)
+        /** Objects pushed by the strand's thread, drained by the splicer */
+        private LeafQueue<T> queue = new LeafQueue<T>();
+        /**
+         * If <tt>false</tt>, pushes are serialized since the queue only
+         * allows a single producer
+         */
+        private boolean singleProducer;
+        /** Newest watermark which has not been handed to the tree */
+        private AtomicReference<T> pendingMark = new AtomicReference<T>();
+
+        /** Time this leaf started holding up the tree (0 if it isn't) */
+        private long lagSince;
+        /** Time this leaf has been holding up the tree */
+        private volatile long lagNanos;
+        /** <tt>true</tt> if the current lag has already been reported */
+        private boolean alerted;
+        /** Set if the splicer closed this strand because it lagged */
+        private volatile boolean evicted;
+        /** Set while the splicer is not waiting for this strand */
+        private boolean skipped;
+
+        /**
+         * <tt>true</tt> if the leaf node is empty.  A non-empty leaf's peer
+         * is always empty, so new data can only reach the terminal node if
+         * it is pushed into a starved leaf.
+         */
+        private volatile boolean starved = true;
+
+        public HKN1LeafNode(Node<T> node, boolean singleProducer)
         {
             expose = node;
             nInput = 0L;
+            this.singleProducer = singleProducer;
+        }
+
+        /**
+         * Throw away any objects which were never drained.
+         */
+        void clear()
+        {
+            queue.clear();
+        }
+
+        /**
+         * Note that this leaf is no longer holding up the tree.
+         */
+        void clearLag()
+        {
+            lagSince = 0L;
+            lagNanos = 0L;
+            alerted = false;
         }
 
         @Override
@@ -412,10 +929,159 @@ public class HKN1Splicer<T>
         {
             synchronized (exposeList) {
                 exposeList.remove(expose);
+                leafList.remove(this);
             }
             counter--;
         }
 
+        /**
+         * Throw away all pushed objects which were never drained, giving
+         * them back to the buffer budget.  Must only be called by the
+         * splicer thread.
+         */
+        private void discardQueued()
+        {
+            T obj;
+            while ((obj = queue.poll()) != null) {
+                if (budget != null && obj != lastObject) {
+                    budget.release(obj);
+                }
+            }
+        }
+
+        /**
+         * Move all pushed objects into the tree.  Must only be called by
+         * the splicer thread.
+         */
+        int drain()
+        {
+            if (evicted) {
+                // nothing more is accepted from a closed strand
+                discardQueued();
+                return 0;
+            }
+
+            // read the watermark first so every object pushed before it
+            // is in the tree by the time the watermark is applied
+            final T mark = pendingMark.get();
+
+            final int num = queue.drainTo(expose);
+            if (num > 0) {
+                skipped = false;
+            }
+
+            if (mark != null) {
+                expose.pushMark(mark);
+                // keep any newer watermark for the next pass
+                pendingMark.compareAndSet(mark, null);
+            }
+
+            return num;
+        }
+
+        /**
+         * Close this strand from the splicer side.  Everything it has not
+         * pushed yet is treated as coming after all other strands' data.
+         */
+        void evict()
+        {
+            evicted = true;
+            discardQueued();
+            expose.pushMark(lastObject);
+            clearLag();
+        }
+
+        /**
+         * Get the most recent object moved into the tree
+         *
+         * @return last drained object
+         */
+        T getLastDrained()
+        {
+            return queue.getLastDrained();
+        }
+
+        /**
+         * Get the time this leaf has been holding up the tree
+         *
+         * @return number of nanoseconds (0 if it isn't)
+         */
+        long getLagNanos()
+        {
+            return lagNanos;
+        }
+
+        /**
+         * Get the strand name
+         *
+         * @return name
+         */
+        String getName()
+        {
+            return expose.getName();
+        }
+
+        /**
+         * Are there pushed objects or watermarks which have not been
+         * drained?
+         *
+         * @return <tt>true</tt> if there are objects waiting
+         */
+        boolean hasQueuedData()
+        {
+            return !queue.isEmpty() || pendingMark.get() != null;
+        }
+
+        /**
+         * Has the current lag already been reported?
+         *
+         * @return <tt>true</tt> if an alert was logged
+         */
+        boolean isAlerted()
+        {
+            return alerted;
+        }
+
+        /**
+         * Is this leaf holding objects up in the tree?
+         *
+         * @param maxHeld highest object in the tree
+         *
+         * @return <tt>true</tt> if the leaf is empty and its watermark (if
+         *         any) is below some of the objects in the tree
+         */
+        boolean isBlocking(T maxHeld)
+        {
+            if (evicted || !starved || expose.sink() == null ||
+                hasQueuedData())
+            {
+                return false;
+            }
+
+            final T mark = expose.getMark();
+            return mark == null || cmp.compare(mark, maxHeld) < 0;
+        }
+
+        /**
+         * Is the splicer moving on without this strand?
+         *
+         * @return <tt>true</tt> if this strand is being skipped
+         */
+        boolean isSkipped()
+        {
+            return skipped;
+        }
+
+        /**
+         * Could new data in this leaf move the tree?
+         *
+         * @return <tt>true</tt> if the splicer is waiting on this leaf
+         */
+        boolean isStarved()
+        {
+            return starved;
+        }
+
         @Override
         public T head()
         {
@@ -425,16 +1091,44 @@ public class HKN1Splicer<T>
         @Override
         public boolean isClosed()
         {
-            // TODO Auto-generated method stub
-            return false;
+            return evicted;
         }
 
         @Override
         public StrandTail<T> push(List<T> spliceables)
             throws OrderingException, ClosedStrandException
         {
+            if (spliceables.size() == 0) {
+                return this;
+            }
+
             for (T spl : spliceables) {
-                push(spl);
+                if (spl == null) {
+                    throw new Error("Cannot push null value");
+                }
+            }
+
+            if (evicted) {
+                throw new ClosedStrandException("Strand " + this +
+                                                " has been closed");
+            }
+
+            // publish the whole batch and wake the splicer once
+            if (singleProducer) {
+                queue.offer(spliceables);
+                nInput += spliceables.size();
+            } else {
+                synchronized (this) {
+                    queue.offer(spliceables);
+                    nInput += spliceables.size();
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Pushing " + spliceables.size() +
+                             " payloads into strandTail " + this);
+            }
+            if (sleeping && starved) {
+                wakeup();
             }
             return this;
         }
@@ -443,23 +1137,77 @@ public class HKN1Splicer<T>
         public StrandTail<T> push(T spliceable)
             throws OrderingException, ClosedStrandException
         {
-            synchronized (terminalNode) {
-                expose.push(spliceable);
-                if (logger.isDebugEnabled() && nInput++ % 1000 == 0) {
-                    logger.debug("Pushing payload # " + nInput +
-                        " into strandTail " + this);
+            if (spliceable == null) {
+                throw new Error("Cannot push null value");
+            }
+
+            if (evicted) {
+                throw new ClosedStrandException("Strand " + this +
+                                                " has been closed");
+            }
+
+            if (singleProducer) {
+                queue.offer(spliceable);
+            } else {
+                synchronized (this) {
+                    queue.offer(spliceable);
                 }
             }
-            synchronized (HKN1Splicer.this) {
-                HKN1Splicer.this.notify();
+            if (logger.isDebugEnabled() && nInput++ % 1000 == 0) {
+                logger.debug("Pushing payload # " + nInput +
+                    " into strandTail " + this);
+            }
+            if (sleeping && starved) {
+                wakeup();
             }
             return this;
         }
 
+        @Override
+        public StrandTail<T> pushWatermark(T mark)
+            throws ClosedStrandException
+        {
+            if (mark == null) {
+                throw new Error("Cannot push null watermark");
+            }
+
+            if (evicted) {
+                throw new ClosedStrandException("Strand " + this +
+                                                " has been closed");
+            }
+
+            pendingMark.set(mark);
+            if (sleeping && starved) {
+                wakeup();
+            }
+            return this;
+        }
+
+        /**
+         * Mark this leaf as reported
+         */
+        void setAlerted()
+        {
+            alerted = true;
+        }
+
         @Override
         public int size()
         {
-            return expose.depth();
+            return expose.depth() + queue.size();
+        }
+
+        /**
+         * Stop waiting for this strand until it supplies more data.
+         * Anything it pushes below <tt>mark</tt> will be late.
+         *
+         * @param mark highest object in the tree
+         */
+        void skip(T mark)
+        {
+            skipped = true;
+            expose.pushMark(mark);
+            clearLag();
         }
 
         @Override
@@ -467,5 +1215,34 @@ public class HKN1Splicer<T>
         {
             return "Leaf:" + expose.getName() + "*" + expose.depth();
         }
+
+        /**
+         * Update the time this leaf has been holding up the tree
+         *
+         * @param now current time
+         *
+         * @return number of nanoseconds
+         */
+        long updateLag(long now)
+        {
+            if (lagSince == 0L) {
+                lagSince = now;
+            }
+
+            lagNanos = now - lagSince;
+            return lagNanos;
+        }
+
+        /**
+         * Recompute whether the splicer is waiting on this leaf.  Must only
+         * be called by the splicer thread.
+         */
+        void updateStarved()
+        {
+            final boolean val = expose.isEmpty() || expose.sink() == null;
+            if (starved != val) {
+                starved = val;
+            }
+        }
     }
 }
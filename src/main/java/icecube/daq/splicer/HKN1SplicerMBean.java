@@ -1,7 +1,11 @@
 package icecube.daq.splicer;
 
+import java.util.Map;
+
 public interface HKN1SplicerMBean
 {
+    long getNumberOfLateObjects();
     int getStrandCount();
+    Map<String, Long> getStrandLagNanos();
     long getTotalSent();
 }
@@ -0,0 +1,22 @@
+package icecube.daq.splicer;
+
+/**
+ * A {@link Spliceable} which is ordered by a single <tt>long</tt> value,
+ * such as a UTC time.  Splicers using a
+ * {@link LongKeySpliceableComparator} read the key once when an object is
+ * pushed and merge on the raw keys.
+ * <p>
+ * <tt>compareSpliceable()</tt> must agree with the key: if one object's key
+ * is lower than another's, it must also sort before it.  Objects with
+ * equal keys are ordered by <tt>compareSpliceable()</tt>.
+ */
+public interface LongKeySpliceable
+    extends Spliceable
+{
+    /**
+     * Get the value used to order this object
+     *
+     * @return sort key
+     */
+    long getSortKey();
+}
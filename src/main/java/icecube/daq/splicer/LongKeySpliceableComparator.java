@@ -0,0 +1,69 @@
+package icecube.daq.splicer;
+
+import icecube.daq.merge.LongKeyComparator;
+
+/**
+ * Compare {@link LongKeySpliceable}s by their sort keys, only falling back
+ * to <tt>compareSpliceable()</tt> when the keys are equal.
+ * <p>
+ * Every object passed to this comparator must be a
+ * <tt>LongKeySpliceable</tt>, aside from the end-of-data object and
+ * <tt>null</tt>, which both sort after everything else.
+ */
+public class LongKeySpliceableComparator
+    extends SpliceableComparator
+    implements LongKeyComparator<Spliceable>
+{
+    /** Spliceable which marks the end of the data */
+    private Spliceable lastSpliceable;
+
+    /**
+     * Create comparator
+     *
+     * @param lastSpliceable object which marks the end of the data
+     */
+    public LongKeySpliceableComparator(Spliceable lastSpliceable)
+    {
+        super(lastSpliceable);
+
+        this.lastSpliceable = lastSpliceable;
+    }
+
+    /**
+     * Compare two Spliceables.
+     *
+     * @param s1 first Spliceable
+     * @param s2 first Spliceable
+     *
+     * @return the usual values
+     */
+    @Override
+    public int compare(Spliceable s1, Spliceable s2)
+    {
+        final long k1 = key(s1);
+        final long k2 = key(s2);
+        if (k1 != k2) {
+            return k1 < k2 ? -1 : 1;
+        }
+
+        return super.compare(s1, s2);
+    }
+
+    /**
+     * Get the sort key for a Spliceable.
+     *
+     * @param spl Spliceable
+     *
+     * @return sort key (<tt>Long.MAX_VALUE</tt> for the end-of-data object
+     *         or <tt>null</tt>)
+     */
+    @Override
+    public long key(Spliceable spl)
+    {
+        if (spl == lastSpliceable || spl == null) {
+            return Long.MAX_VALUE;
+        }
+
+        return ((LongKeySpliceable) spl).getSortKey();
+    }
+}
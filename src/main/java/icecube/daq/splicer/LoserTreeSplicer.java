@@ -0,0 +1,1068 @@
+package icecube.daq.splicer;
+
+import icecube.daq.merge.LongKeyComparator;
+import icecube.daq.merge.LoserTree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Splicer which merges its strands with a tournament (loser) tree.
+ * <p>
+ * Each strand keeps its own queue of pushed objects and the tree only holds
+ * the head of each strand, so every object is compared about log2(N) times
+ * on its way out and is never copied between tree levels.
+ * <p>
+ * Strands may instead be created with {@link #beginRecordStrand}, in which
+ * case each strand stores raw records in a direct (off-heap) buffer, the
+ * tree only merges the records' <tt>long</tt> keys, and objects are only
+ * created by the {@link SpliceableFactory} as they are handed to the
+ * analysis.  Record strands and object strands cannot be mixed.
+ */
+public class LoserTreeSplicer<T>
+    implements Splicer<T>, Runnable, LoserTreeSplicerMBean
+{
+    private static final Logger logger =
+        Logger.getLogger(LoserTreeSplicer.class);
+
+    /** Maximum number of objects handed to the analysis in one call */
+    private static final int MAX_DELIVERY = 10000;
+    /** Initial capacity of the reusable delivery list */
+    private static final int DELIVERY_CAPACITY = 1024;
+
+    private SplicedAnalysis<T>        analysis;
+    private Comparator<T>             cmp;
+    private T                         lastObject;
+
+    private List<LoserTreeStrand>     strands       =
+        new ArrayList<LoserTreeStrand>();
+    private List<RecordStrand>        recordStrands =
+        new ArrayList<RecordStrand>();
+    private volatile State            state         = State.STOPPED;
+    private List<SplicerListener<T>>  listeners     =
+        new ArrayList<SplicerListener<T>>();
+    private long                      waitMillis    = 1000L;
+    private long                      totalSent;
+    private boolean                   reuseList;
+
+    /** Strand which the merge thread is waiting on */
+    private volatile Object           waiting;
+    /** Limit on buffered objects (<tt>null</tt> if unlimited) */
+    private BufferBudget<T>           budget;
+
+    public LoserTreeSplicer(SplicedAnalysis<T> analysis, Comparator<T> cmp,
+                            T lastObject)
+    {
+        this.analysis = analysis;
+        this.cmp = cmp;
+        this.lastObject = lastObject;
+    }
+
+    @Override
+    public void addSplicerListener(SplicerListener<T> listener)
+    {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Adding splicer listener.");
+        }
+
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    @Override
+    public StrandTail<T> beginStrand()
+    {
+        LoserTreeStrand strand;
+        synchronized (strands) {
+            if (recordStrands.size() > 0) {
+                throw new Error("Cannot mix object and record strands");
+            }
+
+            strand = new LoserTreeStrand("S" + strands.size());
+            strands.add(strand);
+        }
+
+        if (budget != null) {
+            return new BudgetedStrandTail<T>(strand, budget, lastObject);
+        }
+
+        return strand;
+    }
+
+    /**
+     * Add a strand which holds raw records in an off-heap buffer.  Records
+     * are turned into objects by <tt>factory</tt> just before they are
+     * handed to the analysis.  Objects created this way see the record
+     * through a view of the strand's buffer which is reused after
+     * <tt>analyze()</tt> returns, so they must copy anything they need to
+     * keep.
+     *
+     * @param factory creates an object from each record's payload
+     * @param arenaBytes size of the strand's buffer
+     *
+     * @return new strand
+     */
+    public RecordStrandTail beginRecordStrand(SpliceableFactory factory,
+                                              int arenaBytes)
+    {
+        if (factory == null) {
+            throw new IllegalArgumentException("Factory cannot be null");
+        }
+
+        RecordStrand strand;
+        synchronized (strands) {
+            if (strands.size() > 0) {
+                throw new Error("Cannot mix object and record strands");
+            }
+
+            strand = new RecordStrand("R" + recordStrands.size(), factory,
+                                      arenaBytes);
+            recordStrands.add(strand);
+        }
+        return strand;
+    }
+
+    private void changeState(State newState)
+    {
+        SplicerChangedEvent<T> event =
+            new SplicerChangedEvent<T>(this, state, newState);
+        state = newState;
+        synchronized (listeners) {
+            for (SplicerListener<T> listener : listeners) {
+                switch (newState) {
+                case DISPOSED:
+                    listener.disposed(event);
+                    break;
+                case FAILED:
+                    listener.failed(event);
+                    break;
+                case STARTED:
+                    listener.started(event);
+                    break;
+                case STARTING:
+                    listener.starting(event);
+                    break;
+                case STOPPED:
+                    listener.stopped(event);
+                    break;
+                case STOPPING:
+                    listener.stopping(event);
+                    break;
+                default:
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Unknown state " + newState);
+                    }
+                    break;
+                }
+            }
+        }
+
+        synchronized (this) {
+            notify();
+        }
+    }
+
+    /**
+     * Hand merged records to the analysis, then free the space they used.
+     *
+     * @param added objects created from merged records
+     * @param inputs record strands
+     *
+     * @return the list to use for the next delivery (<tt>null</tt> if the
+     *         analysis failed)
+     */
+    private List<T> deliverRecords(List<T> added, List<RecordStrand> inputs)
+    {
+        final List<T> next = deliver(added);
+        for (RecordStrand strand : inputs) {
+            strand.release();
+        }
+        return next;
+    }
+
+    /**
+     * Hand merged objects to the analysis.
+     *
+     * @param added merged objects
+     *
+     * @return the list to use for the next delivery (<tt>null</tt> if the
+     *         analysis failed)
+     */
+    private List<T> deliver(List<T> added)
+    {
+        if (added.size() == 0) {
+            return added;
+        }
+
+        totalSent += added.size();
+        try {
+            analysis.analyze(added);
+        } catch (Throwable thr) {
+            logger.error("Analysis failed for " + added.size() +
+                         " objects", thr);
+            return null;
+        }
+
+        if (!reuseList) {
+            return new ArrayList<T>();
+        }
+
+        added.clear();
+        return added;
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (state != State.STOPPING && state != State.STOPPED) {
+            changeState(State.STOPPING);
+        }
+    }
+
+    @Override
+    public void forceStop()
+    {
+        // NO OP
+    }
+
+    @Override
+    public SplicedAnalysis<T> getAnalysis()
+    {
+        return analysis;
+    }
+
+    @Override
+    public State getState()
+    {
+        return state;
+    }
+
+    @Override
+    public int getStrandCount()
+    {
+        int count = 0;
+        synchronized (strands) {
+            for (LoserTreeStrand strand : strands) {
+                if (!strand.isClosed()) {
+                    count++;
+                }
+            }
+            for (RecordStrand strand : recordStrands) {
+                if (!strand.isClosed()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getTotalSent()
+    {
+        return totalSent;
+    }
+
+    @Override
+    public void removeSplicerListener(SplicerListener<T> listener)
+    {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Limit the total amount of data buffered by all object strands.
+     * Pushes which would go over the budget wait or fail according to its
+     * policy.  Record strands are already limited by the size of their
+     * buffers and are not charged.  This must be set before any strands
+     * are created.
+     *
+     * @param budget buffer budget (<tt>null</tt> for no limit)
+     */
+    public void setBufferBudget(BufferBudget<T> budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Reuse a single pre-sized List for every delivery to the analysis
+     * instead of allocating a new one each time.  When this is enabled the
+     * splicer owns the List: the analysis must not modify it or keep a
+     * reference to it after <tt>analyze()</tt> returns, and must copy any
+     * objects it wants to hold on to.  This must be set before the splicer
+     * is started.
+     *
+     * @param reuse <tt>true</tt> to reuse the delivery list
+     */
+    public void setReuseDeliveryList(boolean reuse)
+    {
+        reuseList = reuse;
+    }
+
+    void setWaitMillis(long val)
+    {
+        waitMillis = val;
+    }
+
+    @Override
+    public void start()
+    {
+        if (state != State.STOPPED) {
+            throw new Error("Expected splicer to be " +
+                            State.STOPPED.name() + ", not " +
+                            state.name());
+        }
+
+        changeState(State.STARTING);
+
+        if (strands.size() == 0 && recordStrands.size() == 0) {
+            throw new Error("No strands have been added to splicer");
+        }
+
+        Thread thread = new Thread(this);
+        thread.setName("LoserTreeSplicer+" + analysis);
+        thread.start();
+
+        while (state != State.STARTED) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("LoserTreeSplicer was started.");
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        if (state != State.STOPPED) {
+            changeState(State.STOPPING);
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Stopping LoserTreeSplicer.");
+            }
+        }
+    }
+
+    /**
+     * Merge object strands until they are all done or the splicer is
+     * stopped.
+     *
+     * @param inputs object strands
+     */
+    private void mergeObjects(List<LoserTreeStrand> inputs)
+    {
+        LoserTree<T> tree = new LoserTree<T>(inputs.size(), cmp);
+        for (int i = 0; i < inputs.size(); i++) {
+            tree.setEmpty(i);
+        }
+        tree.build();
+
+        changeState(State.STARTED);
+
+        T previousSpliceable = null;
+        List<T> added;
+        if (reuseList) {
+            added = new ArrayList<T>(DELIVERY_CAPACITY);
+        } else {
+            added = new ArrayList<T>();
+        }
+
+        while (state == State.STARTED) {
+            final LoserTreeStrand strand = inputs.get(tree.winner());
+
+            if (tree.isWinnerDone()) {
+                // every strand has been closed and drained
+                dispose();
+                break;
+            }
+
+            if (tree.isWinnerEmpty() || tree.isWinnerMarked()) {
+                // read the watermark first so no object pushed before it
+                // can be missed by the poll
+                final T mark = strand.getWatermark();
+
+                T obj = strand.poll();
+                if (obj != null) {
+                    tree.replace(obj);
+                } else if (strand.isClosed() && strand.isEmpty()) {
+                    tree.finish();
+                } else if (mark != null &&
+                           (tree.isWinnerEmpty() ||
+                            cmp.compare(mark, tree.winnerValue()) > 0))
+                {
+                    // let other strands continue up to the watermark
+                    tree.mark(mark);
+                } else {
+                    // nothing can be merged until this strand has data
+                    added = deliver(added);
+                    if (added == null) {
+                        break;
+                    }
+                    waitFor(strand, mark);
+                }
+                continue;
+            }
+
+            final T obj = tree.winnerValue();
+            if (obj == lastObject) {
+                // all remaining strands have ended
+                dispose();
+                break;
+            }
+
+            if (budget != null) {
+                budget.release(obj);
+            }
+
+            // Make sanity check on objects coming out of splicer
+            if (previousSpliceable != null &&
+                cmp.compare(previousSpliceable, obj) > 0)
+            {
+                logger.warn("Ignoring out-of-order object");
+            } else {
+                added.add(obj);
+                previousSpliceable = obj;
+            }
+
+            T next = strand.poll();
+            if (next != null) {
+                tree.replace(next);
+            } else {
+                tree.stall();
+            }
+
+            if (added.size() >= MAX_DELIVERY) {
+                added = deliver(added);
+                if (added == null) {
+                    break;
+                }
+            }
+        }
+
+        if (added != null) {
+            deliver(added);
+        }
+    }
+
+    /**
+     * Merge record strands until they are all done or the splicer is
+     * stopped.  The tree only sees each strand's head key; the record is
+     * turned into an object when it wins.
+     *
+     * @param inputs record strands
+     */
+    @SuppressWarnings("unchecked")
+    private void mergeRecords(List<RecordStrand> inputs)
+    {
+        LoserTree<RecordStrand> tree =
+            new LoserTree<RecordStrand>(inputs.size(),
+                                        new RecordKeyComparator());
+        for (int i = 0; i < inputs.size(); i++) {
+            tree.setEmpty(i);
+        }
+        tree.build();
+
+        changeState(State.STARTED);
+
+        List<T> added;
+        if (reuseList) {
+            added = new ArrayList<T>(DELIVERY_CAPACITY);
+        } else {
+            added = new ArrayList<T>();
+        }
+
+        while (state == State.STARTED) {
+            final RecordStrand strand = inputs.get(tree.winner());
+
+            if (tree.isWinnerDone()) {
+                // every strand has been closed and drained
+                dispose();
+                break;
+            }
+
+            if (tree.isWinnerEmpty() || tree.isWinnerMarked()) {
+                // read the watermark first so no record pushed before it
+                // can be missed by the poll
+                final long mark = strand.getWatermark();
+
+                if (strand.next()) {
+                    tree.replace(strand);
+                } else if (strand.isClosed() && strand.isEmpty()) {
+                    tree.finish();
+                } else if (mark != RecordStrand.NO_MARK &&
+                           (tree.isWinnerEmpty() || mark > tree.winnerKey()))
+                {
+                    // let other strands continue up to the watermark
+                    strand.setTreeKey(mark);
+                    tree.mark(strand);
+                } else {
+                    // nothing can be merged until this strand has data
+                    added = deliverRecords(added, inputs);
+                    if (added == null) {
+                        break;
+                    }
+                    waitFor(strand, mark);
+                }
+                continue;
+            }
+
+            final Spliceable obj = strand.take();
+            if (obj == null) {
+                logger.error("Factory could not create object from " +
+                             strand + " record");
+            } else {
+                added.add((T) obj);
+            }
+
+            if (strand.next()) {
+                tree.replace(strand);
+            } else {
+                tree.stall();
+            }
+
+            if (added.size() >= MAX_DELIVERY) {
+                added = deliverRecords(added, inputs);
+                if (added == null) {
+                    break;
+                }
+            }
+        }
+
+        if (added != null) {
+            deliverRecords(added, inputs);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        List<LoserTreeStrand> inputs;
+        List<RecordStrand> records;
+        synchronized (strands) {
+            inputs = new ArrayList<LoserTreeStrand>(strands);
+            records = new ArrayList<RecordStrand>(recordStrands);
+        }
+
+        if (records.size() > 0) {
+            mergeRecords(records);
+        } else {
+            mergeObjects(inputs);
+        }
+
+        changeState(State.STOPPED);
+        if (logger.isInfoEnabled()) {
+            logger.info("LoserTreeSplicer was stopped.");
+        }
+
+        for (LoserTreeStrand strand : inputs) {
+            strand.clear();
+        }
+        for (RecordStrand strand : records) {
+            strand.clear();
+        }
+
+        if (budget != null) {
+            budget.reset();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LoserTreeSplicer[" + state.name() + "," + strands.size() +
+            " strands" + "]";
+    }
+
+    /**
+     * Wait for the specified strand to receive more data or a new watermark.
+     *
+     * @param strand strand which is holding up the merge
+     * @param mark strand's current watermark
+     */
+    private void waitFor(LoserTreeStrand strand, T mark)
+    {
+        waiting = strand;
+        try {
+            synchronized (this) {
+                if (state == State.STARTED && strand.isEmpty() &&
+                    !strand.isClosed() && strand.getWatermark() == mark)
+                {
+                    this.wait(waitMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.error("Splicer run thread was interrupted.");
+        } finally {
+            waiting = null;
+        }
+    }
+
+    /**
+     * Wait for the specified record strand to receive more data or a new
+     * watermark.
+     *
+     * @param strand strand which is holding up the merge
+     * @param mark strand's current watermark
+     */
+    private void waitFor(RecordStrand strand, long mark)
+    {
+        waiting = strand;
+        try {
+            synchronized (this) {
+                if (state == State.STARTED && strand.isEmpty() &&
+                    !strand.isClosed() && strand.getWatermark() == mark)
+                {
+                    this.wait(waitMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.error("Splicer run thread was interrupted.");
+        } finally {
+            waiting = null;
+        }
+    }
+
+    /**
+     * Wake the merge thread if it is waiting on the specified strand.
+     *
+     * @param strand strand which has changed
+     */
+    private void wakeFor(Object strand)
+    {
+        if (waiting == strand) {
+            synchronized (this) {
+                notify();
+            }
+        }
+    }
+
+    // inner class
+    class LoserTreeStrand
+        implements StrandTail<T>
+    {
+        private String name;
+        private ArrayDeque<T> queue = new ArrayDeque<T>();
+        private volatile boolean closed;
+
+        /** Object which has been handed to the tree */
+        private volatile T current;
+        /** Lower bound on all objects which will be pushed in the future */
+        private volatile T watermark;
+
+        LoserTreeStrand(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Throw away all queued objects.
+         */
+        void clear()
+        {
+            synchronized (queue) {
+                queue.clear();
+            }
+            current = null;
+            watermark = null;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            wakeFor(this);
+        }
+
+        @Override
+        public T head()
+        {
+            final T cur = current;
+            if (cur != null) {
+                return cur;
+            }
+
+            synchronized (queue) {
+                return queue.peek();
+            }
+        }
+
+        /**
+         * Get the most recent watermark
+         *
+         * @return lower bound on future objects (<tt>null</tt> if unknown)
+         */
+        T getWatermark()
+        {
+            return watermark;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        /**
+         * Are there any queued objects?
+         *
+         * @return <tt>true</tt> if the queue is empty
+         */
+        boolean isEmpty()
+        {
+            synchronized (queue) {
+                return queue.isEmpty();
+            }
+        }
+
+        /**
+         * Remove the next queued object and remember it as the strand's
+         * head.
+         *
+         * @return next object (<tt>null</tt> if the queue is empty)
+         */
+        T poll()
+        {
+            T obj;
+            synchronized (queue) {
+                obj = queue.poll();
+            }
+            current = obj;
+            return obj;
+        }
+
+        @Override
+        public StrandTail<T> push(List<T> spliceables)
+            throws OrderingException, ClosedStrandException
+        {
+            synchronized (queue) {
+                if (closed) {
+                    throw new ClosedStrandException("Strand " + name +
+                                                    " has been closed");
+                }
+
+                for (T spl : spliceables) {
+                    if (spl == null) {
+                        throw new Error("Cannot push null value");
+                    }
+                    queue.add(spl);
+                }
+            }
+            wakeFor(this);
+            return this;
+        }
+
+        @Override
+        public StrandTail<T> push(T spliceable)
+            throws OrderingException, ClosedStrandException
+        {
+            if (spliceable == null) {
+                throw new Error("Cannot push null value");
+            }
+
+            synchronized (queue) {
+                if (closed) {
+                    throw new ClosedStrandException("Strand " + name +
+                                                    " has been closed");
+                }
+
+                queue.add(spliceable);
+            }
+            wakeFor(this);
+            return this;
+        }
+
+        @Override
+        public StrandTail<T> pushWatermark(T mark)
+            throws ClosedStrandException
+        {
+            if (mark == null) {
+                throw new Error("Cannot push null watermark");
+            }
+
+            synchronized (queue) {
+                if (closed) {
+                    throw new ClosedStrandException("Strand " + name +
+                                                    " has been closed");
+                }
+
+                final T prev = watermark;
+                if (prev == null || cmp.compare(mark, prev) > 0) {
+                    watermark = mark;
+                }
+            }
+            wakeFor(this);
+            return this;
+        }
+
+        @Override
+        public int size()
+        {
+            int size;
+            synchronized (queue) {
+                size = queue.size();
+            }
+            if (current != null) {
+                size++;
+            }
+            return size;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Strand:" + name + "*" + size();
+        }
+    }
+
+    /**
+     * Order record strands by the key of their head record or watermark.
+     */
+    class RecordKeyComparator
+        implements LongKeyComparator<RecordStrand>
+    {
+        @Override
+        public int compare(RecordStrand a, RecordStrand b)
+        {
+            // the tree only calls this when the keys are equal, so let it
+            // fall back to the strand order
+            return 0;
+        }
+
+        @Override
+        public long key(RecordStrand strand)
+        {
+            return strand.getTreeKey();
+        }
+    }
+
+    // inner class
+    class RecordStrand
+        implements RecordStrandTail
+    {
+        /** Watermark value used before any watermark has been pushed */
+        static final long NO_MARK = Long.MIN_VALUE;
+
+        private String name;
+        private SpliceableFactory factory;
+        private RecordArena arena;
+        private volatile boolean closed;
+
+        /** Key of the most recently pushed record */
+        private long lastKey = Long.MIN_VALUE;
+        /** Lower bound on all keys which will be pushed in the future */
+        private volatile long watermark = NO_MARK;
+        /** Key this strand was last handed to the tree with */
+        private long treeKey;
+
+        RecordStrand(String name, SpliceableFactory factory, int arenaBytes)
+        {
+            this.name = name;
+            this.factory = factory;
+
+            arena = new RecordArena(arenaBytes);
+        }
+
+        /**
+         * Throw away all records.
+         */
+        void clear()
+        {
+            synchronized (arena) {
+                arena.clear();
+                arena.notifyAll();
+            }
+            watermark = NO_MARK;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            synchronized (arena) {
+                arena.notifyAll();
+            }
+            wakeFor(this);
+        }
+
+        /**
+         * Get the key this strand was last handed to the tree with
+         *
+         * @return head record key or watermark
+         */
+        long getTreeKey()
+        {
+            return treeKey;
+        }
+
+        /**
+         * Get the most recent watermark
+         *
+         * @return lower bound on future keys (<tt>NO_MARK</tt> if unknown)
+         */
+        long getWatermark()
+        {
+            return watermark;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        /**
+         * Are there any unread records?
+         *
+         * @return <tt>true</tt> if every record has been merged
+         */
+        boolean isEmpty()
+        {
+            synchronized (arena) {
+                return arena.isEmpty();
+            }
+        }
+
+        /**
+         * Make the next unread record's key this strand's tree key.
+         *
+         * @return <tt>false</tt> if there are no unread records
+         */
+        boolean next()
+        {
+            synchronized (arena) {
+                if (arena.isEmpty()) {
+                    return false;
+                }
+
+                treeKey = arena.headKey();
+            }
+            return true;
+        }
+
+        @Override
+        public RecordStrandTail push(long key, ByteBuffer payload)
+            throws OrderingException, ClosedStrandException
+        {
+            if (payload == null) {
+                throw new Error("Cannot push null value");
+            }
+
+            if (!arena.fits(payload.remaining())) {
+                throw new IllegalArgumentException("Record of " +
+                                                   payload.remaining() +
+                                                   " bytes will never fit" +
+                                                   " in strand " + name);
+            }
+
+            synchronized (arena) {
+                if (key < lastKey) {
+                    throw new OrderingException("Key " + key + " is lower" +
+                                                " than previous key " +
+                                                lastKey + " in strand " +
+                                                name);
+                }
+
+                while (true) {
+                    if (closed) {
+                        throw new ClosedStrandException("Strand " + name +
+                                                        " has been closed");
+                    }
+
+                    if (arena.add(key, payload)) {
+                        break;
+                    }
+
+                    // wait for the merge thread to free some space
+                    try {
+                        arena.wait(waitMillis);
+                    } catch (InterruptedException ie) {
+                        // ignore interrupts
+                    }
+                }
+
+                lastKey = key;
+            }
+            wakeFor(this);
+            return this;
+        }
+
+        @Override
+        public RecordStrandTail pushWatermark(long key)
+            throws ClosedStrandException
+        {
+            synchronized (arena) {
+                if (closed) {
+                    throw new ClosedStrandException("Strand " + name +
+                                                    " has been closed");
+                }
+
+                if (key > watermark) {
+                    watermark = key;
+                }
+            }
+            wakeFor(this);
+            return this;
+        }
+
+        /**
+         * Hand the space used by merged records back to the pushing thread.
+         */
+        void release()
+        {
+            synchronized (arena) {
+                if (arena.release()) {
+                    arena.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Set the key this strand is handed to the tree with
+         *
+         * @param key watermark
+         */
+        void setTreeKey(long key)
+        {
+            treeKey = key;
+        }
+
+        @Override
+        public int size()
+        {
+            synchronized (arena) {
+                return arena.size();
+            }
+        }
+
+        /**
+         * Create an object from the next unread record.
+         *
+         * @return new object (<tt>null</tt> if the factory failed)
+         */
+        Spliceable take()
+        {
+            ByteBuffer payload;
+            synchronized (arena) {
+                payload = arena.takePayload();
+            }
+            return factory.createSpliceable(payload);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "RecordStrand:" + name + "*" + size();
+        }
+    }
+}
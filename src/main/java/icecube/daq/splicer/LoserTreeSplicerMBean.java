@@ -0,0 +1,7 @@
+package icecube.daq.splicer;
+
+public interface LoserTreeSplicerMBean
+{
+    int getStrandCount();
+    long getTotalSent();
+}
@@ -1,15 +1,20 @@
 package icecube.daq.splicer;
 
+import icecube.daq.merge.LagPolicy;
 import icecube.daq.priority.AdjustmentTask;
-import icecube.daq.priority.DataConsumer;
+import icecube.daq.priority.BatchDataConsumer;
 import icecube.daq.priority.SortInput;
 import icecube.daq.priority.Sorter;
 import icecube.daq.priority.SorterException;
+import icecube.daq.priority.SpillCodec;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -21,9 +26,25 @@ public class PrioritySplicer<T>
 
     private int nextStrand;
 
-    private Sorter sorter;
+    private Sorter<T> sorter;
     private ConsumerBridge<T> bridge;
 
+    private Comparator<T> comp;
+    private T lastObject;
+
+    /** Number of objects each strand holds to fix their order (0 if none) */
+    private int reorderWindow;
+    /** Longest time a strand holds objects to fix their order */
+    private long reorderHoldMillis;
+    /** Releases objects held too long (<tt>null</tt> if there is no limit) */
+    private ReorderFlusher reorderFlusher;
+    /** Receives objects which arrived too late (may be <tt>null</tt>) */
+    private SplicedAnalysis<T> lateAnalysis;
+    /** Number of objects which arrived too late for a reorder window */
+    private AtomicLong numReorderLate = new AtomicLong();
+    /** Limit on buffered objects (<tt>null</tt> if unlimited) */
+    private BufferBudget<T> budget;
+
     private volatile State state = State.STOPPED;
     private List<SplicerListener<T>> listeners =
         new ArrayList<SplicerListener<T>>();
@@ -53,6 +74,9 @@ public class PrioritySplicer<T>
     {
         bridge = new ConsumerBridge(this, analysis);
 
+        this.comp = comp;
+        this.lastObject = lastObject;
+
         // allow sorter to use half of the cores
         if (maxCPUs == Integer.MIN_VALUE) {
             maxCPUs = Runtime.getRuntime().availableProcessors() / 2;
@@ -62,8 +86,8 @@ public class PrioritySplicer<T>
         }
 
         try {
-            sorter = new Sorter(name, maxChannels, comp, bridge, lastObject,
-                                maxCPUs, maxSubsorterDepth);
+            sorter = new Sorter<T>(name, maxChannels, comp, bridge, lastObject,
+                                   maxCPUs, maxSubsorterDepth);
         } catch (SorterException se) {
             throw new SplicerException("Cannot create Sorter", se);
         }
@@ -77,10 +101,43 @@ public class PrioritySplicer<T>
 
     @Override
     public StrandTail beginStrand()
+    {
+        return beginStrand(0L);
+    }
+
+    /**
+     * Create a new strand whose expected data rate is used to balance
+     * strands between sorting threads (see {@link #setBalancedStrands}).
+     *
+     * @param expectedRate expected data rate (in any unit, as long as it is
+     *                     the same for all strands)
+     *
+     * @return new strand
+     */
+    public StrandTail beginStrand(long expectedRate)
     {
         final String name = String.format("#%d", nextStrand++);
         try {
-            return new PrioTail(sorter.register(name));
+            StrandTail<T> tail =
+                new PrioTail<T>(sorter.register(name, expectedRate));
+            if (reorderWindow > 0) {
+                ReorderingStrandTail<T> rtail =
+                    new ReorderingStrandTail<T>(tail, comp, lastObject,
+                                                reorderWindow,
+                                                reorderHoldMillis * 1000000L,
+                                                lateAnalysis, numReorderLate,
+                                                budget);
+                if (reorderFlusher != null) {
+                    reorderFlusher.add(rtail);
+                }
+                tail = rtail;
+            }
+            if (budget != null) {
+                // charge objects before they're held for reordering, so a
+                // rejected push never leaves the reorder window half-done
+                tail = new BudgetedStrandTail<T>(tail, budget, lastObject);
+            }
+            return tail;
         } catch (SorterException se) {
             throw new Error("Something has gone horribly wrong with " +
                             sorter.getName(), se);
@@ -152,6 +209,65 @@ public class PrioritySplicer<T>
         return sorter.getChunkSize();
     }
 
+    /**
+     * Get the total time strand sorting threads have spent handing data
+     * to the final merge
+     *
+     * @return number of nanoseconds
+     */
+    @Override
+    public long getCheckNanos()
+    {
+        return sorter.getCheckNanos();
+    }
+
+    /**
+     * Get the longest time a sorting thread holds data before handing it
+     * to the final merge
+     *
+     * @return number of nanoseconds (0 if there is no limit)
+     */
+    @Override
+    public long getMaxHoldNanos()
+    {
+        return sorter.getMaxHoldTime();
+    }
+
+    /**
+     * Get the total time spent in the final merge
+     *
+     * @return number of nanoseconds
+     */
+    @Override
+    public long getMergeNanos()
+    {
+        return sorter.getMergeNanos();
+    }
+
+    /**
+     * Get the 99th percentile delay between objects being pushed into a
+     * strand and being handed to the analysis, as of the last chunk size
+     * adjustment
+     *
+     * @return number of nanoseconds (<tt>-1</tt> if nothing was measured)
+     */
+    @Override
+    public long getLatencyP99Nanos()
+    {
+        return sorter.getLatencyP99();
+    }
+
+    /**
+     * Get the target 99th percentile latency
+     *
+     * @return number of nanoseconds (0 if there is no target)
+     */
+    @Override
+    public long getLatencyTargetNanos()
+    {
+        return sorter.getLatencyTarget();
+    }
+
     /**
      * Get sorter name
      *
@@ -173,6 +289,53 @@ public class PrioritySplicer<T>
         return sorter.getNumChecked();
     }
 
+    /**
+     * Get the number of times the chunk size was shrunk to meet the
+     * latency target
+     *
+     * @return number of decreases
+     */
+    @Override
+    public long getNumberOfChunkDecreases()
+    {
+        return sorter.getNumChunkDecreases();
+    }
+
+    /**
+     * Get the number of times the chunk size was grown because latency
+     * was well under the target
+     *
+     * @return number of increases
+     */
+    @Override
+    public long getNumberOfChunkIncreases()
+    {
+        return sorter.getNumChunkIncreases();
+    }
+
+    /**
+     * Get the number of objects which arrived too late to be spliced in
+     * order
+     *
+     * @return number of late objects
+     */
+    @Override
+    public long getNumberOfLateObjects()
+    {
+        return sorter.getNumLate() + numReorderLate.get();
+    }
+
+    /**
+     * Get number of objects spilled to disk by deep strands
+     *
+     * @return number of spilled objects
+     */
+    @Override
+    public long getNumberOfSpilledObjects()
+    {
+        return sorter.getNumSpilled();
+    }
+
     /**
      * Get number of objects sorted by the sorter
      *
@@ -206,18 +369,65 @@ public class PrioritySplicer<T>
         return sorter.getNumQueued();
     }
 
+    /**
+     * Get the total time spent sorting strand data
+     *
+     * @return number of nanoseconds
+     */
+    @Override
+    public long getSortNanos()
+    {
+        return sorter.getSortNanos();
+    }
+
     @Override
     public State getState()
     {
         return state;
     }
 
+    /**
+     * Get the number of objects pushed into each strand.  Strands are
+     * named in the order they were created, so these counts can be passed
+     * to {@link #rebalance} on the next run's splicer.
+     *
+     * @return map of strand names to counts
+     */
+    public Map<String, Long> getStrandCounts()
+    {
+        return sorter.getInputCounts();
+    }
+
     @Override
     public int getStrandCount()
     {
         return sorter.getNumQueued();
     }
 
+    /**
+     * Get the time the sorter has been waiting on each strand while other
+     * strands had data
+     *
+     * @return map of strand names to nanoseconds
+     */
+    @Override
+    public Map<String, Long> getStrandLagNanos()
+    {
+        return sorter.getInputLags();
+    }
+
+    /**
+     * Balance strands between sorting threads using the counts from a
+     * previous run (see {@link #getStrandCounts()}).  This must be called
+     * before any strands are created.
+     *
+     * @param counts map of strand names to counts
+     */
+    public void rebalance(Map<String, Long> counts)
+    {
+        sorter.rebalance(counts);
+    }
+
     @Override
     public void removeSplicerListener(SplicerListener listener)
     {
@@ -226,6 +436,211 @@ public class PrioritySplicer<T>
         }
     }
 
+    /**
+     * If <tt>true</tt>, strands are assigned to sorting threads when the
+     * splicer starts, balancing their expected rates.  This must be set
+     * before any strands are created.
+     *
+     * @param val <tt>true</tt> to balance strands
+     */
+    public void setBalancedStrands(boolean val)
+    {
+        sorter.setBalancedInputs(val);
+    }
+
+    /**
+     * Limit the total amount of data buffered by all strands.  Pushes which
+     * would go over the budget wait or fail according to its policy.
+     * This must be set before any strands are created.
+     *
+     * @param budget buffer budget (<tt>null</tt> for no limit)
+     */
+    public void setBufferBudget(BufferBudget<T> budget)
+    {
+        this.budget = budget;
+        bridge.setBudget(budget);
+        updateLateConsumer();
+
+        // objects thrown away when a lagging strand is closed only need
+        // to be given back to the budget
+        if (budget == null) {
+            sorter.setEvictedDataConsumer(null);
+        } else {
+            ConsumerBridge<T> evictBridge = new ConsumerBridge<T>(this, null);
+            evictBridge.setBudget(budget);
+            sorter.setEvictedDataConsumer(evictBridge);
+        }
+    }
+
+    /**
+     * If <tt>true</tt>, the final merge runs on its own thread instead of
+     * on the strand sorting threads.  This must be set before the splicer
+     * is started.
+     *
+     * @param val <tt>true</tt> to use a dedicated merge thread
+     */
+    public void setDedicatedMerger(boolean val)
+    {
+        sorter.setDedicatedMerger(val);
+    }
+
+    /**
+     * Adjust the chunk size to keep the 99th percentile delay between
+     * objects being pushed and being handed to the analysis under this
+     * target.
+     *
+     * @param nanos target latency in nanoseconds (0 to turn this off)
+     */
+    public void setLatencyTarget(long nanos)
+    {
+        sorter.setLatencyTarget(nanos);
+    }
+
+    /**
+     * Hand objects which arrive too late to be spliced in order to a
+     * separate analysis instead of dropping them.  The analysis may be
+     * called from a sorting thread or from any thread pushing into a
+     * strand.  Lists from sorting threads are reused, so the analysis must
+     * not keep them.  This must be set before any strands are created.
+     *
+     * @param lateAnalysis analysis for late objects (<tt>null</tt> to just
+     *                     count them)
+     */
+    public void setLateDataAnalysis(SplicedAnalysis<T> lateAnalysis)
+    {
+        this.lateAnalysis = lateAnalysis;
+        updateLateConsumer();
+    }
+
+    /**
+     * Set the policy for a strand which holds back all the others for too
+     * long.  This must be set before the splicer is started.
+     *
+     * @param policy what to do about a lagging strand (<tt>null</tt> to
+     *               always wait)
+     * @param maxLagNanos a strand lags after holding up the others for
+     *                    this long (0 to ignore)
+     * @param maxLagDepth ...or while this many objects are queued behind
+     *                    it (0 to ignore)
+     */
+    public void setLagPolicy(LagPolicy policy, long maxLagNanos,
+                             int maxLagDepth)
+    {
+        sorter.setLagPolicy(policy, maxLagNanos, maxLagDepth);
+    }
+
+    /**
+     * Hold up to <tt>window</tt> objects in each strand so that objects
+     * which were pushed slightly out of order are put back in order before
+     * they are sorted.  Objects which arrive later than that are counted
+     * and handed to the late-data analysis.  Held objects are passed on if
+     * none has been passed on for a second.  This must be set before any
+     * strands are created.
+     *
+     * @param window number of objects held by each strand (0 to sort
+     *               objects in the order they are pushed)
+     */
+    public void setReorderWindow(int window)
+    {
+        setReorderWindow(window, ReorderingStrandTail.DEFAULT_MAX_HOLD_MILLIS);
+    }
+
+    /**
+     * Hold up to <tt>window</tt> objects in each strand so that objects
+     * which were pushed slightly out of order are put back in order before
+     * they are sorted, but pass them on if none has been passed on for
+     * <tt>maxHoldMillis</tt>, so a strand which goes quiet doesn't hold up
+     * the others.  This must be set before any strands are created.
+     *
+     * @param window number of objects held by each strand (0 to sort
+     *               objects in the order they are pushed)
+     * @param maxHoldMillis longest time objects are held (0 to hold them
+     *                      until the window overflows)
+     */
+    public void setReorderWindow(int window, long maxHoldMillis)
+    {
+        if (window < 0) {
+            throw new IllegalArgumentException("Reorder window cannot be" +
+                                               " negative");
+        }
+        if (maxHoldMillis < 0) {
+            throw new IllegalArgumentException("Maximum hold time cannot be" +
+                                               " negative");
+        }
+
+        reorderWindow = window;
+        reorderHoldMillis = maxHoldMillis;
+        if (window > 0 && maxHoldMillis > 0) {
+            reorderFlusher = new ReorderFlusher(maxHoldMillis);
+        } else {
+            reorderFlusher = null;
+        }
+    }
+
+    /**
+     * Set the longest time a sorting thread can hold data before handing it
+     * to the final merge, so latency stays bounded at low data rates.
+     *
+     * @param nanos number of nanoseconds (0 for no limit)
+     */
+    public void setMaxHoldTime(long nanos)
+    {
+        sorter.setMaxHoldTime(nanos);
+    }
+
+    /**
+     * Set the maximum number of sorting threads merged by a single thread.
+     * Above this, intermediate merge threads are added so the final merge
+     * does not become a bottleneck.  This must be set before the splicer
+     * is started.
+     *
+     * @param val maximum number of sources per merge (0 for no limit)
+     */
+    public void setMergeFanOut(int val)
+    {
+        sorter.setMergeFanOut(val);
+    }
+
+    /**
+     * Let strands created after this call spill objects to memory-mapped
+     * segment files once more than <tt>threshold</tt> objects are queued in
+     * memory.
+     *
+     * @param dir directory which holds segment files
+     * @param codec converts objects to and from bytes
+     * @param threshold maximum number of objects each strand queues in
+     *                  memory
+     * @param segmentBytes size of each segment file
+     */
+    public void setSpill(File dir, SpillCodec<T> codec, int threshold,
+                         int segmentBytes)
+    {
+        sorter.setSpill(dir, codec, threshold, segmentBytes);
+    }
+
+    /**
+     * Set the maximum number of objects which can be queued in each strand
+     * created after this call.
+     *
+     * @param val maximum number of queued objects
+     */
+    public void setStrandCapacity(int val)
+    {
+        sorter.setInputCapacity(val);
+    }
+
+    /**
+     * If <tt>true</tt>, strands created after this call will use a
+     * lock-free ring buffer.  Each of those strands must only be pushed
+     * (and closed) by a single thread.
+     *
+     * @param val <tt>true</tt> if each strand has a single producer
+     */
+    public void setSingleProducerStrands(boolean val)
+    {
+        sorter.setSingleProducerInputs(val);
+    }
+
     @Override
     public void start()
     {
@@ -251,6 +666,9 @@ public class PrioritySplicer<T>
             changeState(State.STARTING);
             sorter.start();
             task.start();
+            if (reorderFlusher != null) {
+                reorderFlusher.start();
+            }
             changeState(State.STARTED);
         }
     }
@@ -279,24 +697,58 @@ public class PrioritySplicer<T>
                 throw new Error("PrioritySplicer " + sorter.getName() +
                                 " did not stop", se);
             }
+            if (reorderFlusher != null) {
+                reorderFlusher.stop();
+            }
+            if (budget != null) {
+                // nothing can give space back from now on
+                budget.reset();
+            }
             changeState(State.STOPPED);
         }
 
         // telling AdjustmentTask to stop multiple times is not a problem
         task.stop();
+        if (reorderFlusher != null) {
+            reorderFlusher.stop();
+        }
+    }
+
+    /**
+     * Route late objects to the late-data analysis, and give them back to
+     * the buffer budget if there is one.
+     */
+    private void updateLateConsumer()
+    {
+        if (lateAnalysis == null && budget == null) {
+            sorter.setLateDataConsumer(null);
+        } else {
+            ConsumerBridge<T> lateBridge =
+                new ConsumerBridge<T>(this, lateAnalysis);
+            lateBridge.setBudget(budget);
+            sorter.setLateDataConsumer(lateBridge);
+        }
     }
 }
 
 class ConsumerBridge<T>
-    implements DataConsumer<T>, Runnable
+    implements BatchDataConsumer<T>, Runnable
 {
     private PrioritySplicer<T> splicer;
     private SplicedAnalysis<T> analysis;
 
+    /**
+     * List handed to the analysis.  It is reused for every call, so the
+     * analysis must not modify it or keep a reference to it after
+     * <tt>analyze()</tt> returns.
+     */
     private List<T> one = new ArrayList<T>(1);
 
     private Thread stopThread;
 
+    /** Budget which consumed objects are given back to (may be null) */
+    private volatile BufferBudget<T> budget;
+
     ConsumerBridge(PrioritySplicer<T> splicer, SplicedAnalysis<T> analysis)
     {
         this.splicer = splicer;
@@ -304,7 +756,8 @@ class ConsumerBridge<T>
     }
 
     /**
-     * Consume a piece of data.
+     * Consume a piece of data.  The Sorter only calls this while holding
+     * its merge lock, so the shared list needs no locking of its own.
      *
      * @param data data
      */
@@ -312,13 +765,44 @@ class ConsumerBridge<T>
     public void consume(T data)
         throws IOException
     {
-        synchronized (one) {
-            one.add(data);
+        if (budget != null) {
+            budget.release(data);
+        }
+
+        if (analysis == null) {
+            return;
+        }
+
+        one.add(data);
+        try {
             analysis.analyze(one);
+        } finally {
             one.clear();
         }
     }
 
+    /**
+     * Consume a batch of data.  The list belongs to the Sorter, so the
+     * analysis must not modify it or keep a reference to it after
+     * <tt>analyze()</tt> returns.
+     *
+     * @param data list of data
+     */
+    @Override
+    public void consumeBatch(List<T> data)
+        throws IOException
+    {
+        if (budget != null) {
+            for (T obj : data) {
+                budget.release(obj);
+            }
+        }
+
+        if (analysis != null) {
+            analysis.analyze(data);
+        }
+    }
+
     /**
      * The stream is closed.
      */
@@ -340,6 +824,16 @@ class ConsumerBridge<T>
         // do nothing
     }
 
+    /**
+     * Give each consumed object back to a buffer budget
+     *
+     * @param budget buffer budget (<tt>null</tt> if unlimited)
+     */
+    void setBudget(BufferBudget<T> budget)
+    {
+        this.budget = budget;
+    }
+
     @Override
     public void run()
     {
@@ -485,6 +979,29 @@ class PrioTail<T>
         return this;
     }
 
+    /**
+     * Promises that no object less than <code>mark</code> will be pushed
+     * into this object from now on, so other strands can be sorted up to
+     * <code>mark</code> without waiting for this one.
+     *
+     * @param mark lower bound on all objects pushed after this call.
+     * @return this object, so that pushes can be chained.
+     * @throws ClosedStrandException is the associated Strand has been closed.
+     */
+    @Override
+    public StrandTail<T> pushWatermark(T mark)
+        throws ClosedStrandException
+    {
+        try {
+            sin.putWatermark(mark);
+        } catch (SorterException se) {
+            throw new ClosedStrandException("Input " + sin +
+                                            " has been closed");
+        }
+
+        return this;
+    }
+
     /**
      * Returns the number of objects pushed into this object
      * that have yet to be woven into the resultant rope.
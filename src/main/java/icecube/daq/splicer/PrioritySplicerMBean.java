@@ -1,10 +1,23 @@
 package icecube.daq.splicer;
 
+import java.util.Map;
+
 public interface PrioritySplicerMBean
 {
+    long getCheckNanos();
     int getChunkSize();
+    long getLatencyP99Nanos();
+    long getLatencyTargetNanos();
+    long getMaxHoldNanos();
+    long getMergeNanos();
     long getNumberOfChecks();
+    long getNumberOfChunkDecreases();
+    long getNumberOfChunkIncreases();
+    long getNumberOfLateObjects();
     long getNumberOfOutputs();
     long getNumberOfProcessCalls();
+    long getNumberOfSpilledObjects();
     int getQueueSize();
+    long getSortNanos();
+    Map<String, Long> getStrandLagNanos();
 }
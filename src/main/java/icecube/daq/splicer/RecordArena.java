@@ -0,0 +1,231 @@
+package icecube.daq.splicer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * First-in, first-out store for raw records in a direct (off-heap)
+ * ByteBuffer.
+ * <p>
+ * Each record is written as a length, a <tt>long</tt> sort key and the
+ * payload bytes.  Records never wrap around the end of the buffer; if a
+ * record doesn't fit in the space left before the end, that space is
+ * skipped.  Records are read in order, but the space they use is only
+ * handed back to the writer when {@link #release()} is called, so payloads
+ * handed out by {@link #takePayload()} stay valid until then.
+ * <p>
+ * This class is not thread-safe; callers must synchronize on it.
+ */
+class RecordArena
+{
+    /** Number of bytes used by a record's length and key */
+    static final int HEADER_BYTES = 12;
+
+    /** Length written in place of a record to mark skipped space */
+    private static final int PADDING = -1;
+
+    private ByteBuffer buf;
+    /** View used to copy payloads into the buffer */
+    private ByteBuffer writer;
+    private int capacity;
+
+    /** Total number of bytes ever written (including skipped space) */
+    private long writePos;
+    /** Total number of bytes ever read */
+    private long readPos;
+    /** Total number of bytes handed back to the writer */
+    private long freePos;
+
+    /** Number of records which have not been released */
+    private int numRecords;
+    /** Number of records which have not been read */
+    private int numUnread;
+
+    /**
+     * Create an arena
+     *
+     * @param capacity number of bytes
+     */
+    RecordArena(int capacity)
+    {
+        if (capacity < HEADER_BYTES) {
+            throw new IllegalArgumentException("Arena must hold at least " +
+                                               HEADER_BYTES + " bytes");
+        }
+
+        this.capacity = capacity;
+
+        buf = ByteBuffer.allocateDirect(capacity);
+        writer = buf.duplicate();
+    }
+
+    /**
+     * Add a record
+     *
+     * @param key sort key
+     * @param payload record payload (the bytes between its position and
+     *                limit are copied, and its position is not changed)
+     *
+     * @return <tt>false</tt> if there isn't enough free space
+     */
+    boolean add(long key, ByteBuffer payload)
+    {
+        final int len = payload.remaining();
+        final int need = HEADER_BYTES + len;
+
+        if (writePos == freePos) {
+            // everything has been released, so start again at the front
+            // rather than skipping the space before the end
+            writePos = 0;
+            readPos = 0;
+            freePos = 0;
+        }
+
+        int idx = (int) (writePos % capacity);
+        int skip = 0;
+        if (capacity - idx < need) {
+            skip = capacity - idx;
+        }
+
+        if (writePos + skip + need - freePos > capacity) {
+            return false;
+        }
+
+        if (skip > 0) {
+            if (skip >= 4) {
+                buf.putInt(idx, PADDING);
+            }
+            writePos += skip;
+            idx = 0;
+        }
+
+        buf.putInt(idx, len);
+        buf.putLong(idx + 4, key);
+
+        writer.clear();
+        writer.position(idx + HEADER_BYTES);
+        final int pos = payload.position();
+        writer.put(payload);
+        payload.position(pos);
+
+        writePos += need;
+        numRecords++;
+        numUnread++;
+        return true;
+    }
+
+    /**
+     * Throw away all records.
+     */
+    void clear()
+    {
+        writePos = 0;
+        readPos = 0;
+        freePos = 0;
+        numRecords = 0;
+        numUnread = 0;
+    }
+
+    /**
+     * Could a record of the specified size ever fit in this arena?
+     *
+     * @param len payload length
+     *
+     * @return <tt>true</tt> if the record fits in an empty arena
+     */
+    boolean fits(int len)
+    {
+        return HEADER_BYTES + len <= capacity;
+    }
+
+    /**
+     * Get the buffer index of the next unread record, moving past any
+     * skipped space.
+     *
+     * @return buffer index
+     */
+    private int headIndex()
+    {
+        int idx = (int) (readPos % capacity);
+        final int left = capacity - idx;
+        if (left < 4 || buf.getInt(idx) == PADDING) {
+            readPos += left;
+            idx = 0;
+        }
+
+        return idx;
+    }
+
+    /**
+     * Get the sort key of the next unread record.  There must be at least
+     * one unread record.
+     *
+     * @return sort key
+     */
+    long headKey()
+    {
+        return buf.getLong(headIndex() + 4);
+    }
+
+    /**
+     * Are there any unread records?
+     *
+     * @return <tt>true</tt> if every record has been read
+     */
+    boolean isEmpty()
+    {
+        return numUnread == 0;
+    }
+
+    /**
+     * Hand the space used by all read records back to the writer.
+     *
+     * @return <tt>true</tt> if any space was freed
+     */
+    boolean release()
+    {
+        if (freePos == readPos) {
+            return false;
+        }
+
+        freePos = readPos;
+        numRecords = numUnread;
+        return true;
+    }
+
+    /**
+     * Get the number of records which have not been released
+     *
+     * @return number of records
+     */
+    int size()
+    {
+        return numRecords;
+    }
+
+    /**
+     * Read the next record.  There must be at least one unread record.
+     *
+     * @return view of the record's payload, which is only valid until the
+     *         next call to {@link #release()}
+     */
+    ByteBuffer takePayload()
+    {
+        final int idx = headIndex();
+        final int len = buf.getInt(idx);
+
+        ByteBuffer view = buf.duplicate();
+        view.position(idx + HEADER_BYTES);
+        view.limit(idx + HEADER_BYTES + len);
+
+        readPos += HEADER_BYTES + len;
+        numUnread--;
+        return view.slice();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Arena[" + numRecords + " records, " + (writePos - freePos) +
+            "/" + capacity + " bytes]";
+    }
+}
@@ -0,0 +1,65 @@
+package icecube.daq.splicer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This interface is used by clients of the Splicer to push raw records,
+ * rather than objects, into a Strand.
+ * <p>
+ * Each record is a <tt>long</tt> sort key plus a payload which the
+ * Splicer's {@link SpliceableFactory} turns into a {@link Spliceable} just
+ * before it is handed to the analysis.  Records are held outside the Java
+ * heap until then.
+ */
+public interface RecordStrandTail
+{
+    /**
+     * Closes the associated Strand. The Splicer will continue to handle
+     * those records already pushed into this object but will not accept any
+     * more.
+     */
+    void close();
+
+    /**
+     * Returns true if the {@link #close()} method has been called on this
+     * object.
+     *
+     * @return true if this object is closed.
+     */
+    boolean isClosed();
+
+    /**
+     * Adds a record onto the tail of the associated Strand, waiting for
+     * space if the Strand's buffer is full.  The key must be greater than
+     * or equal to the key of every record previously pushed into this
+     * object.
+     *
+     * @param key sort key
+     * @param payload record payload (the bytes between its position and
+     *                limit are copied, and its position is not changed)
+     * @return this object, so that pushes can be chained.
+     * @throws OrderingException if the key is lower than the previous key
+     * @throws ClosedStrandException is the associated Strand has been closed.
+     */
+    RecordStrandTail push(long key, ByteBuffer payload)
+        throws OrderingException, ClosedStrandException;
+
+    /**
+     * Promises that no record with a key less than <code>key</code> will be
+     * pushed into this object from now on.
+     *
+     * @param key lower bound on all keys pushed after this call.
+     * @return this object, so that pushes can be chained.
+     * @throws ClosedStrandException is the associated Strand has been closed.
+     */
+    RecordStrandTail pushWatermark(long key)
+        throws ClosedStrandException;
+
+    /**
+     * Returns the number of records pushed into this object that have yet
+     * to be handed to the analysis.
+     *
+     * @return the number of records yet to be woven.
+     */
+    int size();
+}
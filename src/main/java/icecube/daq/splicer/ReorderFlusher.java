@@ -0,0 +1,87 @@
+package icecube.daq.splicer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Periodically pass on objects which have been held too long by a
+ * splicer's reordering strand tails.
+ */
+class ReorderFlusher
+{
+    private long periodMillis;
+
+    private List<ReorderingStrandTail<?>> tails =
+        new ArrayList<ReorderingStrandTail<?>>();
+
+    private Timer timer;
+
+    /**
+     * Create a flusher
+     *
+     * @param maxHoldMillis longest time objects may be held
+     */
+    ReorderFlusher(long maxHoldMillis)
+    {
+        // check twice per hold period so nothing is held much longer
+        periodMillis = Math.max(1L, maxHoldMillis / 2L);
+    }
+
+    /**
+     * Add a strand tail.
+     *
+     * @param tail reordering strand tail
+     */
+    synchronized void add(ReorderingStrandTail<?> tail)
+    {
+        tails.add(tail);
+    }
+
+    /**
+     * Release any objects which have been held too long.
+     */
+    private void flush()
+    {
+        ReorderingStrandTail<?>[] array;
+        synchronized (this) {
+            array = tails.toArray(new ReorderingStrandTail<?>[tails.size()]);
+        }
+
+        final long now = System.nanoTime();
+        for (ReorderingStrandTail<?> tail : array) {
+            tail.releaseExpired(now);
+        }
+    }
+
+    /**
+     * Start the timer thread
+     */
+    synchronized void start()
+    {
+        if (timer != null) {
+            return;
+        }
+
+        timer = new Timer("ReorderFlusher", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            }, periodMillis, periodMillis);
+    }
+
+    /**
+     * Stop the timer thread
+     */
+    synchronized void stop()
+    {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
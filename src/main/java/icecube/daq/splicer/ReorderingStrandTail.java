@@ -0,0 +1,469 @@
+package icecube.daq.splicer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Strand tail which puts slightly out-of-order objects back in order
+ * before they reach the splicer.
+ * <p>
+ * Up to <tt>window</tt> objects are held in a small heap, and the lowest
+ * one is passed on whenever the heap overflows, so an object which arrives
+ * up to <tt>window</tt> places late is still spliced in order.  Anything
+ * later than that is counted and handed to the late-data analysis (if
+ * there is one) instead of the splicer.  Watermarks, the end-of-stream
+ * object and closing the strand all release the held objects.
+ * <p>
+ * If a maximum hold time is set, a {@link ReorderFlusher} also releases the
+ * held objects once none has been passed on for that long, so a strand
+ * which goes quiet can't hide its last few objects from the splicer.
+ * If the splicer has closed the strand (for instance because it lagged
+ * too far behind), held objects which can no longer be passed on are
+ * treated like late objects.
+ * Because the flusher runs on its own thread, every method which touches
+ * the held objects is synchronized.
+ */
+class ReorderingStrandTail<T>
+    implements StrandTail<T>
+{
+    private static final Logger logger =
+        Logger.getLogger(ReorderingStrandTail.class);
+
+    /** Default longest time objects may be held */
+    static final long DEFAULT_MAX_HOLD_MILLIS = 1000L;
+
+    private StrandTail<T> tail;
+    private Comparator<T> cmp;
+    private T lastObject;
+
+    /** Receives objects which arrived too late (may be <tt>null</tt>) */
+    private SplicedAnalysis<T> lateAnalysis;
+    /** Counter shared by all of a splicer's strands */
+    private AtomicLong numLate;
+    /** Budget which late objects are given back to (may be <tt>null</tt>) */
+    private BufferBudget<T> budget;
+
+    /** Binary heap of held objects */
+    private Object[] heap;
+    private int size;
+
+    /** Most recent object passed on to the splicer */
+    private T lastReleased;
+
+    /** Longest time objects may be held (0 to hold them indefinitely) */
+    private long maxHoldNanos;
+    /** Time an object was last added to an empty window or passed on */
+    private long heldSinceNanos;
+
+    /** Objects released by a single list push */
+    private ArrayList<T> released = new ArrayList<T>();
+
+    /**
+     * Create a reordering tail
+     *
+     * @param tail splicer's strand tail
+     * @param cmp object comparator
+     * @param lastObject end-of-stream object
+     * @param window maximum number of held objects
+     * @param maxHoldNanos longest time objects may be held (0 to hold them
+     *                     until the window overflows)
+     * @param lateAnalysis receives late objects (may be <tt>null</tt>)
+     * @param numLate count of late objects
+     * @param budget buffer budget which late objects are given back to
+     *               (may be <tt>null</tt>)
+     */
+    ReorderingStrandTail(StrandTail<T> tail, Comparator<T> cmp, T lastObject,
+                         int window, long maxHoldNanos,
+                         SplicedAnalysis<T> lateAnalysis, AtomicLong numLate,
+                         BufferBudget<T> budget)
+    {
+        if (window < 1) {
+            throw new IllegalArgumentException("Reorder window must be" +
+                                               " positive");
+        }
+        if (maxHoldNanos < 0) {
+            throw new IllegalArgumentException("Maximum hold time cannot be" +
+                                               " negative");
+        }
+
+        this.tail = tail;
+        this.cmp = cmp;
+        this.lastObject = lastObject;
+        this.maxHoldNanos = maxHoldNanos;
+        this.lateAnalysis = lateAnalysis;
+        this.numLate = numLate;
+        this.budget = budget;
+
+        heap = new Object[window];
+    }
+
+    /**
+     * Hold an object, returning the object which should be passed on.
+     *
+     * @param obj new object
+     *
+     * @return object to pass on (<tt>null</tt> if the window isn't full)
+     */
+    @SuppressWarnings("unchecked")
+    private T add(T obj)
+    {
+        if (size < heap.length) {
+            if (size == 0 && maxHoldNanos > 0L) {
+                heldSinceNanos = System.nanoTime();
+            }
+
+            // sift up
+            int idx = size++;
+            while (idx > 0) {
+                final int parent = (idx - 1) >> 1;
+                if (cmp.compare((T) heap[parent], obj) <= 0) {
+                    break;
+                }
+                heap[idx] = heap[parent];
+                idx = parent;
+            }
+            heap[idx] = obj;
+            return null;
+        }
+
+        final T low = (T) heap[0];
+        if (cmp.compare(obj, low) <= 0) {
+            // the new object is already the lowest
+            return obj;
+        }
+
+        siftDown(obj);
+        if (maxHoldNanos > 0L) {
+            heldSinceNanos = System.nanoTime();
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        try {
+            releaseAll();
+        } catch (SplicerException se) {
+            // the strand is already closed
+        }
+        tail.close();
+    }
+
+    /**
+     * Is the object too late to be put back in order?
+     *
+     * @param obj new object
+     *
+     * @return <tt>true</tt> if an object above this one was passed on
+     */
+    private boolean isLate(T obj)
+    {
+        return lastReleased != null && cmp.compare(obj, lastReleased) < 0;
+    }
+
+    /**
+     * Once the splicer has closed the strand, hand every held object, along
+     * with any objects which were taken out of the window but could not be
+     * passed on, to the late-data handling.
+     *
+     * @param failed objects which could not be passed on (may be
+     *               <tt>null</tt>)
+     * @param pushed objects being pushed by the caller, who is told that
+     *               they were not accepted (may be <tt>null</tt>)
+     */
+    @SuppressWarnings("unchecked")
+    private void dropHeld(List<T> failed, List<T> pushed)
+    {
+        List<T> dropped = new ArrayList<T>();
+        if (failed != null) {
+            dropped.addAll(failed);
+        }
+        while (size > 0) {
+            dropped.add((T) heap[--size]);
+            heap[size] = null;
+        }
+
+        Set<T> skip = null;
+        if (pushed != null) {
+            skip =
+                Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+            skip.addAll(pushed);
+        }
+
+        List<T> lateList = new ArrayList<T>(dropped.size());
+        for (T obj : dropped) {
+            if (obj != lastObject && (skip == null || !skip.contains(obj))) {
+                lateList.add(obj);
+            }
+        }
+
+        if (lateList.size() > 0) {
+            late(lateList);
+        }
+    }
+
+    @Override
+    public boolean isClosed()
+    {
+        return tail.isClosed();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized T head()
+    {
+        final T head = tail.head();
+        if (head != null || size == 0) {
+            return head;
+        }
+
+        return (T) heap[0];
+    }
+
+    /**
+     * Count a late object and hand it to the late-data analysis
+     *
+     * @param list late objects
+     */
+    private void late(List<T> list)
+    {
+        numLate.addAndGet(list.size());
+        if (budget != null) {
+            // late objects never reach the splicer
+            for (T obj : list) {
+                budget.release(obj);
+            }
+        }
+        if (lateAnalysis != null) {
+            try {
+                lateAnalysis.analyze(list);
+            } catch (Throwable thr) {
+                logger.error("Late-data analysis failed for " + list.size() +
+                             " objects", thr);
+            }
+        }
+    }
+
+    /**
+     * Remove the lowest held object
+     *
+     * @return lowest object
+     */
+    @SuppressWarnings("unchecked")
+    private T poll()
+    {
+        final T low = (T) heap[0];
+
+        final T last = (T) heap[--size];
+        heap[size] = null;
+        if (size > 0) {
+            siftDown(last);
+        }
+
+        if (maxHoldNanos > 0L) {
+            heldSinceNanos = System.nanoTime();
+        }
+
+        return low;
+    }
+
+    @Override
+    public synchronized StrandTail<T> push(List<T> spliceables)
+        throws OrderingException, ClosedStrandException
+    {
+        if (tail.isClosed()) {
+            dropHeld(null, null);
+            throw new ClosedStrandException("Strand " + this +
+                                            " has been closed");
+        }
+
+        List<T> lateList = null;
+        try {
+            for (T spl : spliceables) {
+                if (spl == lastObject) {
+                    while (size > 0) {
+                        released.add(poll());
+                    }
+                    released.add(spl);
+                } else if (isLate(spl)) {
+                    if (lateList == null) {
+                        lateList = new ArrayList<T>();
+                    }
+                    lateList.add(spl);
+                } else {
+                    final T out = add(spl);
+                    if (out != null) {
+                        lastReleased = out;
+                        released.add(out);
+                    }
+                }
+            }
+
+            if (released.size() > 0) {
+                tail.push(released);
+            }
+        } catch (ClosedStrandException cse) {
+            dropHeld(released, spliceables);
+            throw cse;
+        } finally {
+            released.clear();
+        }
+
+        if (lateList != null) {
+            late(lateList);
+        }
+
+        return this;
+    }
+
+    @Override
+    public synchronized StrandTail<T> push(T spliceable)
+        throws OrderingException, ClosedStrandException
+    {
+        if (tail.isClosed()) {
+            dropHeld(null, null);
+            throw new ClosedStrandException("Strand " + this +
+                                            " has been closed");
+        }
+
+        if (spliceable == lastObject) {
+            releaseAll();
+            tail.push(spliceable);
+        } else if (isLate(spliceable)) {
+            List<T> lateList = new ArrayList<T>(1);
+            lateList.add(spliceable);
+            late(lateList);
+        } else {
+            final T out = add(spliceable);
+            if (out != null) {
+                lastReleased = out;
+                try {
+                    tail.push(out);
+                } catch (ClosedStrandException cse) {
+                    dropHeld(Collections.singletonList(out),
+                             Collections.singletonList(spliceable));
+                    throw cse;
+                }
+            }
+        }
+
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized StrandTail<T> pushWatermark(T mark)
+        throws ClosedStrandException
+    {
+        // nothing below the watermark can arrive, so release it
+        while (size > 0 && cmp.compare((T) heap[0], mark) <= 0) {
+            final T out = poll();
+            lastReleased = out;
+            try {
+                tail.push(out);
+            } catch (OrderingException oe) {
+                throw new Error("Held objects are out of order", oe);
+            } catch (ClosedStrandException cse) {
+                dropHeld(Collections.singletonList(out), null);
+                throw cse;
+            }
+        }
+
+        tail.pushWatermark(mark);
+        return this;
+    }
+
+    /**
+     * Pass all held objects on to the splicer if none has been passed on
+     * for longer than the maximum hold time.  This is called by the
+     * {@link ReorderFlusher}.
+     *
+     * @param now current time in nanoseconds
+     */
+    synchronized void releaseExpired(long now)
+    {
+        if (size == 0 || maxHoldNanos == 0L ||
+            now - heldSinceNanos < maxHoldNanos)
+        {
+            return;
+        }
+
+        try {
+            releaseAll();
+        } catch (OrderingException oe) {
+            throw new Error("Held objects are out of order", oe);
+        } catch (ClosedStrandException cse) {
+            // the held objects were treated as late
+        }
+    }
+
+    /**
+     * Pass all held objects on to the splicer
+     *
+     * @throws OrderingException if the splicer rejected an object
+     * @throws ClosedStrandException if the strand has been closed (the
+     *                               held objects are treated as late)
+     */
+    private void releaseAll()
+        throws OrderingException, ClosedStrandException
+    {
+        while (size > 0) {
+            final T out = poll();
+            lastReleased = out;
+            try {
+                tail.push(out);
+            } catch (ClosedStrandException cse) {
+                dropHeld(Collections.singletonList(out), null);
+                throw cse;
+            }
+        }
+    }
+
+    /**
+     * Put an object at the top of the heap and move it down into place
+     *
+     * @param obj object replacing the lowest object
+     */
+    @SuppressWarnings("unchecked")
+    private void siftDown(T obj)
+    {
+        int idx = 0;
+        while (true) {
+            int child = (idx << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size &&
+                cmp.compare((T) heap[child + 1], (T) heap[child]) < 0)
+            {
+                child++;
+            }
+            if (cmp.compare(obj, (T) heap[child]) <= 0) {
+                break;
+            }
+            heap[idx] = heap[child];
+            idx = child;
+        }
+        heap[idx] = obj;
+    }
+
+    @Override
+    public synchronized int size()
+    {
+        return tail.size() + size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Reorder[" + size + "/" + heap.length + "]" + tail;
+    }
+}
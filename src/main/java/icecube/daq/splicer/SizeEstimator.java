@@ -0,0 +1,17 @@
+package icecube.daq.splicer;
+
+/**
+ * Estimate how much memory a buffered object uses.
+ */
+public interface SizeEstimator<T>
+{
+    /**
+     * Get the estimated size of an object.  This must always return the
+     * same value for the same object.
+     *
+     * @param obj buffered object
+     *
+     * @return estimated size (in any unit, usually bytes)
+     */
+    long estimateSize(T obj);
+}
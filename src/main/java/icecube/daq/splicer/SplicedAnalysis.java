@@ -25,6 +25,12 @@ public interface SplicedAnalysis<T>
     /**
      * Called by the {@link Splicer Splicer} to analyze the
      * List of objects provided.
+     * <p>
+     * Unless a splicer documents otherwise, the List belongs to the
+     * analysis once this method is called.  Splicers which have been told
+     * to reuse their delivery List keep ownership of it, in which case the
+     * analysis must not modify the List or keep a reference to it after
+     * this method returns.
      *
      * @param splicedObjects a List of objects.
      */
@@ -104,6 +104,27 @@ public interface StrandTail<T>
     StrandTail<T> push(T spliceable)
         throws OrderingException, ClosedStrandException;
 
+    /**
+     * Promises that no object less than <code>mark</code> will be pushed
+     * into this object from now on. Until the next object arrives, the
+     * Splicer may weave objects from other Strands which are less than or
+     * equal to <code>mark</code> without waiting for this Strand, so a quiet
+     * Strand does not hold up the others. The mark itself never appears in
+     * the resultant rope, and a mark which is lower than an earlier one is
+     * ignored.
+     * <p>
+     * This method was added after the rest of this interface.  An
+     * implementation which has no use for marks may simply return
+     * <code>this</code>, since ignoring a mark only means that other Strands
+     * wait for this Strand's next object, as they always did.
+     *
+     * @param mark lower bound on all objects pushed after this call.
+     * @return this object, so that pushes can be chained.
+     * @throws ClosedStrandException is the associated Strand has been closed.
+     */
+    StrandTail<T> pushWatermark(T mark)
+        throws ClosedStrandException;
+
     /**
      * Returns the number of objects pushed into this object
      * that have yet to be woven into the resultant rope.
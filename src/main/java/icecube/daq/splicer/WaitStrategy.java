@@ -0,0 +1,14 @@
+package icecube.daq.splicer;
+
+/**
+ * How a thread waits for the other side of a hand-off.
+ */
+public enum WaitStrategy
+{
+    /** Busy-wait (lowest latency, but keeps a core busy) */
+    SPIN,
+    /** Yield the processor between checks */
+    YIELD,
+    /** Spin briefly, then yield, then park until woken */
+    PARK
+}
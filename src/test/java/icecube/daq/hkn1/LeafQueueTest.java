@@ -0,0 +1,88 @@
+package icecube.daq.hkn1;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LeafQueueTest
+{
+    private static final Comparator<Integer> INT_CMP =
+        new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return a.compareTo(b);
+            }
+        };
+
+    @Test
+    public void chunkRolloverTest()
+    {
+        LeafQueue<Integer> queue = new LeafQueue<Integer>();
+        Node<Integer> node = new Node<Integer>(INT_CMP);
+
+        // fill more than one chunk and drain it while the producer
+        // is still going
+        int next = 0;
+        for (; next < 1500; next++) {
+            queue.offer(Integer.valueOf(next));
+        }
+        assertEquals(1500, queue.size());
+        assertEquals(1500, queue.drainTo(node));
+        assertEquals(Integer.valueOf(1499), queue.getLastDrained());
+        assertTrue(queue.isEmpty());
+
+        // a batch which spans two more chunk boundaries
+        List<Integer> batch = new ArrayList<Integer>();
+        for (int i = 0; i < 2000; i++) {
+            batch.add(Integer.valueOf(next++));
+        }
+        queue.offer(batch);
+        assertEquals(2000, queue.size());
+
+        // poll past the next chunk boundary after the partial drain
+        for (int i = 1500; i < 2200; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertEquals(1300, queue.size());
+
+        for (int i = 0; i < 3000; i++) {
+            queue.offer(Integer.valueOf(next++));
+        }
+        assertEquals(4300, queue.size());
+        assertEquals(4300, queue.drainTo(node));
+        assertEquals(Integer.valueOf(next - 1), queue.getLastDrained());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        // the node got everything which wasn't polled, in order
+        assertEquals(1500 + 4300, node.depth());
+        for (int i = 0; i < next; i++) {
+            if (i == 1500) {
+                i = 2200;
+            }
+            assertEquals(Integer.valueOf(i), node.pop());
+        }
+        assertTrue(node.isEmpty());
+    }
+
+    @Test
+    public void clearTest()
+    {
+        LeafQueue<Integer> queue = new LeafQueue<Integer>();
+        for (int i = 0; i < 2500; i++) {
+            queue.offer(Integer.valueOf(i));
+        }
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+
+        // the queue is still usable after being cleared across chunks
+        queue.offer(Integer.valueOf(2500));
+        assertEquals(Integer.valueOf(2500), queue.poll());
+        assertNull(queue.poll());
+    }
+}
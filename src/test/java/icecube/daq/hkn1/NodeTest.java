@@ -0,0 +1,145 @@
+package icecube.daq.hkn1;
+
+import static org.junit.Assert.*;
+
+import icecube.daq.merge.LongKeyComparator;
+
+import java.util.Comparator;
+
+import org.junit.Test;
+
+public class NodeTest
+{
+    /**
+     * Order Longs by value, counting the calls which weren't settled by
+     * the keys.
+     */
+    static class CountingKeyComparator
+        implements LongKeyComparator<Long>
+    {
+        private int numCompared;
+
+        @Override
+        public int compare(Long a, Long b)
+        {
+            numCompared++;
+            return a.compareTo(b);
+        }
+
+        int getNumCompared()
+        {
+            return numCompared;
+        }
+
+        @Override
+        public long key(Long obj)
+        {
+            return obj.longValue();
+        }
+    }
+
+    /**
+     * Check the head of <tt>node</tt> against peers just below and just
+     * above it.
+     */
+    private static void checkCompare(Node<Long> node, Node<Long> peer)
+    {
+        final long head = node.head().longValue();
+
+        peer.clear();
+        peer.push(Long.valueOf(head - 1));
+        assertEquals("Bad compare of " + head + " with " + (head - 1),
+                     1, node.compare());
+
+        peer.clear();
+        peer.push(Long.valueOf(head + 1));
+        assertEquals("Bad compare of " + head + " with " + (head + 1),
+                     -1, node.compare());
+    }
+
+    private static void runWrapAndGrow(Comparator<Long> cmp)
+    {
+        Node<Long> node = new Node<Long>(cmp);
+        Node<Long> peer = new Node<Long>(cmp);
+        node.setPeer(peer);
+        peer.setPeer(node);
+
+        // move the head partway around the ring
+        for (int i = 0; i < 10; i++) {
+            node.push(Long.valueOf(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Long.valueOf(i), node.pop());
+        }
+        assertTrue(node.isEmpty());
+
+        // wrap past the end of the ring, then fill it so it has to grow
+        // while wrapped, twice over
+        final int numElems = 70;
+        long next = 0;
+        for (int i = 0; i < numElems; i++) {
+            next += 10;
+            node.push(Long.valueOf(next));
+            checkCompare(node, peer);
+        }
+        assertEquals(numElems, node.depth());
+
+        // keep wrapping the bigger ring while draining it
+        long expected = 10;
+        for (int i = 0; i < numElems; i++) {
+            assertEquals(Long.valueOf(expected), node.head());
+            checkCompare(node, peer);
+            assertEquals(Long.valueOf(expected), node.pop());
+            expected += 10;
+
+            if (i % 3 == 0) {
+                next += 10;
+                node.push(Long.valueOf(next));
+            }
+        }
+
+        while (!node.isEmpty()) {
+            checkCompare(node, peer);
+            assertEquals(Long.valueOf(expected), node.pop());
+            expected += 10;
+        }
+        assertEquals(next + 10, expected);
+        assertNull(node.pop());
+    }
+
+    @Test
+    public void keyedWrapAndGrowTest()
+    {
+        CountingKeyComparator cmp = new CountingKeyComparator();
+        runWrapAndGrow(cmp);
+        assertEquals("Keys did not settle every comparison",
+                     0, cmp.getNumCompared());
+    }
+
+    @Test
+    public void keyTieTest()
+    {
+        CountingKeyComparator cmp = new CountingKeyComparator();
+        Node<Long> node = new Node<Long>(cmp);
+        Node<Long> peer = new Node<Long>(cmp);
+        node.setPeer(peer);
+        peer.setPeer(node);
+
+        node.push(Long.valueOf(5));
+        peer.push(Long.valueOf(5));
+        assertEquals(0, node.compare());
+        assertEquals("Equal keys should fall back to the comparator",
+                     1, cmp.getNumCompared());
+    }
+
+    @Test
+    public void wrapAndGrowTest()
+    {
+        runWrapAndGrow(new Comparator<Long>() {
+                public int compare(Long a, Long b)
+                {
+                    return a.compareTo(b);
+                }
+            });
+    }
+}
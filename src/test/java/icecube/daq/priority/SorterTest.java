@@ -1,10 +1,15 @@
 package icecube.daq.priority;
 
+import icecube.daq.merge.LongKeyComparator;
+
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import org.apache.log4j.BasicConfigurator;
@@ -74,6 +79,42 @@ class BBConsumer
     }
 }
 
+class BBBatchConsumer
+    extends BBConsumer
+    implements BatchDataConsumer<ByteBuffer>
+{
+    private long numBatches;
+    private int maxBatch;
+
+    BBBatchConsumer(ByteBuffer eos)
+    {
+        super(eos);
+    }
+
+    @Override
+    public void consumeBatch(List<ByteBuffer> list) throws IOException
+    {
+        numBatches++;
+        if (list.size() > maxBatch) {
+            maxBatch = list.size();
+        }
+
+        for (ByteBuffer buf : list) {
+            consume(buf);
+        }
+    }
+
+    int getMaxBatch()
+    {
+        return maxBatch;
+    }
+
+    long getNumBatches()
+    {
+        return numBatches;
+    }
+}
+
 public class SorterTest
 {
     private static final ByteBuffer EOS = createStopMsg();
@@ -135,6 +176,38 @@ public class SorterTest
         consumer.validate(sorter, numThrd, numChan, numSent);
     }
 
+    private void runSized(BBConsumer consumer, Sorter<ByteBuffer> sorter,
+                          int numChan, int[] sizes)
+        throws SorterException
+    {
+        BufferGenerator[] genArr = new BufferGenerator[sizes.length];
+
+        for (int ch = 0; ch < genArr.length; ch++) {
+            SortInput input = sorter.register(String.format("MB#%012x", ch));
+            genArr[ch] = new BufferGenerator(ch, sizes[ch], input);
+            genArr[ch].start();
+        }
+
+        sorter.start();
+
+        for (int ch = 0; ch < genArr.length; ch++) {
+            try {
+                genArr[ch].join();
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+
+        sorter.waitForStop(10000);
+
+        long numSent = 0;
+        for (int ch = 0; ch < genArr.length; ch++) {
+            numSent += genArr[ch].getNumberSent();
+        }
+
+        consumer.validate(sorter, sizes.length, numChan, numSent);
+    }
+
     @Test
     public void testBadMaxInputs()
         throws SorterException
@@ -278,6 +351,248 @@ public class SorterTest
         runTest(consumer, sorter, nch, numThrd, chunkSize);
     }
 
+    @Test
+    public void testBatchConsumer()
+        throws SorterException
+    {
+        final int numThrd = 3;
+        final int chunkSize = 500;
+
+        BBBatchConsumer consumer = new BBBatchConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("Batch", nch, new ByteBuffComparator(EOS),
+                                   consumer, EOS, numThrd, chunkSize);
+
+        runTest(consumer, sorter, nch, numThrd, chunkSize);
+
+        assertTrue("No batches were sent", consumer.getNumBatches() > 0);
+        assertTrue("Batch of " + consumer.getMaxBatch() +
+                   " exceeds chunk size " + chunkSize,
+                   consumer.getMaxBatch() <= chunkSize);
+    }
+
+    @Test
+    public void testRingBufferInputs()
+        throws SorterException
+    {
+        final int numThrd = 3;
+        final int chunkSize = 500;
+
+        BBConsumer consumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("Ring", nch, new ByteBuffComparator(EOS),
+                                   consumer, EOS, numThrd, chunkSize);
+        sorter.setInputCapacity(1000);
+        sorter.setSingleProducerInputs(true);
+
+        runTest(consumer, sorter, nch, numThrd, chunkSize);
+    }
+
+    @Test
+    public void testLongKeyComparator()
+        throws SorterException
+    {
+        final int numThrd = 3;
+        final int chunkSize = 500;
+
+        BBConsumer consumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("LongKey", nch,
+                                   new KeyedByteBuffComparator(EOS), consumer,
+                                   EOS, numThrd, chunkSize);
+
+        runTest(consumer, sorter, nch, numThrd, chunkSize);
+    }
+
+    @Test
+    public void testDedicatedMerger()
+        throws SorterException
+    {
+        final int numThrd = 3;
+        final int chunkSize = 500;
+
+        BBConsumer consumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("Merger", nch, new ByteBuffComparator(EOS),
+                                   consumer, EOS, numThrd, chunkSize);
+        sorter.setDedicatedMerger(true);
+
+        runTest(consumer, sorter, nch, numThrd, chunkSize);
+
+        assertTrue("No time spent merging", sorter.getMergeNanos() > 0);
+        assertTrue("No time spent sorting", sorter.getSortNanos() > 0);
+    }
+
+    @Test
+    public void testBalancedInputs()
+        throws SorterException
+    {
+        final int numThrd = 3;
+        final int chunkSize = 500;
+
+        // skewed input sizes, twice as many inputs as subsorters
+        final int[] sizes = new int[] { 6000, 3000, 2500, 2000, 1200, 1000 };
+
+        BBConsumer consumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("Balanced", nch,
+                                   new ByteBuffComparator(EOS), consumer, EOS,
+                                   numThrd, chunkSize);
+
+        runSized(consumer, sorter, nch, sizes);
+
+        Map<String, Long> counts = sorter.getInputCounts();
+        assertEquals("Bad number of input counts", sizes.length,
+                     counts.size());
+        for (int ch = 0; ch < sizes.length; ch++) {
+            final long count = counts.get(String.format("MB#%012x", ch));
+            assertTrue("Input #" + ch + " count " + count + " is less than " +
+                       sizes[ch], count >= sizes[ch]);
+        }
+
+        // inputs in the next run have the same names
+        BBConsumer nextConsumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> next =
+            new Sorter<ByteBuffer>("Rebalanced", nch,
+                                   new ByteBuffComparator(EOS), nextConsumer,
+                                   EOS, numThrd, chunkSize);
+        next.rebalance(counts);
+
+        runSized(nextConsumer, next, nch, sizes);
+
+        // heaviest first, each to the least loaded subsorter
+        final int[] expected = new int[] { 0, 1, 2, 2, 1, 1 };
+
+        Map<String, Integer> assigned = next.getAssignments();
+        long[] load = new long[numThrd];
+        for (int ch = 0; ch < sizes.length; ch++) {
+            final String name = String.format("MB#%012x", ch);
+            assertEquals("Bad subsorter for " + name,
+                         Integer.valueOf(expected[ch]), assigned.get(name));
+            load[assigned.get(name)] += counts.get(name);
+        }
+
+        // no subsorter carries more than the single heaviest input
+        final long heaviest = counts.get(String.format("MB#%012x", 0));
+        for (int i = 0; i < load.length; i++) {
+            assertTrue("Subsorter #" + i + " load " + load[i] +
+                       " exceeds " + heaviest, load[i] <= heaviest);
+        }
+    }
+
+    @Test
+    public void testMergeFanOut()
+        throws SorterException
+    {
+        final int numThrd = 9;
+        final int chunkSize = 500;
+
+        BBConsumer consumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("FanOut", nch, new ByteBuffComparator(EOS),
+                                   consumer, EOS, numThrd, chunkSize);
+        sorter.setMergeFanOut(2);
+
+        runTest(consumer, sorter, nch, numThrd, chunkSize);
+    }
+
+    @Test
+    public void testLatencyTarget()
+        throws SorterException
+    {
+        final int numThrd = 3;
+        final int chunkSize = 500;
+
+        BBConsumer consumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("Latency", nch, new ByteBuffComparator(EOS),
+                                   consumer, EOS, numThrd, chunkSize);
+        // no sorter can meet this target
+        sorter.setLatencyTarget(1L);
+        sorter.setLatencySampleInterval(16);
+
+        runTest(consumer, sorter, nch, numThrd, chunkSize);
+
+        new SorterMonitor(sorter).monitor();
+
+        assertTrue("Latency was not measured", sorter.getLatencyP99() > 0);
+        assertEquals("Bad number of decreases", 1L,
+                     sorter.getNumChunkDecreases());
+        assertEquals("Chunk size was not halved", chunkSize / 2,
+                     sorter.getChunkSize());
+    }
+
+    private static ByteBuffer createBuffer(long mbid, long time)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(40);
+        buf.putInt(40);
+        buf.putInt(0x1734);
+        buf.putLong(mbid);
+        buf.putLong(0L);
+        buf.putLong(time);
+        buf.putInt(1);
+        buf.putInt(2);
+        buf.flip();
+        return buf;
+    }
+
+    @Test
+    public void testSpill()
+        throws IOException, SorterException
+    {
+        File dir = File.createTempFile("spill", ".dir");
+        assertTrue("Cannot delete " + dir, dir.delete());
+        assertTrue("Cannot create " + dir, dir.mkdir());
+
+        BBConsumer consumer = new BBConsumer(EOS);
+
+        Sorter<ByteBuffer> sorter =
+            new Sorter<ByteBuffer>("Spill", nch, new ByteBuffComparator(EOS),
+                                   consumer, EOS, 1, 500);
+        sorter.setInputCapacity(1000);
+        sorter.setSpill(dir, new ByteBuffCodec(), 100, 4096);
+
+        try {
+            SortInput<ByteBuffer> busy = sorter.register("Busy");
+            SortInput<ByteBuffer> quiet = sorter.register("Quiet");
+            sorter.start();
+
+            // the quiet input holds everything up, so the busy input's
+            // queue grows well past its capacity
+            final int numObjs = 5000;
+            for (int i = 0; i < numObjs; i++) {
+                busy.put(createBuffer(1, i * 2));
+            }
+            busy.putLast();
+
+            assertTrue("Nothing was spilled", sorter.getNumSpilled() > 0);
+
+            for (int i = 0; i < numObjs; i++) {
+                quiet.put(createBuffer(2, i * 2 + 1));
+            }
+            quiet.putLast();
+
+            sorter.waitForStop(10000);
+
+            consumer.validate(sorter, 2, nch, numObjs * 2 + 2);
+            assertEquals("Spill files were not deleted", 0,
+                         dir.list().length);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
     @Test
     public void testFewerChannels()
         throws SorterException
@@ -467,3 +782,52 @@ class ByteBuffComparator
         }
     }
 }
+
+class KeyedByteBuffComparator
+    extends ByteBuffComparator
+    implements LongKeyComparator<ByteBuffer>
+{
+    private ByteBuffer eos;
+
+    KeyedByteBuffComparator(ByteBuffer eos)
+    {
+        super(eos);
+
+        this.eos = eos;
+    }
+
+    @Override
+    public long key(ByteBuffer buf)
+    {
+        if (buf == eos) {
+            return Long.MAX_VALUE;
+        }
+
+        return buf.getLong(24);
+    }
+}
+
+class ByteBuffCodec
+    implements SpillCodec<ByteBuffer>
+{
+    @Override
+    public ByteBuffer decode(ByteBuffer buf)
+    {
+        ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+        copy.put(buf);
+        copy.flip();
+        return copy;
+    }
+
+    @Override
+    public void encode(ByteBuffer obj, ByteBuffer buf)
+    {
+        buf.put(obj.duplicate());
+    }
+
+    @Override
+    public int getEncodedLength(ByteBuffer obj)
+    {
+        return obj.remaining();
+    }
+}
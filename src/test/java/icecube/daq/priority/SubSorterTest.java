@@ -0,0 +1,353 @@
+package icecube.daq.priority;
+
+import icecube.daq.merge.LagPolicy;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+class LongComparator
+    implements Comparator<Long>
+{
+    @Override
+    public int compare(Long a, Long b)
+    {
+        return a.compareTo(b);
+    }
+}
+
+class CountingConsumer
+    implements DataConsumer<Long>
+{
+    private volatile long numConsumed;
+    private volatile boolean stopped;
+
+    @Override
+    public void consume(Long data)
+        throws IOException
+    {
+        numConsumed++;
+    }
+
+    @Override
+    public void endOfStream(long token)
+        throws IOException
+    {
+        stopped = true;
+    }
+
+    long getNumConsumed()
+    {
+        return numConsumed;
+    }
+
+    boolean isStopped()
+    {
+        return stopped;
+    }
+}
+
+public class SubSorterTest
+{
+    private static final Long EOS = Long.valueOf(Long.MAX_VALUE);
+
+    @BeforeClass
+    public static void loggingSetUp()
+    {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.INFO);
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread
+     *
+     * @param bean thread bean
+     *
+     * @return number of bytes (<tt>-1</tt> if this is not supported)
+     */
+    private static long allocatedBytes(java.lang.management.ThreadMXBean bean)
+    {
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1L;
+        }
+
+        com.sun.management.ThreadMXBean sunBean =
+            (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() ||
+            !sunBean.isThreadAllocatedMemoryEnabled())
+        {
+            return -1L;
+        }
+
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Pull objects through the merge loop
+     *
+     * @param ss subsorter
+     * @param num number of objects to merge
+     * @param prev previously merged object
+     *
+     * @return last merged object
+     */
+    private static Long merge(SubSorter<Long> ss, int num, Long prev)
+    {
+        // only build failure messages when something is wrong, since
+        // building them would allocate
+        Long last = prev;
+        for (int i = 0; i < num; i++) {
+            final Long val = ss.lowest();
+            if (val == null) {
+                fail("Ran out of data after " + i + " objects");
+            } else if (last != null && last.longValue() > val.longValue()) {
+                fail("Got " + val + " after " + last);
+            }
+            last = val;
+
+            if (!ss.advance()) {
+                fail("Input stopped after " + i + " objects");
+            }
+        }
+        return last;
+    }
+
+    @Test
+    public void testMergeDoesNotAllocate()
+        throws SorterException
+    {
+        final int numInputs = 8;
+        final int perInput = 20000;
+        final int warmup = 40000;
+        final int measured = 100000;
+
+        SubSorter<Long> ss =
+            new SubSorter<Long>(null, 0, numInputs, new LongComparator(), EOS);
+
+        // preallocate all values so only the merge itself is measured
+        for (int i = 0; i < numInputs; i++) {
+            SortInput<Long> sin =
+                new SortInput<Long>("In#" + i, EOS, perInput + 1, true);
+            for (long v = 0; v < perInput; v++) {
+                sin.put(Long.valueOf(v * numInputs + i));
+            }
+            sin.putLast();
+            ss.register(sin);
+        }
+
+        ss.fillTree();
+
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+
+        Long last = merge(ss, warmup, null);
+
+        final long before = allocatedBytes(bean);
+        if (before < 0) {
+            // cannot measure allocations on this JVM
+            return;
+        }
+
+        last = merge(ss, measured, last);
+
+        final long used = allocatedBytes(bean) - before;
+        assertTrue("Merging " + measured + " objects allocated " + used +
+                   " bytes", used < measured / 10);
+    }
+
+    @Test
+    public void testMaxHoldTime()
+        throws SorterException
+    {
+        final int numValues = 5;
+
+        CountingConsumer consumer = new CountingConsumer();
+
+        // chunk is far larger than the amount of data
+        Sorter<Long> sorter =
+            new Sorter<Long>("Hold", 1, new LongComparator(), consumer, EOS,
+                             1, 100000);
+        sorter.setMaxHoldTime(10000000L);
+
+        SortInput<Long> sin = sorter.register("Slow");
+        sorter.start();
+
+        for (long v = 0; v < numValues; v++) {
+            sin.put(Long.valueOf(v));
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+
+        // wait for the held data to be flushed
+        for (int i = 0; i < 200; i++) {
+            if (consumer.getNumConsumed() >= numValues) {
+                break;
+            }
+
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+
+        assertEquals("Held data was not flushed", numValues,
+                     consumer.getNumConsumed());
+        assertFalse("Input has not been stopped", consumer.isStopped());
+
+        sin.stop();
+        sorter.waitForStop(1000);
+
+        assertEquals("Not all data was consumed", numValues,
+                     consumer.getNumConsumed());
+        assertTrue("End of stream was not seen", consumer.isStopped());
+    }
+
+    @Test
+    public void testWatermark()
+        throws SorterException
+    {
+        final int numValues = 10;
+
+        CountingConsumer consumer = new CountingConsumer();
+
+        Sorter<Long> sorter =
+            new Sorter<Long>("Mark", 2, new LongComparator(), consumer, EOS,
+                             1, 100000);
+        sorter.setMaxHoldTime(10000000L);
+
+        SortInput<Long> busy = sorter.register("Busy");
+        SortInput<Long> quiet = sorter.register("Quiet");
+        sorter.start();
+
+        // the quiet input never sends data, only a watermark
+        quiet.putWatermark(Long.valueOf(1000L));
+        for (long v = 0; v < numValues; v++) {
+            busy.put(Long.valueOf(v));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            if (consumer.getNumConsumed() >= numValues) {
+                break;
+            }
+
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+
+        assertEquals("Data below the watermark was not sorted", numValues,
+                     consumer.getNumConsumed());
+
+        busy.stop();
+        quiet.stop();
+        sorter.waitForStop(1000);
+
+        assertTrue("End of stream was not seen", consumer.isStopped());
+    }
+
+    @Test
+    public void testEvict()
+        throws SorterException
+    {
+        SortInput<Long> input = new SortInput<Long>("Evict", EOS, 16, true);
+        input.put(Long.valueOf(1L));
+        input.putWatermark(Long.valueOf(2L));
+        input.put(Long.valueOf(3L));
+        input.putLast();
+
+        // only the data objects are handed back
+        List<Long> discarded = input.evict();
+        assertEquals("Bad number of discarded objects", 2, discarded.size());
+        assertEquals(Long.valueOf(1L), discarded.get(0));
+        assertEquals(Long.valueOf(3L), discarded.get(1));
+        assertTrue("Input was not evicted", input.isEvicted());
+        assertEquals(0, input.getQueueSize());
+
+        try {
+            input.put(Long.valueOf(4L));
+            fail("Should not be able to put into an evicted input");
+        } catch (SorterException se) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLagSkip()
+        throws SorterException
+    {
+        CountingConsumer consumer = new CountingConsumer();
+
+        Sorter<Long> sorter =
+            new Sorter<Long>("Lag", 2, new LongComparator(), consumer, EOS,
+                             1, 100000);
+        sorter.setMaxHoldTime(10000000L);
+        sorter.setLagPolicy(LagPolicy.SKIP, 20000000L, 0);
+
+        SortInput<Long> busy = sorter.register("Busy");
+        SortInput<Long> quiet = sorter.register("Quiet");
+        sorter.start();
+
+        // the quiet input sends one value and then goes silent
+        quiet.put(Long.valueOf(0L));
+        for (long v = 1; v <= 10; v++) {
+            busy.put(Long.valueOf(v));
+        }
+
+        waitForConsumed(consumer, 11);
+        assertEquals("Lagging input was not skipped", 11,
+                     consumer.getNumConsumed());
+
+        // the merge has moved past 5, so it is dropped
+        quiet.put(Long.valueOf(5L));
+        quiet.put(Long.valueOf(20L));
+        busy.put(Long.valueOf(21L));
+
+        waitForConsumed(consumer, 13);
+
+        busy.stop();
+        quiet.stop();
+        sorter.waitForStop(1000);
+
+        assertEquals("Bad number of consumed objects", 13,
+                     consumer.getNumConsumed());
+        assertEquals("Bad number of late objects", 1L, sorter.getNumLate());
+        assertTrue("End of stream was not seen", consumer.isStopped());
+    }
+
+    /**
+     * Wait for the consumer to see some objects
+     *
+     * @param consumer consumer
+     * @param num number of objects
+     */
+    private static void waitForConsumed(CountingConsumer consumer, long num)
+    {
+        for (int i = 0; i < 200; i++) {
+            if (consumer.getNumConsumed() >= num) {
+                break;
+            }
+
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package icecube.daq.splicer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remember each List handed to the analysis, along with a copy of what it
+ * held when it was delivered.
+ */
+public class DeliveryRecorder
+    implements SplicedAnalysis<Spliceable>
+{
+    private List<List<Spliceable>> lists = new ArrayList<List<Spliceable>>();
+    private List<List<Spliceable>> copies =
+        new ArrayList<List<Spliceable>>();
+
+    /**
+     * Record the delivered list and its contents.
+     *
+     * @param splicedObjects delivered objects
+     */
+    @Override
+    public synchronized void analyze(List<Spliceable> splicedObjects)
+    {
+        lists.add(splicedObjects);
+        copies.add(new ArrayList<Spliceable>(splicedObjects));
+    }
+
+    /**
+     * Get the contents of a delivery as it was passed to the analysis
+     *
+     * @param index delivery number
+     *
+     * @return copy of the delivered list
+     */
+    public synchronized List<Spliceable> getCopy(int index)
+    {
+        return copies.get(index);
+    }
+
+    /**
+     * Get the contents of every delivery, in order.
+     *
+     * @return all delivered objects
+     */
+    public synchronized List<Spliceable> getDelivered()
+    {
+        List<Spliceable> all = new ArrayList<Spliceable>();
+        for (List<Spliceable> copy : copies) {
+            all.addAll(copy);
+        }
+        return all;
+    }
+
+    /**
+     * Get a list passed to the analysis
+     *
+     * @param index delivery number
+     *
+     * @return delivered list
+     */
+    public synchronized List<Spliceable> getList(int index)
+    {
+        return lists.get(index);
+    }
+
+    /**
+     * Get the number of deliveries
+     *
+     * @return number of calls to <tt>analyze()</tt>
+     */
+    public synchronized int getNumDeliveries()
+    {
+        return lists.size();
+    }
+
+    /**
+     * Get the number of distinct List instances passed to the analysis
+     *
+     * @return number of distinct lists
+     */
+    public synchronized int getNumDistinctLists()
+    {
+        int num = 0;
+        for (int i = 0; i < lists.size(); i++) {
+            boolean seen = false;
+            for (int j = 0; !seen && j < i; j++) {
+                seen = lists.get(i) == lists.get(j);
+            }
+            if (!seen) {
+                num++;
+            }
+        }
+        return num;
+    }
+}
@@ -2,6 +2,11 @@ package icecube.daq.splicer;
 
 import static org.junit.Assert.*;
 
+import icecube.daq.merge.LagPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import org.apache.log4j.BasicConfigurator;
@@ -129,4 +134,709 @@ public class HKN1SplicerTest
         assertTrue(analysis.isOrdered());
         assertEquals(numObjs, analysis.getOutputCount());
     }
+
+    private void runDeliveryList(String name, boolean setReuse, boolean reuse)
+        throws Exception
+    {
+        DeliveryRecorder analysis = new DeliveryRecorder();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        if (setReuse) {
+            splicer.setReuseDeliveryList(reuse);
+        }
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // pause between rounds so there are several deliveries
+        List<Spliceable> pushed = new ArrayList<Spliceable>();
+        for (int i = 0; i < 5; i++) {
+            TimeStamp obj0 = new TimeStamp(i * 2 + 1);
+            TimeStamp obj1 = new TimeStamp(i * 2 + 2);
+            tail0.push(obj0);
+            tail1.push(obj1);
+            pushed.add(obj0);
+            pushed.add(obj1);
+            Thread.sleep(50);
+        }
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0;
+             i < 10 && analysis.getDelivered().size() < pushed.size(); i++)
+        {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+
+        List<Spliceable> delivered = analysis.getDelivered();
+        assertEquals(name + " delivered wrong number of objects",
+                     pushed.size(), delivered.size());
+        for (int i = 0; i < pushed.size(); i++) {
+            assertSame(name + " delivered wrong object #" + i,
+                       pushed.get(i), delivered.get(i));
+        }
+
+        final int numDeliveries = analysis.getNumDeliveries();
+        assertTrue(name + " only made " + numDeliveries + " deliveries",
+                   numDeliveries > 1);
+        if (reuse) {
+            assertEquals(name + " did not reuse the delivery list",
+                         1, analysis.getNumDistinctLists());
+            assertTrue(name + " did not clear the delivery list",
+                       analysis.getList(0).isEmpty());
+        } else {
+            assertEquals(name + " reused a delivery list",
+                         numDeliveries, analysis.getNumDistinctLists());
+            for (int i = 0; i < numDeliveries; i++) {
+                assertEquals(name + " changed delivery #" + i,
+                             analysis.getCopy(i), analysis.getList(i));
+            }
+        }
+    }
+
+    @Test
+    public void deliveryListTest() throws Exception
+    {
+        runDeliveryList("Default", false, false);
+        runDeliveryList("New", true, false);
+        runDeliveryList("Reused", true, true);
+    }
+
+    @Test
+    public void deliveryTargetTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        // never reach the object threshold, so rely on the delay
+        splicer.setDeliveryTarget(1000, 50000L);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        final int numObjs = 40;
+        for (int i = 0; i < numObjs; i++) {
+            if (i % 2 == 0) {
+                tail0.push(new TimeStamp(i + 1));
+            } else {
+                tail1.push(new TimeStamp(i + 1));
+            }
+        }
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+    @Test
+    public void watermarkTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        StrandTail tail2 = splicer.beginStrand();
+        splicer.start();
+
+        // the other strands never send data, only watermarks
+        tail1.pushWatermark(new TimeStamp(100));
+        tail2.pushWatermark(new TimeStamp(50));
+
+        final int numObjs = 40;
+        for (int i = 0; i < numObjs; i++) {
+            tail0.push(new TimeStamp(i + 1));
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Data below the watermarks was held back",
+                     numObjs, analysis.getOutputCount());
+
+        // nothing above the lowest watermark may be released
+        tail0.push(new TimeStamp(60));
+        Thread.sleep(100);
+        assertEquals("Data above a watermark was released",
+                     numObjs, analysis.getOutputCount());
+
+        tail2.pushWatermark(new TimeStamp(70));
+        for (int i = 0; i < 10 && analysis.getOutputCount() <= numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Raised watermark did not release data",
+                     numObjs + 1, analysis.getOutputCount());
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+        tail2.push(LAST_POSSIBLE_SPLICEABLE);
+        Thread.sleep(100);
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+    }
+
+    @Test
+    public void lagCloseTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        splicer.setLagPolicy(LagPolicy.CLOSE, 50000000L, 0);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // the second strand never sends anything
+        final int numObjs = 20;
+        for (int i = 0; i < numObjs; i++) {
+            tail0.push(new TimeStamp(i + 1));
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Lagging strand still holds up the others",
+                     numObjs, analysis.getOutputCount());
+        assertTrue("Lagging strand was not closed", tail1.isClosed());
+
+        try {
+            tail1.push(new TimeStamp(numObjs + 1));
+            fail("Should not be able to push into a closed strand");
+        } catch (ClosedStrandException cse) {
+            // expected
+        }
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        Thread.sleep(100);
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+    }
+
+    @Test
+    public void lagDepthTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        splicer.setLagPolicy(LagPolicy.CLOSE, 0L, 10);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // the second strand never sends anything, but the first one
+        // doesn't have enough data queued to trigger the policy
+        for (int i = 0; i < 5; i++) {
+            tail0.push(new TimeStamp(i + 1));
+        }
+
+        Thread.sleep(200);
+        assertFalse("Strand was closed below the depth threshold",
+                    tail1.isClosed());
+        assertEquals(0, analysis.getOutputCount());
+
+        // now enough data is held up to close the quiet strand
+        final int numObjs = 20;
+        for (int i = 5; i < numObjs; i++) {
+            tail0.push(new TimeStamp(i + 1));
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue("Lagging strand was not closed", tail1.isClosed());
+        assertEquals(numObjs, analysis.getOutputCount());
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        Thread.sleep(100);
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+    }
+
+    @Test
+    public void lagSkipTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        MockAnalysis late = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        splicer.setLateDataAnalysis(late);
+        splicer.setLagPolicy(LagPolicy.SKIP, 50000000L, 0);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // the second strand is quiet for a while
+        final int numObjs = 20;
+        for (int i = 0; i < numObjs; i++) {
+            tail0.push(new TimeStamp(i + 1));
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Lagging strand still holds up the others",
+                     numObjs, analysis.getOutputCount());
+        assertFalse("Skipped strand should still be open", tail1.isClosed());
+
+        // the merge has moved past this one...
+        tail1.push(new TimeStamp(5));
+        // ...but not past these
+        tail1.push(new TimeStamp(numObjs + 1));
+        tail0.push(new TimeStamp(numObjs + 2));
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs + 2;
+             i++)
+        {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs + 2, analysis.getOutputCount());
+        assertEquals("Late object was not handed on", 1,
+                     late.getOutputCount());
+        assertEquals("Bad number of late objects", 1L,
+                     splicer.getNumberOfLateObjects());
+    }
+
+    @Test
+    public void reorderEvictedTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        final List<Spliceable> lateObjs =
+            Collections.synchronizedList(new ArrayList<Spliceable>());
+        splicer.setLateDataAnalysis(new SplicedAnalysis<Spliceable>() {
+                public void analyze(List<Spliceable> list)
+                {
+                    lateObjs.addAll(list);
+                }
+            });
+
+        BufferBudget budget = new BufferBudget(100, BudgetPolicy.REJECT, 0L);
+        splicer.setBufferBudget(budget);
+        splicer.setReorderWindow(4, 200L);
+        splicer.setLagPolicy(LagPolicy.CLOSE, 50000000L, 0);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // the quiet strand's objects never get past its reorder window,
+        // so it is closed while they are still held
+        tail1.push(new TimeStamp(2));
+        tail1.push(new TimeStamp(1));
+
+        final int numObjs = 20;
+        for (int i = 0; i < numObjs; i++) {
+            tail0.push(new TimeStamp(i + 3));
+        }
+
+        for (int i = 0; i < 20 && (analysis.getOutputCount() < numObjs ||
+                                   splicer.getNumberOfLateObjects() < 2);
+             i++)
+        {
+            Thread.sleep(100);
+        }
+        assertEquals(numObjs, analysis.getOutputCount());
+        assertTrue("Lagging strand was not closed", tail1.isClosed());
+
+        // the held objects are treated as late and given back
+        assertEquals(2, splicer.getNumberOfLateObjects());
+        assertEquals(2, lateObjs.size());
+        assertEquals(0, budget.getUsed());
+
+        try {
+            tail1.push(new TimeStamp(numObjs + 3));
+            fail("Should not be able to push into a closed strand");
+        } catch (ClosedStrandException cse) {
+            // expected
+        }
+        assertEquals(0, budget.getUsed());
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        Thread.sleep(100);
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+    }
+
+    @Test
+    public void reorderHoldTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        splicer.setReorderWindow(4, 50L);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // the first strand goes quiet before its window fills up
+        tail0.push(new TimeStamp(2));
+        tail0.push(new TimeStamp(1));
+        tail0.push(new TimeStamp(3));
+
+        final int numBusy = 11;
+        for (int i = 0; i < numBusy; i++) {
+            tail1.push(new TimeStamp(i + 10));
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < 3; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Held objects were not released", 3,
+                     analysis.getOutputCount());
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numBusy + 3;
+             i++)
+        {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numBusy + 3, analysis.getOutputCount());
+    }
+
+    @Test
+    public void reorderLateFailureTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        splicer.setReorderWindow(2);
+        splicer.setLateDataAnalysis(new SplicedAnalysis<Spliceable>() {
+                public void analyze(List<Spliceable> list)
+                {
+                    throw new RuntimeException("Broken late analysis");
+                }
+            });
+
+        StrandTail tail0 = splicer.beginStrand();
+        splicer.start();
+
+        for (int i = 0; i < 10; i++) {
+            tail0.push(new TimeStamp(i + 1));
+        }
+
+        // a failing late-data analysis must not break the producer
+        tail0.push(new TimeStamp(1));
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < 10; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(10, analysis.getOutputCount());
+        assertEquals("Bad number of late objects", 1L,
+                     splicer.getNumberOfLateObjects());
+    }
+
+    @Test
+    public void reorderWindowTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        MockAnalysis late = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        splicer.setReorderWindow(4);
+        splicer.setLateDataAnalysis(late);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // every pair in the first strand is swapped
+        final int numObjs = 40;
+        for (int i = 0; i < numObjs; i += 2) {
+            tail0.push(new TimeStamp(i + 2));
+            tail0.push(new TimeStamp(i + 1));
+            tail1.push(new TimeStamp(i + 1));
+            tail1.push(new TimeStamp(i + 2));
+        }
+
+        // this is far too late to be put back in order
+        tail0.push(new TimeStamp(3));
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs * 2;
+             i++)
+        {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs * 2, analysis.getOutputCount());
+        assertEquals("Late object was not handed on", 1,
+                     late.getOutputCount());
+        assertEquals("Bad number of late objects", 1L,
+                     splicer.getNumberOfLateObjects());
+    }
+
+    @Test
+    public void longKeyTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis,
+                   new LongKeySpliceableComparator(LAST_POSSIBLE_SPLICEABLE),
+                   LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        final int numTails = 17;
+        StrandTail[] tails = new StrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginStrand();
+        }
+        splicer.start();
+
+        Random r = new Random();
+        final int numObjs = 10000;
+        for (int i = 0; i < numObjs; i++)
+        {
+            // use duplicate keys so ties fall back to the comparator
+            tails[r.nextInt(numTails)].push(new KeyedTimeStamp(i / 3 + 1));
+        }
+        for (int i = 0; i < numTails; i++) {
+            tails[i].push(LAST_POSSIBLE_SPLICEABLE);
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+    @Test
+    public void batchTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        MockAnalysis late = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        splicer.setReorderWindow(4);
+        splicer.setLateDataAnalysis(late);
+
+        BufferBudget budget = new BufferBudget(1000, BudgetPolicy.BLOCK, 0L);
+        splicer.setBufferBudget(budget);
+
+        final int numTails = 3;
+        StrandTail[] tails = new StrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginStrand();
+        }
+        splicer.start();
+
+        // each strand gets every third value, pushed in batches which
+        // alternate between strands and have each pair swapped
+        final int numBatches = 20;
+        final int batchSize = 10;
+        int numObjs = 0;
+        for (int b = 0; b < numBatches; b++) {
+            for (int t = 0; t < numTails; t++) {
+                List<Spliceable> batch = new ArrayList<Spliceable>();
+                for (int i = 0; i < batchSize; i += 2) {
+                    final long base = (b * batchSize + i) * numTails + t;
+                    batch.add(new TimeStamp(base + numTails + 1));
+                    batch.add(new TimeStamp(base + 1));
+                    numObjs += 2;
+                }
+                if (b == numBatches - 1) {
+                    batch.add(LAST_POSSIBLE_SPLICEABLE);
+                }
+                tails[t].push(batch);
+            }
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+        assertEquals("Unexpected late objects", 0, late.getOutputCount());
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void budgetEmptyStrandTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        BufferBudget budget = new BufferBudget(8, BudgetPolicy.REJECT, 0L);
+        splicer.setBufferBudget(budget);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        StrandTail tail2 = splicer.beginStrand();
+
+        // two strands use up the whole budget between them...
+        int numObjs = 0;
+        for (int i = 1; i <= 6; i++) {
+            tail1.push(new TimeStamp(i * 3 + 1));
+            numObjs++;
+        }
+        tail2.push(new TimeStamp(2));
+        tail2.push(new TimeStamp(5));
+        numObjs += 2;
+        assertEquals(8, budget.getUsed());
+
+        // ...but the empty strand the merge is waiting for still gets in
+        tail0.push(new TimeStamp(0));
+        numObjs++;
+        assertEquals(9, budget.getUsed());
+
+        // once it has data, it has to wait like the others
+        try {
+            tail0.push(new TimeStamp(3));
+            fail("Budget should be used up");
+        } catch (BudgetExceededException bee) {
+            // expected
+        }
+        assertFalse("Strand should still be open", tail0.isClosed());
+        assertEquals(1, budget.getNumRejected());
+
+        splicer.start();
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+        tail2.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(numObjs, analysis.getOutputCount());
+        assertEquals(0, budget.getUsed());
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+    }
+
+    @Test
+    public void budgetTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        HKN1Splicer splicer =
+            new HKN1Splicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        BufferBudget budget = new BufferBudget(8, BudgetPolicy.REJECT, 0L);
+        splicer.setBufferBudget(budget);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+
+        // the busy strand is stopped once three quarters are used...
+        int numObjs = 0;
+        for (int i = 1; i <= 6; i++) {
+            tail0.push(new TimeStamp(i * 2));
+            numObjs++;
+        }
+        try {
+            tail0.push(new TimeStamp(14));
+            fail("Busy strand should have been stopped");
+        } catch (BudgetExceededException bee) {
+            // expected
+        }
+        assertFalse("Strand should still be open", tail0.isClosed());
+
+        // ...but the strand holding up the merge can use the rest
+        tail1.push(new TimeStamp(1));
+        tail1.push(new TimeStamp(3));
+        numObjs += 2;
+        try {
+            tail1.push(new TimeStamp(5));
+            fail("Budget should be used up");
+        } catch (BudgetExceededException bee) {
+            // expected
+        }
+        assertEquals(8, budget.getUsed());
+        assertEquals(2, budget.getNumRejected());
+
+        splicer.start();
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(numObjs, analysis.getOutputCount());
+        assertEquals(0, budget.getUsed());
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+    }
+
+    @Test
+    public void pipelineTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        AnalysisPipeline<Spliceable> pipe =
+            new AnalysisPipeline<Spliceable>(analysis, 4, WaitStrategy.PARK);
+        HKN1Splicer splicer =
+            new HKN1Splicer(pipe, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        splicer.addSplicerListener(pipe);
+        assertEquals(4, pipe.getDepth());
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        final int numObjs = 2000;
+        for (int i = 0; i < numObjs / 2; i++) {
+            tail0.push(new TimeStamp(i * 2));
+            tail1.push(new TimeStamp(i * 2 + 1));
+        }
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && pipe.getNumObjects() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        pipe.stop();
+
+        assertEquals(numObjs, pipe.getNumObjects());
+        assertEquals(numObjs, analysis.getOutputCount());
+        assertTrue(analysis.isOrdered());
+        assertTrue("No batches were delivered", pipe.getNumBatches() > 0);
+        assertEquals(0, pipe.getOccupancy());
+        assertEquals(0, pipe.getNumFailures());
+        assertTrue(pipe.getAverageOccupancy() < pipe.getDepth());
+    }
 }
@@ -0,0 +1,17 @@
+package icecube.daq.splicer;
+
+public class KeyedTimeStamp
+    extends TimeStamp
+    implements LongKeySpliceable
+{
+    public KeyedTimeStamp(long val)
+    {
+        super(val);
+    }
+
+    @Override
+    public long getSortKey()
+    {
+        return timestamp;
+    }
+}
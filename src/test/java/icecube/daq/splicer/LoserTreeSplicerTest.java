@@ -0,0 +1,446 @@
+package icecube.daq.splicer;
+
+import static org.junit.Assert.*;
+
+import icecube.daq.splicer.test.MockSpliceableFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.TTCCLayout;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoserTreeSplicerTest
+{
+    public static final Spliceable LAST_POSSIBLE_SPLICEABLE = new Spliceable()
+    {
+        public int compareSpliceable(Spliceable spl)
+        {
+            if (this == spl) {
+                return 0;
+            }
+            return 1;
+        }
+        public String toString()
+        {
+            return "LAST_POSSIBLE_SPLICEABLE";
+        }
+    };
+
+    private static final SpliceableComparator SPL_CMP =
+            new SpliceableComparator(LAST_POSSIBLE_SPLICEABLE);
+
+    public LoserTreeSplicerTest()
+    {
+        BasicConfigurator.resetConfiguration();
+
+        ConsoleAppender appender = new ConsoleAppender(new TTCCLayout());
+        appender.setName("TestAppender");
+        appender.setThreshold(Level.FATAL);
+        appender.activateOptions();
+
+        BasicConfigurator.configure(appender);
+    }
+
+    @Test
+    public void basicUnloadedTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+        Random r = new Random();
+        final int numObjs = 100;
+        for (int i = 0; i < numObjs; i++)
+        {
+            TimeStamp obj = new TimeStamp(i + 1);
+            if (r.nextBoolean()) {
+                tail1.push(obj);
+            } else {
+                tail0.push(obj);
+            }
+        }
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+        Thread.sleep(100);
+        splicer.stop();
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+
+    @Test
+    public void subthresholdTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        int numObjs = 40;
+
+        for (int i = 1; i < 30; i++)
+        {
+            tail0.push(new TimeStamp(i));
+        }
+
+        tail1.push(new TimeStamp(30));
+
+        Thread.sleep(100);
+
+        tail1.push(new TimeStamp(31));
+        tail1.push(new TimeStamp(32));
+        tail1.push(new TimeStamp(33));
+
+        tail0.push(new TimeStamp(34));
+
+        Thread.sleep(100);
+
+        tail0.push(new TimeStamp(35));
+        tail0.push(new TimeStamp(36));
+        tail0.push(new TimeStamp(37));
+        tail0.push(new TimeStamp(38));
+        tail0.push(new TimeStamp(39));
+
+        tail1.push(new TimeStamp(40));
+
+        Thread.sleep(100);
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        Thread.sleep(100);
+
+        splicer.stop();
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+
+    @Test
+    public void manyStrandsTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        final int numTails = 37;
+        StrandTail[] tails = new StrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginStrand();
+        }
+        splicer.start();
+
+        Random r = new Random();
+        final int numObjs = 10000;
+        for (int i = 0; i < numObjs; i++)
+        {
+            tails[r.nextInt(numTails)].push(new TimeStamp(i + 1));
+        }
+        for (int i = 0; i < numTails; i++) {
+            tails[i].push(LAST_POSSIBLE_SPLICEABLE);
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+    private void runDeliveryList(String name, boolean setReuse, boolean reuse)
+        throws Exception
+    {
+        DeliveryRecorder analysis = new DeliveryRecorder();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        if (setReuse) {
+            splicer.setReuseDeliveryList(reuse);
+        }
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        // pause between rounds so there are several deliveries
+        List<Spliceable> pushed = new ArrayList<Spliceable>();
+        for (int i = 0; i < 5; i++) {
+            TimeStamp obj0 = new TimeStamp(i * 2 + 1);
+            TimeStamp obj1 = new TimeStamp(i * 2 + 2);
+            tail0.push(obj0);
+            tail1.push(obj1);
+            pushed.add(obj0);
+            pushed.add(obj1);
+            Thread.sleep(50);
+        }
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0;
+             i < 10 && analysis.getDelivered().size() < pushed.size(); i++)
+        {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+
+        List<Spliceable> delivered = analysis.getDelivered();
+        assertEquals(name + " delivered wrong number of objects",
+                     pushed.size(), delivered.size());
+        for (int i = 0; i < pushed.size(); i++) {
+            assertSame(name + " delivered wrong object #" + i,
+                       pushed.get(i), delivered.get(i));
+        }
+
+        final int numDeliveries = analysis.getNumDeliveries();
+        assertTrue(name + " only made " + numDeliveries + " deliveries",
+                   numDeliveries > 1);
+        if (reuse) {
+            assertEquals(name + " did not reuse the delivery list",
+                         1, analysis.getNumDistinctLists());
+            assertTrue(name + " did not clear the delivery list",
+                       analysis.getList(0).isEmpty());
+        } else {
+            assertEquals(name + " reused a delivery list",
+                         numDeliveries, analysis.getNumDistinctLists());
+            for (int i = 0; i < numDeliveries; i++) {
+                assertEquals(name + " changed delivery #" + i,
+                             analysis.getCopy(i), analysis.getList(i));
+            }
+        }
+    }
+
+    @Test
+    public void deliveryListTest() throws Exception
+    {
+        runDeliveryList("Default", false, false);
+        runDeliveryList("New", true, false);
+        runDeliveryList("Reused", true, true);
+    }
+
+    @Test
+    public void closedStrandTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        tail0.push(new TimeStamp(1));
+        tail1.push(new TimeStamp(2));
+        tail0.push(new TimeStamp(3));
+        tail1.close();
+        assertEquals(1, splicer.getStrandCount());
+
+        try {
+            tail1.push(new TimeStamp(4));
+            fail("Should not be able to push into closed strand");
+        } catch (ClosedStrandException cse) {
+            // expected
+        }
+
+        tail0.push(new TimeStamp(5));
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < 4; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(4, analysis.getOutputCount());
+    }
+
+    @Test
+    public void watermarkTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        StrandTail tail2 = splicer.beginStrand();
+        splicer.start();
+
+        // the other strands never send data, only watermarks
+        tail1.pushWatermark(new TimeStamp(100));
+        tail2.pushWatermark(new TimeStamp(50));
+
+        final int numObjs = 40;
+        for (int i = 0; i < numObjs; i++) {
+            tail0.push(new TimeStamp(i + 1));
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Data below the watermarks was held back",
+                     numObjs, analysis.getOutputCount());
+
+        // nothing above the lowest watermark may be released
+        tail0.push(new TimeStamp(60));
+        Thread.sleep(100);
+        assertEquals("Data above a watermark was released",
+                     numObjs, analysis.getOutputCount());
+
+        tail2.pushWatermark(new TimeStamp(70));
+        for (int i = 0; i < 10 && analysis.getOutputCount() <= numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Raised watermark did not release data",
+                     numObjs + 1, analysis.getOutputCount());
+
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+        tail2.push(LAST_POSSIBLE_SPLICEABLE);
+        Thread.sleep(100);
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+    }
+
+    @Test
+    public void longKeyTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis,
+                   new LongKeySpliceableComparator(LAST_POSSIBLE_SPLICEABLE),
+                   LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        final int numTails = 17;
+        StrandTail[] tails = new StrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginStrand();
+        }
+        splicer.start();
+
+        Random r = new Random();
+        final int numObjs = 10000;
+        for (int i = 0; i < numObjs; i++)
+        {
+            // use duplicate keys so ties fall back to the comparator
+            tails[r.nextInt(numTails)].push(new KeyedTimeStamp(i / 3 + 1));
+        }
+        for (int i = 0; i < numTails; i++) {
+            tails[i].push(LAST_POSSIBLE_SPLICEABLE);
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+    @Test
+    public void recordStrandTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        // tiny arenas so records wrap around and pushes wait for space
+        final int numTails = 4;
+        RecordStrandTail[] tails = new RecordStrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginRecordStrand(new MockSpliceableFactory(),
+                                                 100);
+        }
+        splicer.start();
+
+        ByteBuffer buf = ByteBuffer.allocate(9);
+        final int numObjs = 2000;
+        for (int i = 0; i < numObjs; i++)
+        {
+            buf.clear();
+            buf.put((byte) 9);
+            buf.putLong(i + 1);
+            buf.flip();
+
+            tails[i % numTails].push(i + 1, buf);
+        }
+        for (int i = 0; i < numTails; i++) {
+            tails[i].close();
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+    @Test
+    public void recordSizesTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        LoserTreeSplicer splicer =
+            new LoserTreeSplicer(analysis, SPL_CMP, LAST_POSSIBLE_SPLICEABLE);
+        analysis.setSplicer(splicer);
+
+        // records of many sizes, some nearly as big as the arena
+        final int numTails = 2;
+        RecordStrandTail[] tails = new RecordStrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginRecordStrand(new MockSpliceableFactory(),
+                                                 150);
+        }
+        splicer.start();
+
+        ByteBuffer buf = ByteBuffer.allocate(127);
+        final int numObjs = 2000;
+        for (int i = 0; i < numObjs; i++)
+        {
+            final int len = 9 + (i * 37) % 119;
+
+            buf.clear();
+            buf.put((byte) len);
+            buf.putLong(i + 1);
+            while (buf.position() < len) {
+                buf.put((byte) 0);
+            }
+            buf.flip();
+
+            tails[i % numTails].push(i + 1, buf);
+        }
+        for (int i = 0; i < numTails; i++) {
+            tails[i].close();
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+}
@@ -77,6 +77,81 @@ public class PrioritySplicerTest
     }
 
 
+    @Test
+    public void longKeyTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        PrioritySplicer<Spliceable> splicer =
+            new PrioritySplicer<Spliceable>("LongKey", analysis,
+                   new LongKeySpliceableComparator(LAST_POSSIBLE_SPLICEABLE),
+                                            LAST_POSSIBLE_SPLICEABLE, 17);
+        analysis.setSplicer(splicer);
+
+        final int numTails = 17;
+        StrandTail[] tails = new StrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginStrand();
+        }
+        splicer.start();
+
+        Random r = new Random();
+        final int numObjs = 10000;
+        for (int i = 0; i < numObjs; i++)
+        {
+            // use duplicate keys so ties fall back to the comparator
+            tails[r.nextInt(numTails)].push(new KeyedTimeStamp(i / 3 + 1));
+        }
+        for (int i = 0; i < numTails; i++) {
+            tails[i].push(LAST_POSSIBLE_SPLICEABLE);
+        }
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs, analysis.getOutputCount());
+    }
+
+    @Test
+    public void pipelineTest() throws Exception
+    {
+        MockAnalysis analysis = new MockAnalysis();
+        AnalysisPipeline<Spliceable> pipe =
+            new AnalysisPipeline<Spliceable>(analysis, 4, WaitStrategy.PARK);
+        PrioritySplicer<Spliceable> splicer =
+            new PrioritySplicer<Spliceable>("Pipeline", pipe, SPL_CMP,
+                                            LAST_POSSIBLE_SPLICEABLE, 2);
+        splicer.addSplicerListener(pipe);
+
+        StrandTail tail0 = splicer.beginStrand();
+        StrandTail tail1 = splicer.beginStrand();
+        splicer.start();
+
+        final int numObjs = 2000;
+        for (int i = 0; i < numObjs / 2; i++) {
+            tail0.push(new TimeStamp(i * 2 + 1));
+            tail1.push(new TimeStamp(i * 2 + 2));
+        }
+        tail0.push(LAST_POSSIBLE_SPLICEABLE);
+        tail1.push(LAST_POSSIBLE_SPLICEABLE);
+
+        for (int i = 0; i < 10 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        splicer.stop();
+        pipe.stop();
+
+        // the sorter hands over batches, which the pipeline copies
+        assertEquals(numObjs, analysis.getOutputCount());
+        assertTrue(analysis.isOrdered());
+        assertTrue("No batches were delivered", pipe.getNumBatches() > 0);
+        assertTrue("Batches were not copied whole",
+                   pipe.getNumBatches() < pipe.getNumObjects());
+        assertEquals(0, pipe.getOccupancy());
+        assertEquals(0, pipe.getNumFailures());
+    }
+
     @Test
     public void subthresholdTest() throws Exception
     {
@@ -131,4 +206,84 @@ public class PrioritySplicerTest
         assertTrue(analysis.isOrdered());
         assertEquals(numObjs, analysis.getOutputCount());
     }
+
+    /**
+     * Check that watermarks let data past quiet strands.
+     *
+     * @param name splicer name
+     * @param maxCPUs number of sorting threads
+     * @param fanOut maximum number of sources per merge (0 for no limit)
+     */
+    private void runWatermark(String name, int maxCPUs, int fanOut)
+        throws Exception
+    {
+        final int numTails = 4;
+
+        MockAnalysis analysis = new MockAnalysis();
+        PrioritySplicer<Spliceable> splicer =
+            new PrioritySplicer<Spliceable>(name, analysis, SPL_CMP,
+                                            LAST_POSSIBLE_SPLICEABLE,
+                                            numTails, maxCPUs);
+        analysis.setSplicer(splicer);
+        splicer.setMaxHoldTime(10000000L);
+        splicer.setMergeFanOut(fanOut);
+
+        StrandTail[] tails = new StrandTail[numTails];
+        for (int i = 0; i < numTails; i++) {
+            tails[i] = splicer.beginStrand();
+        }
+        splicer.start();
+
+        // the other strands never send data, only watermarks
+        tails[1].pushWatermark(new TimeStamp(100));
+        tails[2].pushWatermark(new TimeStamp(50));
+        tails[3].pushWatermark(new TimeStamp(80));
+
+        final int numObjs = 40;
+        for (int i = 0; i < numObjs; i++) {
+            tails[0].push(new TimeStamp(i + 1));
+        }
+
+        for (int i = 0; i < 30 && analysis.getOutputCount() < numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Data below the watermarks was held back",
+                     numObjs, analysis.getOutputCount());
+
+        // nothing above the lowest watermark may be released
+        tails[0].push(new TimeStamp(60));
+        Thread.sleep(200);
+        assertEquals("Data above a watermark was released",
+                     numObjs, analysis.getOutputCount());
+
+        tails[2].pushWatermark(new TimeStamp(70));
+        for (int i = 0; i < 30 && analysis.getOutputCount() <= numObjs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("Raised watermark did not release data",
+                     numObjs + 1, analysis.getOutputCount());
+
+        for (int i = 0; i < numTails; i++) {
+            tails[i].push(LAST_POSSIBLE_SPLICEABLE);
+        }
+        Thread.sleep(100);
+        splicer.stop();
+        assertTrue(analysis.isOrdered());
+        assertEquals(numObjs + 1, analysis.getOutputCount());
+    }
+
+    @Test
+    public void watermarkMergeStageTest() throws Exception
+    {
+        // four subsorters merged in pairs by intermediate stages
+        runWatermark("WatermarkStage", 4, 2);
+    }
+
+    @Test
+    public void watermarkTest() throws Exception
+    {
+        // quiet strands share a subsorter with data or have one to
+        // themselves
+        runWatermark("Watermark", 2, 0);
+    }
 }
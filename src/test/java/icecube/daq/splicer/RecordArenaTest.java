@@ -0,0 +1,80 @@
+package icecube.daq.splicer;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class RecordArenaTest
+{
+    private static ByteBuffer createPayload(int len, byte fill)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        for (int i = 0; i < len; i++) {
+            buf.put(fill);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Test
+    public void emptyArenaTest()
+    {
+        RecordArena arena = new RecordArena(1000);
+
+        assertTrue(arena.add(1L, createPayload(300, (byte) 1)));
+        assertEquals(1L, arena.headKey());
+        assertEquals(300, arena.takePayload().remaining());
+        assertTrue(arena.release());
+        assertEquals(0, arena.size());
+
+        // the arena is empty, so a record which fits must be accepted
+        // even though it wouldn't fit before the end of the buffer
+        assertTrue(arena.fits(800));
+        assertTrue("Empty arena refused a record",
+                   arena.add(2L, createPayload(800, (byte) 2)));
+        assertEquals(2L, arena.headKey());
+        assertEquals(800, arena.takePayload().remaining());
+        assertTrue(arena.release());
+    }
+
+    @Test
+    public void varyingSizeTest()
+    {
+        final int capacity = 1000;
+        RecordArena arena = new RecordArena(capacity);
+
+        long nextKey = 1L;
+        long nextRead = 1L;
+        for (int i = 0; i < 5000; i++) {
+            final int len = (i * 137) % (capacity - RecordArena.HEADER_BYTES);
+            ByteBuffer payload = createPayload(len, (byte) nextKey);
+
+            while (!arena.add(nextKey, payload)) {
+                // free everything which has been written so far
+                assertFalse("Full arena has no unread records",
+                            arena.isEmpty());
+                while (!arena.isEmpty()) {
+                    assertEquals(nextRead, arena.headKey());
+
+                    ByteBuffer view = arena.takePayload();
+                    for (int b = 0; b < view.remaining(); b++) {
+                        assertEquals((byte) nextRead, view.get(b));
+                    }
+                    nextRead++;
+                }
+                arena.release();
+            }
+            nextKey++;
+        }
+
+        while (!arena.isEmpty()) {
+            assertEquals(nextRead++, arena.headKey());
+            arena.takePayload();
+        }
+        arena.release();
+        assertEquals(nextKey, nextRead);
+        assertEquals(0, arena.size());
+    }
+}